@@ -0,0 +1,184 @@
+package group107.distancealert;
+
+import java.util.Arrays;
+
+/**
+ * Calcola il periodo di polling del DistanceController in base al movimento dei tag e alla loro
+ * vicinanza alle soglie di distanza registrate.
+ * Dopo ogni aggiornamento stima, per ogni tag appena misurato, il tempo che impiegherebbe a
+ * raggiungere la soglia più vicina alla velocità attuale, e sceglie un periodo che permetta
+ * almeno SAMPLES_BEFORE_CROSSING misure prima dell'attraversamento; un tag già vicino a una
+ * soglia porta subito il periodo al minimo. Il periodo si riduce immediatamente, mentre aumenta
+ * gradualmente quando i tag sono fermi o assenti, così da non oscillare.
+ * Il periodo viene calcolato solo dal thread di aggiornamento; le soglie possono essere
+ * modificate da qualsiasi thread.
+ */
+class AdaptivePolling {
+    /**
+     * Variazione di distanza (in mm) sotto la quale un tag è considerato fermo, perché dovuta al
+     * rumore della misura
+     */
+    static final int MOTION_NOISE = 100;
+
+    /**
+     * Distanza (in mm) da una soglia entro la quale si usa sempre il periodo minimo
+     */
+    static final int THRESHOLD_MARGIN = 300;
+
+    /**
+     * Distanza (in mm) usata per stimare il periodo dei tag in movimento in assenza di soglie,
+     * o con soglie più lontane
+     */
+    static final int MOTION_REFERENCE = 2000;
+
+    /**
+     * Numero minimo di misure da effettuare prima che un tag in movimento raggiunga una soglia
+     */
+    static final int SAMPLES_BEFORE_CROSSING = 4;
+
+    /**
+     * Fattore massimo di aumento del periodo a ogni aggiornamento
+     */
+    static final double SLOW_DOWN_FACTOR = 1.25;
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private long minPeriod;
+    private long maxPeriod;
+    private volatile long period;
+    private long previousFrame = 0;
+
+    /**
+     * Soglie registrate, in ordine crescente. L'array non viene mai modificato dopo la
+     * pubblicazione, quindi può essere letto senza lock.
+     */
+    private volatile int[] thresholds = new int[0];
+
+    /**
+     * Imposta l'intervallo entro cui può variare il periodo, partendo dal periodo minimo.
+     * Con minPeriod == maxPeriod il periodo resta fisso.
+     *
+     * @param minPeriod Il periodo minimo (in ms)
+     * @param maxPeriod Il periodo massimo (in ms)
+     */
+    void reset(long minPeriod, long maxPeriod) {
+        this.minPeriod = minPeriod;
+        this.maxPeriod = maxPeriod;
+        period = minPeriod;
+        previousFrame = 0;
+    }
+
+    /**
+     * @return Il periodo calcolato dopo l'ultimo aggiornamento (in ms)
+     */
+    long period() {
+        return period;
+    }
+
+    /**
+     * Calcola il periodo da usare dopo un aggiornamento riuscito, in base agli eventi dell'ultima
+     * classificazione della tabella
+     *
+     * @param table La tabella dei tag, appena classificata
+     * @param frameTimestamp L'istante in cui sono state richieste le misure (in ns)
+     * @return Il nuovo periodo (in ms)
+     */
+    long update(TagTable table, long frameTimestamp) {
+        long elapsed = previousFrame == 0 ? 0 : frameTimestamp - previousFrame;
+        previousFrame = frameTimestamp;
+
+        int[] limits = thresholds;
+        long target = maxPeriod;
+
+        // I tag appena connessi non hanno una misura precedente: conta solo la vicinanza alle soglie
+        for (int i = 0; i < table.connectedCount(); i++) {
+            if (gapToThreshold(limits, table.distance(table.connectedSlot(i))) <= THRESHOLD_MARGIN) {
+                target = minPeriod;
+            }
+        }
+
+        for (int i = 0; i < table.updatedCount() && target > minPeriod; i++) {
+            int slot = table.updatedSlot(i);
+            int distance = table.distance(slot);
+            int gap = gapToThreshold(limits, distance);
+            if (gap <= THRESHOLD_MARGIN) {
+                target = minPeriod;
+                break;
+            }
+
+            int moved = Math.abs(distance - table.previousDistance(slot));
+            if (moved > MOTION_NOISE && elapsed > 0) {
+                // Tempo stimato per percorrere la distanza dalla soglia alla velocità attuale
+                long crossing = elapsed * Math.min(gap, MOTION_REFERENCE) / moved / NANOS_PER_MILLI;
+                target = Math.min(target, crossing / SAMPLES_BEFORE_CROSSING);
+            }
+        }
+
+        target = Math.max(minPeriod, Math.min(maxPeriod, target));
+        if (target < period) {
+            period = target;
+        } else {
+            period = Math.min(target, Math.max(period + 1, (long) (period * SLOW_DOWN_FACTOR)));
+        }
+        return period;
+    }
+
+    /**
+     * Registra una soglia di distanza
+     *
+     * @param distance La soglia (in mm)
+     */
+    synchronized void addThreshold(int distance) {
+        int[] s = thresholds;
+        int i = Arrays.binarySearch(s, distance);
+        if (i >= 0) {
+            return;
+        }
+
+        int insertion = -i - 1;
+        int[] result = new int[s.length + 1];
+        System.arraycopy(s, 0, result, 0, insertion);
+        result[insertion] = distance;
+        System.arraycopy(s, insertion, result, insertion + 1, s.length - insertion);
+        thresholds = result;
+    }
+
+    /**
+     * Rimuove una soglia di distanza, se presente
+     *
+     * @param distance La soglia (in mm)
+     * @return true se la soglia era registrata
+     */
+    synchronized boolean removeThreshold(int distance) {
+        int[] s = thresholds;
+        int i = Arrays.binarySearch(s, distance);
+        if (i < 0) {
+            return false;
+        }
+
+        int[] result = Arrays.copyOf(s, s.length - 1);
+        System.arraycopy(s, i + 1, result, i, s.length - i - 1);
+        thresholds = result;
+        return true;
+    }
+
+    /**
+     * @return Distanza (in mm) dalla soglia più vicina, Integer.MAX_VALUE se non ci sono soglie
+     */
+    private static int gapToThreshold(int[] limits, int distance) {
+        int i = Arrays.binarySearch(limits, distance);
+        if (i >= 0) {
+            return 0;
+        }
+
+        int insertion = -i - 1;
+        int gap = Integer.MAX_VALUE;
+        if (insertion < limits.length) {
+            gap = limits[insertion] - distance;
+        }
+        if (insertion > 0) {
+            gap = Math.min(gap, distance - limits[insertion - 1]);
+        }
+        return gap;
+    }
+}
@@ -0,0 +1,520 @@
+package group107.distancealert;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Interfaccia asincrona del DriverDWM. Un unico thread di I/O possiede il driver ed esegue le
+ * richieste prelevandole da una coda limitata e ordinata per priorità: le richieste a priorità
+ * più alta (ad esempio la lettura delle distanze) vengono sempre servite prima di quelle a
+ * priorità più bassa (ad esempio i controlli dello stato del modulo).
+ * Ogni richiesta restituisce subito un CompletableFuture, così il chiamante non resta bloccato
+ * durante il trasferimento sul bus e può, ad esempio, elaborare la risposta precedente mentre
+ * la successiva viene trasferita. Per le richieste ripetute a ogni aggiornamento si può usare
+ * invece un Poll, riutilizzabile, che non alloca memoria.
+ * Quando si ha finito di usare un oggetto di questa classe è importante invocare il metodo close,
+ * che termina il thread di I/O e chiude il driver.
+ */
+@SuppressWarnings("WeakerAccess")
+public class AsyncDriverDWM {
+    /**
+     * Stringa utile per log dell'AsyncDriverDWM
+     */
+    private static final String TAG = "AsyncDriverDWM";
+
+    /**
+     * Capacità predefinita della coda delle richieste
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    /**
+     * Priorità delle richieste, dalla più alta alla più bassa
+     */
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    /**
+     * Operazione da eseguire sul driver nel thread di I/O
+     *
+     * @param <T> Tipo del risultato dell'operazione
+     */
+    public interface DriverTask<T> {
+        /**
+         * Esegue l'operazione
+         *
+         * @param driver Il driver, usato solo dal thread di I/O
+         * @return Il risultato dell'operazione
+         * @throws IOException Se ci sono problemi di comunicazione con il modulo
+         */
+        T run(DriverDWM driver) throws IOException;
+    }
+
+    /**
+     * Richiesta in coda: le richieste sono ordinate per priorità e, a parità di priorità,
+     * in ordine di arrivo
+     */
+    abstract static class Request implements Comparable<Request> {
+        Priority priority;
+        long sequence;
+
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+
+        /**
+         * Esegue la richiesta nel thread di I/O e ne segnala il completamento
+         */
+        abstract void execute(DriverDWM driver);
+
+        /**
+         * Segnala il fallimento della richiesta, che non verrà eseguita
+         */
+        abstract void fail(Throwable error);
+    }
+
+    /**
+     * Richiesta di un'operazione qualsiasi, completata tramite un CompletableFuture
+     */
+    private static class TaskRequest<T> extends Request {
+        final DriverTask<T> task;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        TaskRequest(DriverTask<T> task) {
+            this.task = task;
+        }
+
+        @Override
+        void execute(DriverDWM driver) {
+            try {
+                future.complete(task.run(driver));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+
+        @Override
+        void fail(Throwable error) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Richiesta riutilizzabile di una API senza valori, la cui risposta viene salvata sempre nello
+     * stesso buffer: inviarla e attenderne il completamento non alloca memoria, quindi è adatta
+     * alle richieste ripetute a ogni aggiornamento (ad esempio dwm_loc_get).
+     * Può essere in coda una sola volta alla volta: il buffer non deve essere usato dal
+     * chiamante tra l'invio e il termine dell'attesa.
+     */
+    public static final class Poll extends Request {
+        private final byte tag;
+        private final byte[] response;
+
+        /**
+         * Stato della richiesta, protetto dal lock dell'oggetto: completata (o mai inviata),
+         * numero di byte della risposta ed eventuale errore
+         */
+        private boolean done = true;
+        private int length;
+        private Throwable error;
+
+        /**
+         * @param tag byte relativo alla API da usare
+         * @param response buffer in cui salvare la risposta, di almeno
+         *                 DriverDWM.MAX_RESPONSE_LENGTH byte
+         * @throws IllegalArgumentException Se il buffer è troppo piccolo
+         */
+        public Poll(byte tag, byte[] response) {
+            if (response == null || response.length < DriverDWM.MAX_RESPONSE_LENGTH) {
+                throw new IllegalArgumentException("Bad parameters");
+            }
+            this.tag = tag;
+            this.response = response;
+        }
+
+        /**
+         * Attende il completamento della richiesta, riportando le eventuali eccezioni del driver
+         * così come sono state lanciate
+         *
+         * @return Il numero di byte della risposta
+         * @throws IOException Se la richiesta è fallita per un problema di comunicazione
+         * @throws InterruptedIOException Se l'attesa è stata interrotta
+         */
+        public synchronized int await() throws IOException {
+            awaitDone();
+            if (error != null) {
+                throw rethrow(error);
+            }
+            return length;
+        }
+
+        /**
+         * Prepara la richiesta a essere messa in coda, attendendo il completamento di quella
+         * precedente se ancora in corso
+         */
+        synchronized void begin(Priority priority, long sequence) throws InterruptedIOException {
+            awaitDone();
+            this.priority = priority;
+            this.sequence = sequence;
+            done = false;
+            error = null;
+        }
+
+        @Override
+        void execute(DriverDWM driver) {
+            try {
+                complete(driver.requestAPI(tag, null, 0, 0, response), null);
+            } catch (Throwable t) {
+                complete(0, t);
+            }
+        }
+
+        @Override
+        void fail(Throwable error) {
+            complete(0, error);
+        }
+
+        private synchronized void complete(int length, Throwable error) {
+            this.length = length;
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+
+        private void awaitDone() throws InterruptedIOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the DWM");
+                }
+            }
+        }
+    }
+
+    private final DriverDWM driver;
+    private final int capacity;
+    private final PriorityBlockingQueue<Request> queue = new PriorityBlockingQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Thread ioThread;
+    private volatile boolean closed = false;
+
+    /**
+     * Indica se il thread di I/O è in attesa di una richiesta: solo in questo caso close() lo
+     * interrompe, così da non interrompere una richiesta in esecuzione. Protetto da idleLock.
+     */
+    private final Object idleLock = new Object();
+    private boolean idle = false;
+
+    /**
+     * Thread di I/O: esegue in ordine le richieste in coda finché l'oggetto non viene chiuso
+     */
+    private final Runnable ioLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (idleLock) {
+                    if (closed) {
+                        break;
+                    }
+                    idle = true;
+                }
+
+                Request request;
+                try {
+                    request = queue.take();
+                } catch (InterruptedException e) {
+                    request = null;
+                }
+
+                // Un'interruzione arrivata dopo l'estrazione della richiesta non deve interromperla
+                synchronized (idleLock) {
+                    idle = false;
+                    Thread.interrupted();
+                }
+                if (request == null) {
+                    continue;
+                }
+
+                pending.decrementAndGet();
+                if (closed) {
+                    request.fail(new IOException("Driver closed"));
+                } else {
+                    request.execute(driver);
+                }
+            }
+
+            // Fa fallire le richieste rimaste in coda
+            Request request;
+            while ((request = queue.poll()) != null) {
+                request.fail(new IOException("Driver closed"));
+            }
+        }
+    };
+
+    /**
+     * Crea l'interfaccia asincrona e avvia il thread di I/O, con la capacità predefinita della coda
+     *
+     * @param driver Il driver da usare, che da questo momento deve essere usato solo tramite
+     *               questo oggetto
+     */
+    public AsyncDriverDWM(DriverDWM driver) {
+        this(driver, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Crea l'interfaccia asincrona e avvia il thread di I/O
+     *
+     * @param driver Il driver da usare, che da questo momento deve essere usato solo tramite
+     *               questo oggetto
+     * @param capacity Numero massimo di richieste in coda
+     * @throws IllegalArgumentException Se il driver è null o la capacità non è positiva
+     */
+    public AsyncDriverDWM(DriverDWM driver, int capacity) {
+        if (driver == null || capacity <= 0) {
+            throw new IllegalArgumentException("Bad parameters");
+        }
+
+        this.driver = driver;
+        this.capacity = capacity;
+
+        ioThread = new Thread(ioLoop, "DWM-IO-" + driver.getMyBus());
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * Richiede una API al modulo con priorità normale
+     *
+     * @param tag byte relativo alla API da usare
+     * @param value array di byte contente i valori da passare alla API, può essere null
+     * @return Future che verrà completato con la risposta del modulo convertita in unsigned int
+     */
+    public CompletableFuture<int[]> submit(byte tag, byte[] value) {
+        return submit(tag, value, Priority.NORMAL);
+    }
+
+    /**
+     * Richiede una API al modulo
+     *
+     * @param tag byte relativo alla API da usare
+     * @param value array di byte contente i valori da passare alla API, può essere null.
+     *              Viene copiato, quindi il chiamante può riutilizzarlo subito.
+     * @param priority priorità della richiesta
+     * @return Future che verrà completato con la risposta del modulo convertita in unsigned int
+     */
+    public CompletableFuture<int[]> submit(final byte tag, byte[] value, Priority priority) {
+        final byte[] copy = value == null ? null : value.clone();
+        return submitTask(new DriverTask<int[]>() {
+            @Override
+            public int[] run(DriverDWM driver) throws IOException {
+                return driver.requestAPI(tag, copy);
+            }
+        }, priority);
+    }
+
+    /**
+     * Richiede una API al modulo senza allocare buffer per la risposta, che viene salvata nel
+     * buffer del chiamante. Gli array passati non devono essere usati dal chiamante finché il
+     * future non viene completato.
+     *
+     * @param tag byte relativo alla API da usare
+     * @param value array di byte contente i valori da passare alla API, può essere null
+     * @param response buffer in cui salvare la risposta, di almeno DriverDWM.MAX_RESPONSE_LENGTH byte
+     * @param priority priorità della richiesta
+     * @return Future che verrà completato con il numero di byte della risposta
+     */
+    public CompletableFuture<Integer> submit(final byte tag, final byte[] value,
+                                             final byte[] response, Priority priority) {
+        return submitTask(new DriverTask<Integer>() {
+            @Override
+            public Integer run(DriverDWM driver) throws IOException {
+                return driver.requestAPI(tag, value, 0, value == null ? 0 : value.length, response);
+            }
+        }, priority);
+    }
+
+    /**
+     * Richiede il controllo dello stato del modulo (checkDWM) con priorità bassa, così da non
+     * ritardare mai le richieste più importanti
+     *
+     * @return Future completato quando il controllo è terminato con successo
+     */
+    public CompletableFuture<Void> submitHealthCheck() {
+        return submitTask(new DriverTask<Void>() {
+            @Override
+            public Void run(DriverDWM driver) throws IOException {
+                driver.checkDWM();
+                return null;
+            }
+        }, Priority.LOW);
+    }
+
+    /**
+     * Esegue un'operazione qualsiasi sul driver nel thread di I/O
+     *
+     * @param task L'operazione da eseguire
+     * @param priority La priorità dell'operazione
+     * @param <T> Il tipo del risultato dell'operazione
+     * @return Future che verrà completato con il risultato dell'operazione. Viene completato
+     * con RejectedExecutionException se la coda è piena, con IOException se l'oggetto è chiuso.
+     */
+    public <T> CompletableFuture<T> submitTask(DriverTask<T> task, Priority priority) {
+        if (task == null || priority == null) {
+            throw new IllegalArgumentException("Bad parameters");
+        }
+
+        TaskRequest<T> request = new TaskRequest<>(task);
+        request.priority = priority;
+        request.sequence = sequence.getAndIncrement();
+        enqueue(request);
+        return request.future;
+    }
+
+    /**
+     * Mette in coda una richiesta riutilizzabile. Se la stessa richiesta è ancora in corso,
+     * prima ne attende il completamento.
+     * L'esito va atteso con poll.await(): la richiesta fallisce con RejectedExecutionException
+     * se la coda è piena, con IOException se l'oggetto è chiuso.
+     *
+     * @param poll La richiesta
+     * @param priority La priorità della richiesta
+     * @throws InterruptedIOException Se l'attesa della richiesta precedente è stata interrotta
+     */
+    public void submit(Poll poll, Priority priority) throws InterruptedIOException {
+        if (poll == null || priority == null) {
+            throw new IllegalArgumentException("Bad parameters");
+        }
+
+        poll.begin(priority, sequence.getAndIncrement());
+        enqueue(poll);
+    }
+
+    /**
+     * Mette in coda una richiesta, oppure la fa fallire se la coda è piena o l'oggetto è chiuso
+     */
+    private void enqueue(Request request) {
+        if (closed) {
+            request.fail(new IOException("Driver closed"));
+        } else if (pending.incrementAndGet() > capacity) {
+            pending.decrementAndGet();
+            request.fail(new RejectedExecutionException("Request queue full"));
+        } else {
+            queue.add(request);
+
+            // Se nel frattempo l'oggetto è stato chiuso, la richiesta potrebbe non essere eseguita
+            if (closed && queue.remove(request)) {
+                request.fail(new IOException("Driver closed"));
+            }
+        }
+    }
+
+    /**
+     * @return Numero di richieste in attesa di essere eseguite
+     */
+    public int getQueueSize() {
+        return Math.max(pending.get(), 0);
+    }
+
+    /**
+     * @return Stringa corrispondente al bus del driver
+     */
+    public String getMyBus() {
+        return driver.getMyBus();
+    }
+
+    /**
+     * @return Il driver usato. Non deve essere usato direttamente per effettuare richieste,
+     * ma solo per consultarne le statistiche.
+     */
+    public DriverDWM getDriver() {
+        return driver;
+    }
+
+    /**
+     * Attende il completamento di un future restituito da questa classe, riportando le eventuali
+     * eccezioni del driver così come sono state lanciate
+     *
+     * @param future Il future da attendere
+     * @param <T> Il tipo del risultato
+     * @return Il risultato dell'operazione
+     * @throws IOException Se l'operazione è fallita per un problema di comunicazione, oppure se
+     * l'attesa è stata interrotta
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the DWM");
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Rilancia l'eccezione con cui è fallita un'operazione: le IOException, le eccezioni non
+     * controllate e gli errori così come sono, le altre racchiuse in una IOException
+     *
+     * @param cause L'eccezione
+     * @return Non ritorna mai: il tipo permette di scrivere "throw rethrow(cause)"
+     */
+    private static IOException rethrow(Throwable cause) throws IOException {
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IOException(cause);
+    }
+
+    /**
+     * Termina il thread di I/O, facendo fallire le richieste ancora in coda, e chiude il driver.
+     * Se una richiesta è in esecuzione, ne attende il termine senza interromperla: il thread di
+     * I/O viene interrotto solo se è in attesa di una richiesta.
+     */
+    public void close() {
+        synchronized (idleLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (idle) {
+                ioThread.interrupt();
+            }
+        }
+
+        // Se invocato da un'operazione in esecuzione nel thread di I/O, non può attenderne il termine
+        if (Thread.currentThread() != ioThread) {
+            try {
+                ioThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            driver.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception closing the driver", e);
+        }
+    }
+}
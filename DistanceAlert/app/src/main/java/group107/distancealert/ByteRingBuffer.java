@@ -0,0 +1,179 @@
+package group107.distancealert;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Buffer circolare di byte lock-free, con un solo thread produttore e un solo thread consumatore.
+ * Il produttore (ad esempio il thread che riceve i dati dalla UART) non si blocca mai: se il
+ * buffer è pieno i byte in eccesso vengono scartati e conteggiati.
+ * Il consumatore può attendere l'arrivo di nuovi dati senza usare lock e senza allocare memoria.
+ */
+class ByteRingBuffer {
+    /**
+     * Array circolare e maschera usata per calcolare le posizioni (la capacità è una potenza di 2)
+     */
+    private final byte[] buffer;
+    private final int mask;
+
+    /**
+     * Posizione assoluta del prossimo byte da leggere (modificata solo dal consumatore) e del
+     * prossimo byte da scrivere (modificata solo dal produttore)
+     */
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Contatore dei byte scartati perché il buffer era pieno
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Thread consumatore in attesa di dati, da risvegliare quando arrivano
+     */
+    private volatile Thread waiter;
+
+    /**
+     * Indica se il buffer è stato chiuso, ovvero se non arriveranno più dati
+     */
+    private volatile boolean closed;
+
+    /**
+     * Crea un buffer circolare
+     *
+     * @param capacity Capacità in byte, deve essere una potenza di 2
+     * @throws IllegalArgumentException Se la capacità non è una potenza di 2
+     */
+    ByteRingBuffer(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of 2");
+        }
+
+        buffer = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Scrive dei byte nel buffer. Da usare solo dal thread produttore.
+     *
+     * @param source Array contenente i byte da scrivere
+     * @param offset Posizione del primo byte da scrivere
+     * @param length Numero di byte da scrivere
+     * @return Numero di byte effettivamente scritti
+     */
+    int write(byte[] source, int offset, int length) {
+        long t = tail.get();
+        int free = buffer.length - (int) (t - head.get());
+        int count = Math.min(free, length);
+
+        for (int i = 0; i < count; i++) {
+            buffer[(int) (t + i) & mask] = source[offset + i];
+        }
+        // Scrittura volatile completa: deve essere visibile prima della lettura di waiter, che
+        // await() imposta prima di controllare i byte disponibili, altrimenti il risveglio può
+        // andare perso
+        tail.set(t + count);
+
+        if (count < length) {
+            dropped.addAndGet(length - count);
+        }
+
+        // Risveglia il consumatore, se in attesa
+        Thread w = waiter;
+        if (w != null && count > 0) {
+            LockSupport.unpark(w);
+        }
+        return count;
+    }
+
+    /**
+     * Legge i byte disponibili, senza bloccarsi. Da usare solo dal thread consumatore.
+     *
+     * @param destination Array in cui salvare i byte letti
+     * @param offset Posizione in cui salvare il primo byte
+     * @param length Numero massimo di byte da leggere
+     * @return Numero di byte letti
+     */
+    int read(byte[] destination, int offset, int length) {
+        long h = head.get();
+        int count = Math.min((int) (tail.get() - h), length);
+
+        for (int i = 0; i < count; i++) {
+            destination[offset + i] = buffer[(int) (h + i) & mask];
+        }
+        head.lazySet(h + count);
+        return count;
+    }
+
+    /**
+     * @return Numero di byte disponibili per la lettura
+     */
+    int available() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Scarta tutti i byte disponibili. Da usare solo dal thread consumatore, oppure dal
+     * produttore mentre il consumatore attende che lo scarto sia completato.
+     */
+    void clear() {
+        head.lazySet(tail.get());
+    }
+
+    /**
+     * Attende che ci siano byte disponibili, al massimo per il tempo indicato.
+     * Da usare solo dal thread consumatore.
+     *
+     * @param timeoutNanos Tempo d'attesa massimo, in nanosecondi
+     * @return true se ci sono byte disponibili, false se il tempo è scaduto o il buffer è chiuso
+     * @throws InterruptedIOException Se il thread viene interrotto durante l'attesa
+     */
+    boolean await(long timeoutNanos) throws InterruptedIOException {
+        if (available() > 0) {
+            return true;
+        }
+
+        long deadline = System.nanoTime() + timeoutNanos;
+        waiter = Thread.currentThread();
+        try {
+            long remaining;
+            while (available() == 0 && !closed
+                    && (remaining = deadline - System.nanoTime()) > 0) {
+                // parkNanos ritorna subito se il thread è interrotto: non deve continuare a girare
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Interrupted while waiting for data");
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            waiter = null;
+        }
+        return available() > 0;
+    }
+
+    /**
+     * Chiude il buffer e risveglia il consumatore eventualmente in attesa
+     */
+    void close() {
+        closed = true;
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    /**
+     * @return true se il buffer è stato chiuso
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return Numero di byte scartati perché il buffer era pieno
+     */
+    long getDroppedBytes() {
+        return dropped.get();
+    }
+}
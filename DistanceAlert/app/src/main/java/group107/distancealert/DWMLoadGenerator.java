@@ -0,0 +1,485 @@
+package group107.distancealert;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generatore di carico sintetico: simula molti tag in movimento visti da più moduli DWM, per
+ * misurare il comportamento del DistanceController con centinaia di tag.
+ * Una risposta di dwm_loc_get contiene al più MAX_TAGS_PER_MODULE tag, quindi i tag vengono
+ * divisi tra più moduli simulati, ciascuno accessibile come FullDuplexTransport (via SPI, senza
+ * latenza) e collegabile a un DriverDWM.
+ * A ogni intervallo di aggiornamento dei moduli i tag si muovono secondo il modello di moto
+ * scelto e vengono misurati con rumore gaussiano. Si possono inoltre simulare:
+ * <ul>
+ * <li>perdite di misure: il tag manca dalla risposta per un aggiornamento;</li>
+ * <li>letture bloccate: il modulo riporta per un certo tempo sempre la stessa misura, come fa
+ * con un tag fuori portata, e il controller deve dichiarare il tag disconnesso per inattività;</li>
+ * <li>tempeste di riconnessioni: periodicamente una frazione dei tag viene riportata con qualità
+ * nulla e poi torna, tutta insieme, a essere misurata.</li>
+ * </ul>
+ * Lo scenario dipende solo dal seme e dal numero di aggiornamenti trascorsi: i moduli seguono il
+ * tempo reale, mentre advance() permette di generare gli aggiornamenti a richiesta, ad esempio
+ * nei benchmark. Tutti i metodi sono synchronized.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DWMLoadGenerator {
+    /**
+     * Modelli di moto dei tag: fermi, in moto rettilineo uniforme avanti e indietro tra le
+     * distanze minima e massima, in passeggiata casuale oppure in oscillazione sinusoidale
+     * attorno alla distanza iniziale
+     */
+    public enum Motion {
+        STATIC,
+        LINEAR,
+        RANDOM_WALK,
+        OSCILLATING
+    }
+
+    /**
+     * Numero massimo di tag in una risposta di dwm_loc_get, limitato dal byte di lunghezza della
+     * risposta, che comprende anche il TLV di errore e quello della posizione del modulo
+     */
+    public static final int MAX_TAGS_PER_MODULE = DWMSimulator.MAX_TAGS;
+
+    /**
+     * Distanze minima e massima dei tag (in mm) e ampiezza delle oscillazioni
+     */
+    private static final int MIN_DISTANCE = 300;
+    private static final int MAX_DISTANCE = 30000;
+    private static final int OSCILLATION_AMPLITUDE = 2000;
+
+    /**
+     * Byte di una risposta prima dei dati dei tag: TLV di errore, TLV della posizione del
+     * modulo, tipo e lunghezza del TLV delle distanze e numero di tag
+     */
+    private static final int HEADER_LENGTH = 3 + 2 + 13 + 2 + 1;
+
+    private final int tagCount;
+    private final Random random;
+    private final Module[] modules;
+    private final long start = System.nanoTime();
+
+    /**
+     * Parametri dello scenario
+     */
+    private Motion motion = Motion.RANDOM_WALK;
+    private double speed = 500.0;
+    private double noise = 20.0;
+    private double dropoutProbability = 0.0;
+    private double stuckProbability = 0.0;
+    private int stuckUpdates = 0;
+    private int stormPeriod = 0;
+    private int stormUpdates = 0;
+    private double stormFraction = 0.0;
+    private int updateRate = 1;
+
+    /**
+     * Stato dei tag, memorizzato in array paralleli: distanza reale, velocità (in mm per
+     * aggiornamento), fase dell'oscillazione, ultima misura riportata con la relativa qualità,
+     * aggiornamento fino al quale la lettura è bloccata o il tag è nella tempesta, presenza
+     * nell'ultimo aggiornamento
+     */
+    private final double[] distances;
+    private final double[] velocities;
+    private final double[] phases;
+    private final int[] centers;
+    private final int[] measuredDistances;
+    private final int[] measuredQualities;
+    private final long[] stuckUntil;
+    private final long[] stormUntil;
+    private final boolean[] present;
+
+    /**
+     * Numero di aggiornamenti generati ed eventi simulati
+     */
+    private long updates = 0;
+    private long dropouts = 0;
+    private long stuckReadings = 0;
+    private long storms = 0;
+
+    /**
+     * Costruttore: crea i tag, a distanze casuali, e i moduli che li vedono
+     *
+     * @param tagCount Numero di tag, da 1 a 65535
+     * @param seed Seme dei numeri casuali, che rende lo scenario riproducibile
+     * @throws IllegalArgumentException Se il numero di tag non è valido
+     */
+    public DWMLoadGenerator(int tagCount, long seed) {
+        if (tagCount < 1 || tagCount > 0xffff) {
+            throw new IllegalArgumentException("Bad tag count");
+        }
+
+        this.tagCount = tagCount;
+        random = new Random(seed);
+        distances = new double[tagCount];
+        velocities = new double[tagCount];
+        phases = new double[tagCount];
+        centers = new int[tagCount];
+        measuredDistances = new int[tagCount];
+        measuredQualities = new int[tagCount];
+        stuckUntil = new long[tagCount];
+        stormUntil = new long[tagCount];
+        present = new boolean[tagCount];
+
+        for (int i = 0; i < tagCount; i++) {
+            centers[i] = MIN_DISTANCE + OSCILLATION_AMPLITUDE
+                    + random.nextInt(MAX_DISTANCE - MIN_DISTANCE - 2 * OSCILLATION_AMPLITUDE);
+            distances[i] = centers[i];
+            phases[i] = 2 * Math.PI * random.nextDouble();
+            measuredDistances[i] = centers[i];
+            measuredQualities[i] = 100;
+            present[i] = true;
+        }
+
+        modules = new Module[(tagCount + MAX_TAGS_PER_MODULE - 1) / MAX_TAGS_PER_MODULE];
+        for (int m = 0; m < modules.length; m++) {
+            modules[m] = new Module(m);
+        }
+        setMotion(Motion.RANDOM_WALK, speed);
+    }
+
+    /**
+     * Imposta il modello di moto dei tag. Ogni tag ha una velocità casuale, tra metà e una volta
+     * e mezza quella indicata.
+     *
+     * @param motion Il modello di moto
+     * @param speed_mm_s La velocità media dei tag, in mm/s
+     * @throws IllegalArgumentException Se il modello è null o la velocità è negativa
+     */
+    public synchronized void setMotion(Motion motion, double speed_mm_s) {
+        if (motion == null || speed_mm_s < 0) {
+            throw new IllegalArgumentException("Bad motion");
+        }
+
+        this.motion = motion;
+        speed = speed_mm_s;
+        double step = speed_mm_s * updateRate / 10.0;
+        for (int i = 0; i < tagCount; i++) {
+            velocities[i] = step * (0.5 + random.nextDouble()) * (random.nextBoolean() ? 1 : -1);
+        }
+    }
+
+    /**
+     * Imposta il rumore delle misure di distanza. Con rumore nullo e tag fermi le misure non
+     * cambiano mai, quindi il controller considera i tag disconnessi come per le letture bloccate.
+     *
+     * @param sigma_mm Deviazione standard del rumore gaussiano, in mm
+     * @throws IllegalArgumentException Se la deviazione standard è negativa
+     */
+    public synchronized void setRangeNoise(double sigma_mm) {
+        if (sigma_mm < 0) {
+            throw new IllegalArgumentException("Noise must be positive");
+        }
+        noise = sigma_mm;
+    }
+
+    /**
+     * Imposta la probabilità che un tag manchi dalla risposta di un aggiornamento
+     *
+     * @param probability La probabilità, tra 0 e 1
+     * @throws IllegalArgumentException Se la probabilità non è valida
+     */
+    public synchronized void setDropoutProbability(double probability) {
+        checkProbability(probability);
+        dropoutProbability = probability;
+    }
+
+    /**
+     * Imposta le letture bloccate: a ogni aggiornamento un tag può rimanere bloccato sull'ultima
+     * misura per il numero di aggiornamenti indicato
+     *
+     * @param probability La probabilità che una lettura si blocchi, tra 0 e 1
+     * @param updates La durata del blocco, in aggiornamenti
+     * @throws IllegalArgumentException Se la probabilità o la durata non sono valide
+     */
+    public synchronized void setStuckReadings(double probability, int updates) {
+        checkProbability(probability);
+        if (updates < 0) {
+            throw new IllegalArgumentException("Bad duration");
+        }
+        stuckProbability = probability;
+        stuckUpdates = updates;
+    }
+
+    /**
+     * Imposta le tempeste di riconnessioni: ogni period aggiornamenti una frazione dei tag viene
+     * riportata con qualità nulla per duration aggiornamenti, e poi si riconnette tutta insieme
+     *
+     * @param period Il periodo delle tempeste, in aggiornamenti, oppure 0 per disattivarle
+     * @param duration La durata della disconnessione, in aggiornamenti
+     * @param fraction La frazione dei tag coinvolti, tra 0 e 1
+     * @throws IllegalArgumentException Se i parametri non sono validi
+     */
+    public synchronized void setReconnectStorms(int period, int duration, double fraction) {
+        checkProbability(fraction);
+        if (period < 0 || duration < 0 || (period > 0 && duration >= period)) {
+            throw new IllegalArgumentException("Bad storm period or duration");
+        }
+        stormPeriod = period;
+        stormUpdates = duration;
+        stormFraction = fraction;
+    }
+
+    /**
+     * Imposta l'intervallo di aggiornamento dei moduli, riportato anche da dwm_upd_rate_get
+     *
+     * @param rate L'intervallo, in multipli di 100 ms
+     * @throws IllegalArgumentException Se l'intervallo non è positivo
+     */
+    public synchronized void setUpdateRate(int rate) {
+        if (rate < 1 || rate > 0xffff) {
+            throw new IllegalArgumentException("Bad update rate");
+        }
+        updateRate = rate;
+        setMotion(motion, speed);
+    }
+
+    /**
+     * @return Numero di moduli simulati
+     */
+    public int getModuleCount() {
+        return modules.length;
+    }
+
+    /**
+     * @param module L'indice del modulo
+     * @return Il trasporto con cui comunicare con il modulo
+     */
+    public FullDuplexTransport getTransport(int module) {
+        return modules[module];
+    }
+
+    /**
+     * Crea un driver per ciascun modulo simulato, da passare al DistanceController
+     *
+     * @return I driver, uno per modulo
+     */
+    public DriverDWM[] openDrivers() {
+        DriverDWM[] drivers = new DriverDWM[modules.length];
+        for (int m = 0; m < modules.length; m++) {
+            drivers[m] = new DriverDWM(modules[m]);
+        }
+        return drivers;
+    }
+
+    /**
+     * Genera l'aggiornamento successivo di tutti i tag, indipendentemente dal tempo reale
+     */
+    public synchronized void advance() {
+        step();
+    }
+
+    /**
+     * Scrive la risposta di dwm_loc_get di un modulo con i dati dell'ultimo aggiornamento
+     *
+     * @param module L'indice del modulo
+     * @param response Buffer in cui scrivere la risposta, di almeno DriverDWM.MAX_RESPONSE_LENGTH byte
+     * @return Numero di byte della risposta
+     */
+    public synchronized int writeLocation(int module, byte[] response) {
+        int first = module * MAX_TAGS_PER_MODULE;
+        int last = Math.min(first + MAX_TAGS_PER_MODULE, tagCount);
+
+        response[0] = 0x40;
+        response[1] = 1;
+        response[2] = 0;
+        response[3] = 0x41;
+        response[4] = 13;
+        Arrays.fill(response, 5, 17, (byte) 0);
+        response[17] = 100;
+        response[18] = 0x49;
+
+        int index = HEADER_LENGTH;
+        int n = 0;
+        for (int i = first; i < last; i++) {
+            if (!present[i]) {
+                continue;
+            }
+            n++;
+            index = put(response, index, i + 1, 2);
+            index = put(response, index, measuredDistances[i], 4);
+            index = put(response, index, measuredQualities[i], 1);
+            index = put(response, index, measuredDistances[i], 4);
+            index = put(response, index, 0, 4);
+            index = put(response, index, 0, 4);
+            index = put(response, index, measuredQualities[i], 1);
+        }
+        response[19] = (byte) (1 + n * DWMLocationView.BYTES_PER_ENTRY);
+        response[20] = (byte) n;
+        return index;
+    }
+
+    /**
+     * @return Numero di aggiornamenti generati
+     */
+    public synchronized long getUpdateCount() {
+        return updates;
+    }
+
+    /**
+     * @return Numero di misure perse
+     */
+    public synchronized long getDropoutCount() {
+        return dropouts;
+    }
+
+    /**
+     * @return Numero di letture che si sono bloccate
+     */
+    public synchronized long getStuckReadingCount() {
+        return stuckReadings;
+    }
+
+    /**
+     * @return Numero di tempeste di riconnessioni
+     */
+    public synchronized long getStormCount() {
+        return storms;
+    }
+
+    /**
+     * Genera gli aggiornamenti dei moduli trascorsi fino all'istante attuale
+     */
+    private synchronized void advanceToNow() {
+        long elapsed = (System.nanoTime() - start) / (updateRate * 100000000L);
+        while (updates < elapsed + 1) {
+            step();
+        }
+    }
+
+    /**
+     * Genera un aggiornamento: muove i tag e ne effettua le misure
+     */
+    private void step() {
+        long update = ++updates;
+
+        // Inizio di una tempesta: una frazione dei tag viene scelta a caso
+        if (stormPeriod > 0 && update % stormPeriod == 0) {
+            storms++;
+            for (int i = 0; i < tagCount; i++) {
+                if (random.nextDouble() < stormFraction) {
+                    stormUntil[i] = update + stormUpdates;
+                }
+            }
+        }
+
+        for (int i = 0; i < tagCount; i++) {
+            move(i, update);
+
+            present[i] = true;
+            if (update < stormUntil[i]) {
+                // Tag nella tempesta: riportato con qualità nulla
+                measuredQualities[i] = 0;
+            } else if (update < stuckUntil[i]) {
+                // Lettura bloccata: il modulo riporta sempre la stessa misura
+                continue;
+            } else if (stuckProbability > 0 && random.nextDouble() < stuckProbability) {
+                stuckUntil[i] = update + stuckUpdates;
+                stuckReadings++;
+            } else if (dropoutProbability > 0 && random.nextDouble() < dropoutProbability) {
+                present[i] = false;
+                dropouts++;
+            } else {
+                int measured = (int) Math.round(distances[i] + random.nextGaussian() * noise);
+                measuredDistances[i] = Math.max(0, measured);
+                measuredQualities[i] = 60 + random.nextInt(41);
+            }
+        }
+    }
+
+    /**
+     * Sposta un tag secondo il modello di moto
+     */
+    private void move(int i, long update) {
+        switch (motion) {
+            case LINEAR:
+                distances[i] += velocities[i];
+                break;
+
+            case RANDOM_WALK:
+                double limit = speed * updateRate / 10.0 * 1.5;
+                velocities[i] += random.nextGaussian() * limit * 0.2;
+                velocities[i] = Math.max(-limit, Math.min(limit, velocities[i]));
+                distances[i] += velocities[i];
+                break;
+
+            case OSCILLATING:
+                // Velocità massima pari a quella del tag
+                double omega = Math.abs(velocities[i]) / OSCILLATION_AMPLITUDE;
+                distances[i] = centers[i] + OSCILLATION_AMPLITUDE * Math.sin(omega * update + phases[i]);
+                break;
+
+            default:
+                break;
+        }
+
+        // Agli estremi il tag inverte la direzione
+        if (distances[i] < MIN_DISTANCE || distances[i] > MAX_DISTANCE) {
+            distances[i] = Math.max(MIN_DISTANCE, Math.min(MAX_DISTANCE, distances[i]));
+            velocities[i] = -velocities[i];
+        }
+    }
+
+    private static void checkProbability(double probability) {
+        if (!(probability >= 0 && probability <= 1)) {
+            throw new IllegalArgumentException("Probability must be between 0 and 1");
+        }
+    }
+
+    /**
+     * Scrive un valore in notazione Little Endian
+     *
+     * @return La posizione successiva al valore
+     */
+    private static int put(byte[] buffer, int index, int value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            buffer[index + i] = (byte) (value >> (8 * i));
+        }
+        return index + bytes;
+    }
+
+    /**
+     * Modulo simulato, che vede una parte dei tag. Comunica come via SPI e risponde alla
+     * richiesta successiva senza latenza, così che il tempo misurato sia quello del controller.
+     */
+    private class Module extends SpiSlaveTransport {
+        private final int index;
+        private final byte[] response = new byte[DriverDWM.MAX_RESPONSE_LENGTH];
+
+        Module(int index) {
+            super("LOAD" + index);
+            this.index = index;
+        }
+
+        /**
+         * Prepara la risposta a dwm_loc_get (0x0C), a dwm_upd_rate_get (0x04) o, per le altre
+         * API, il TLV di errore con codice 1
+         */
+        @Override
+        protected void prepareResponse(byte[] request, int length) {
+            byte type = request[0];
+            if (type == 0x0C) {
+                advanceToNow();
+                setResponse(response, writeLocation(index, response));
+                return;
+            }
+
+            response[0] = 0x40;
+            response[1] = 1;
+            response[2] = (byte) (type == 0x04 ? 0 : 1);
+            int responseLength = 3;
+            if (type == 0x04) {
+                int rate;
+                synchronized (DWMLoadGenerator.this) {
+                    rate = updateRate;
+                }
+                response[3] = 0x46;
+                response[4] = 4;
+                responseLength = put(response, 5, rate, 2);
+                responseLength = put(response, responseLength, rate, 2);
+            }
+            setResponse(response, responseLength);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package group107.distancealert;
+
+/**
+ * Vista "flyweight" sulla risposta grezza dell'API dwm_loc_get (0x0C) del modulo DWM.
+ * Non copia la risposta e non crea oggetti: i dati di ciascun tag vengono decodificati solo
+ * quando richiesti, tramite metodi indicizzati che leggono direttamente dal buffer.
+ * Sono supportate entrambe le liste di distanze di dwm_loc_get. La lista 0x49, inviata dal modulo
+ * configurato come tag, contiene per ogni nodo l'indirizzo breve (2 byte), la distanza (4 byte),
+ * la qualità della distanza (1 byte), la posizione x, y, z (4 byte ciascuna) e la qualità della
+ * posizione (1 byte). La lista 0x48, inviata dal modulo configurato come anchor, contiene per ogni
+ * nodo l'indirizzo UWB completo (8 byte), la distanza (4 byte) e la qualità (1 byte), senza la
+ * posizione, che risulta nulla. In entrambi i casi tagID() restituisce l'indirizzo breve, ovvero
+ * i 16 bit meno significativi dell'indirizzo UWB, mentre address() restituisce l'indirizzo
+ * completo se presente.
+ * Lo stesso oggetto può essere riutilizzato per risposte successive tramite il metodo wrap;
+ * il buffer non deve essere modificato finché la vista è in uso.
+ * Si noti che il modulo DWM usa la notazione Little Endian.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DWMLocationView {
+    /**
+     * Numero di byte usati dal modulo DWM per descrivere i dati relativi a ciascun tag
+     */
+    public static final int BYTES_PER_ENTRY = 20;
+
+    /**
+     * Numero di byte di ciascun elemento delle liste 0x48: indirizzo UWB (8 byte), distanza
+     * (4 byte) e qualità (1 byte)
+     */
+    public static final int BYTES_PER_ADDRESS_ENTRY = 13;
+
+    /**
+     * Tipi dei TLV contenenti le distanze: lista con indirizzi UWB completi e senza posizioni
+     * (modulo configurato come anchor), oppure lista con indirizzi brevi e posizioni (modulo
+     * configurato come tag)
+     */
+    private static final int TYPE_DISTANCES = 0x48;
+    private static final int TYPE_DISTANCES_AND_POSITIONS = 0x49;
+
+    private byte[] buffer;
+    private int entriesOffset;
+    private int count;
+
+    /**
+     * Byte occupati da ciascun elemento della lista, byte dell'indirizzo che precede la distanza
+     * e presenza della posizione
+     */
+    private int stride;
+    private int addressLength;
+    private boolean hasPosition;
+
+    /**
+     * Associa la vista a una nuova risposta, controllandone la validità
+     *
+     * @param response Buffer contenente la risposta del modulo
+     * @param length Numero di byte della risposta
+     * @return Questa vista, per comodità
+     * @throws IllegalArgumentException Se la risposta non è una risposta valida di dwm_loc_get
+     */
+    public DWMLocationView wrap(byte[] response, int length) throws IllegalArgumentException {
+        buffer = null;
+        count = 0;
+
+        if (response == null || length < 3 || length > response.length
+                || response[0] != 0x40 || response[2] != 0) {
+            throw new IllegalArgumentException("Dati ricevuti dal modulo non validi.");
+        }
+
+        // Cerca il TLV con le distanze, saltando gli altri (ad esempio quello della posizione)
+        int offset = 3;
+        while (offset + 2 <= length) {
+            int type = response[offset] & 0xff;
+            int valueLength = response[offset + 1] & 0xff;
+            int value = offset + 2;
+
+            if (value + valueLength > length) {
+                break;
+            }
+
+            if ((type == TYPE_DISTANCES_AND_POSITIONS || type == TYPE_DISTANCES) && valueLength >= 1) {
+                int n = response[value] & 0xff;
+                boolean positions = type == TYPE_DISTANCES_AND_POSITIONS;
+                int entryLength = positions ? BYTES_PER_ENTRY : BYTES_PER_ADDRESS_ENTRY;
+                if (1 + n * entryLength > valueLength) {
+                    break;
+                }
+
+                buffer = response;
+                entriesOffset = value + 1;
+                count = n;
+                stride = entryLength;
+                addressLength = positions ? 2 : 8;
+                hasPosition = positions;
+                return this;
+            }
+
+            offset = value + valueLength;
+        }
+
+        throw new IllegalArgumentException("Dati ricevuti dal modulo non validi.");
+    }
+
+    /**
+     * @return Numero di tag presenti nella risposta
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param i Indice del tag nella risposta
+     * @return L'id del tag, ovvero il suo indirizzo breve (16 bit)
+     */
+    public int tagID(int i) {
+        int index = indexOf(i);
+        return (buffer[index] & 0xff) | ((buffer[index + 1] & 0xff) << 8);
+    }
+
+    /**
+     * @param i Indice del tag nella risposta
+     * @return L'indirizzo del tag: l'indirizzo UWB di 64 bit nelle liste 0x48, quello breve di
+     * 16 bit nelle liste 0x49
+     */
+    public long address(int i) {
+        int index = indexOf(i);
+        long address = 0;
+        for (int b = addressLength - 1; b >= 0; b--) {
+            address = (address << 8) | (buffer[index + b] & 0xff);
+        }
+        return address;
+    }
+
+    /**
+     * @param i Indice del tag nella risposta
+     * @return La distanza del tag, in millimetri
+     */
+    public int distance(int i) {
+        return readInt(indexOf(i) + addressLength);
+    }
+
+    /**
+     * @param i Indice del tag nella risposta
+     * @return Il fattore di qualità della distanza misurata (0-100)
+     */
+    public int quality(int i) {
+        return buffer[indexOf(i) + addressLength + 4] & 0xff;
+    }
+
+    /**
+     * @return true se la lista contiene anche la posizione di ciascun elemento (tipo 0x49)
+     */
+    public boolean hasPosition() {
+        return hasPosition;
+    }
+
+    /**
+     * @param i Indice del tag nella risposta
+     * @return La coordinata x della posizione del tag, in millimetri, 0 se non presente
+     */
+    public int x(int i) {
+        int index = indexOf(i);
+        return hasPosition ? readInt(index + 7) : 0;
+    }
+
+    /**
+     * @param i Indice del tag nella risposta
+     * @return La coordinata y della posizione del tag, in millimetri, 0 se non presente
+     */
+    public int y(int i) {
+        int index = indexOf(i);
+        return hasPosition ? readInt(index + 11) : 0;
+    }
+
+    /**
+     * @param i Indice del tag nella risposta
+     * @return La coordinata z della posizione del tag, in millimetri, 0 se non presente
+     */
+    public int z(int i) {
+        int index = indexOf(i);
+        return hasPosition ? readInt(index + 15) : 0;
+    }
+
+    /**
+     * @param i Indice del tag nella risposta
+     * @return Il fattore di qualità della posizione del tag (0-100), 0 se non presente
+     */
+    public int positionQuality(int i) {
+        int index = indexOf(i);
+        return hasPosition ? buffer[index + 19] & 0xff : 0;
+    }
+
+    /**
+     * Legge un intero di 4 byte in notazione Little Endian
+     */
+    private int readInt(int index) {
+        return (buffer[index] & 0xff) | ((buffer[index + 1] & 0xff) << 8)
+                | ((buffer[index + 2] & 0xff) << 16) | ((buffer[index + 3] & 0xff) << 24);
+    }
+
+    /**
+     * Calcola la posizione nel buffer dei dati di un tag
+     */
+    private int indexOf(int i) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", size: " + count);
+        }
+        return entriesOffset + i * stride;
+    }
+}
@@ -0,0 +1,208 @@
+package group107.distancealert;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registra su file, in formato binario compatto, tutte le risposte ricevute dai moduli DWM, così
+ * che una sessione possa essere riprodotta in seguito con un DWMReplayTransport.
+ * Il file viene scritto tramite una porzione mappata in memoria, estesa di REGION_SIZE byte alla
+ * volta: registrare una risposta è una copia in memoria, senza chiamate di sistema. La parte non
+ * ancora scritta della porzione contiene solo byte 0, quindi termina la registrazione anche se
+ * il file non viene chiuso.
+ * Struttura del file (little endian):
+ * <ul>
+ * <li>intestazione: MAGIC, VERSION (int) e istante di inizio della registrazione
+ * (System.currentTimeMillis(), long);</li>
+ * <li>RECORD_BUS: id del bus (1 byte), lunghezza del nome (1 byte) e nome in UTF-8, scritto la
+ * prima volta che viene registrata una risposta di quel bus;</li>
+ * <li>RECORD_RESPONSE: nanosecondi trascorsi dall'inizio della registrazione (long, monotono),
+ * id del bus, tipo della API richiesta e lunghezza della risposta (1 byte ciascuno), seguiti dai
+ * byte della risposta;</li>
+ * <li>un byte 0 (RECORD_END) o la fine del file terminano la registrazione.</li>
+ * </ul>
+ * Un DWMRecorder può essere condiviso da più DriverDWM: i metodi sono synchronized.
+ * Quando si ha finito di registrare è importante invocare il metodo close, che riduce il file
+ * alla parte effettivamente scritta.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DWMRecorder {
+    /**
+     * Stringa utile per log della classe DWMRecorder
+     */
+    private static final String TAG = "DWMRecorder";
+
+    /**
+     * Byte iniziali e versione del formato del file
+     */
+    static final int MAGIC = 0x524d5744;
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 16;
+
+    /**
+     * Tipi dei record del file
+     */
+    static final byte RECORD_END = 0;
+    static final byte RECORD_BUS = 1;
+    static final byte RECORD_RESPONSE = 2;
+
+    /**
+     * Dimensione delle porzioni del file mappate in memoria (in byte)
+     */
+    private static final int REGION_SIZE = 1 << 20;
+
+    /**
+     * Spazio massimo occupato dalla registrazione di una risposta: record del bus con il nome
+     * più lungo possibile e record della risposta più lunga possibile
+     */
+    private static final int MAX_RECORD_LENGTH = (3 + 0xff) + (12 + DriverDWM.MAX_RESPONSE_LENGTH);
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long start = System.nanoTime();
+
+    /**
+     * Porzione del file mappata in memoria e posizione nel file del suo inizio
+     */
+    private MappedByteBuffer region;
+    private long regionStart;
+
+    /**
+     * Id assegnati ai bus già registrati
+     */
+    private final Map<String, Integer> busIDs = new HashMap<>();
+
+    private long recordCount = 0;
+    private boolean closed = false;
+
+    /**
+     * Crea il file della registrazione, sovrascrivendolo se esiste già
+     *
+     * @param path Il file su cui registrare
+     * @throws IOException Se avviene un errore nella creazione del file
+     */
+    public DWMRecorder(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        try {
+            channel.truncate(0);
+            mapRegion(0);
+            region.putInt(MAGIC);
+            region.putInt(VERSION);
+            region.putLong(System.currentTimeMillis());
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Registra una risposta ricevuta da un modulo. Se la scrittura fallisce la registrazione
+     * viene terminata, senza interrompere la comunicazione con il modulo.
+     *
+     * @param busName Il bus del modulo che ha inviato la risposta
+     * @param type Il tipo della API richiesta
+     * @param response Buffer contenente la risposta
+     * @param length Numero di byte della risposta
+     */
+    public synchronized void record(String busName, byte type, byte[] response, int length) {
+        if (closed) {
+            return;
+        }
+
+        try {
+            if (region.remaining() < MAX_RECORD_LENGTH) {
+                mapRegion(regionStart + region.position());
+            }
+
+            Integer busID = busIDs.get(busName);
+            if (busID == null) {
+                busID = putBus(busName);
+            }
+
+            region.put(RECORD_RESPONSE);
+            region.putLong(System.nanoTime() - start);
+            region.put(busID.byteValue());
+            region.put(type);
+            region.put((byte) length);
+            region.put(response, 0, length);
+            recordCount++;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Recording stopped", e);
+            close();
+        }
+    }
+
+    /**
+     * @return Numero di risposte registrate
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Termina la registrazione: scrive su disco i dati e riduce il file alla parte scritta
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            long end = regionStart + region.position();
+            region.force();
+            channel.truncate(end);
+        } catch (IOException e) {
+            Log.w(TAG, "Exception closing recording", e);
+        } finally {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Exception closing recording", e);
+            }
+        }
+    }
+
+    /**
+     * Assegna un id a un nuovo bus e ne scrive il record
+     */
+    private int putBus(String busName) {
+        byte[] name = busName.getBytes(StandardCharsets.UTF_8);
+        if (busIDs.size() > 0xff || name.length > 0xff) {
+            throw new IllegalArgumentException("Too many buses or bus name too long");
+        }
+
+        int busID = busIDs.size();
+        region.put(RECORD_BUS);
+        region.put((byte) busID);
+        region.put((byte) name.length);
+        region.put(name);
+        busIDs.put(busName, busID);
+        return busID;
+    }
+
+    /**
+     * Mappa in memoria una nuova porzione del file, estendendolo
+     *
+     * @param position La posizione nel file dell'inizio della porzione
+     * @throws IOException Se avviene un errore nella mappatura
+     */
+    private void mapRegion(long position) throws IOException {
+        if (region != null) {
+            region.force();
+        }
+        region = channel.map(FileChannel.MapMode.READ_WRITE, position, REGION_SIZE);
+        region.order(ByteOrder.LITTLE_ENDIAN);
+        regionStart = position;
+    }
+}
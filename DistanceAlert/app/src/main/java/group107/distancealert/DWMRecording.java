@@ -0,0 +1,170 @@
+package group107.distancealert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lettura sequenziale di una registrazione creata da un DWMRecorder. Il file viene mappato in
+ * memoria in sola lettura e le risposte vengono lette una alla volta, senza allocare memoria,
+ * nello stesso ordine in cui sono state registrate.
+ * Non è thread-safe: ogni thread deve usare una propria istanza.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DWMRecording {
+    private final MappedByteBuffer data;
+
+    /**
+     * Istante di inizio della registrazione (System.currentTimeMillis())
+     */
+    private final long startTime;
+
+    /**
+     * Nomi dei bus, indicizzati per id
+     */
+    private final List<String> busNames = new ArrayList<>();
+
+    /**
+     * Dati dell'ultima risposta letta
+     */
+    private long timestamp;
+    private int busID;
+    private byte type;
+    private int length;
+    private final byte[] response = new byte[DriverDWM.MAX_RESPONSE_LENGTH];
+
+    /**
+     * Apre una registrazione
+     *
+     * @param path Il file della registrazione
+     * @throws IOException Se avviene un errore di lettura o il file non è una registrazione valida
+     */
+    public DWMRecording(File path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Recording too large");
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        data.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (data.remaining() < DWMRecorder.HEADER_LENGTH || data.getInt() != DWMRecorder.MAGIC) {
+            throw new IOException("Not a DWM recording");
+        }
+        if (data.getInt() != DWMRecorder.VERSION) {
+            throw new IOException("Unsupported recording version");
+        }
+        startTime = data.getLong();
+    }
+
+    /**
+     * Legge la risposta successiva, i cui dati sono poi disponibili tramite i getter
+     *
+     * @return true se è stata letta una risposta, false se la registrazione è terminata
+     * @throws IOException Se la registrazione è danneggiata
+     */
+    public boolean next() throws IOException {
+        try {
+            while (data.hasRemaining()) {
+                byte record = data.get();
+                switch (record) {
+                    case DWMRecorder.RECORD_END:
+                        return false;
+
+                    case DWMRecorder.RECORD_BUS:
+                        int id = data.get() & 0xff;
+                        byte[] name = new byte[data.get() & 0xff];
+                        data.get(name);
+                        if (id != busNames.size()) {
+                            throw new IOException("Corrupted recording: unexpected bus id");
+                        }
+                        busNames.add(new String(name, StandardCharsets.UTF_8));
+                        break;
+
+                    case DWMRecorder.RECORD_RESPONSE:
+                        timestamp = data.getLong();
+                        busID = data.get() & 0xff;
+                        type = data.get();
+                        length = data.get() & 0xff;
+                        data.get(response, 0, length);
+                        if (busID >= busNames.size()) {
+                            throw new IOException("Corrupted recording: unknown bus id");
+                        }
+                        return true;
+
+                    default:
+                        throw new IOException("Corrupted recording: unknown record " + record);
+                }
+            }
+            return false;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupted recording: truncated record", e);
+        }
+    }
+
+    /**
+     * Torna all'inizio della registrazione
+     */
+    public void rewind() {
+        data.position(DWMRecorder.HEADER_LENGTH);
+        busNames.clear();
+    }
+
+    /**
+     * @return Istante di inizio della registrazione (System.currentTimeMillis())
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return Nanosecondi trascorsi tra l'inizio della registrazione e l'ultima risposta letta
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return I nomi dei bus incontrati finora nella registrazione, in ordine di comparsa
+     */
+    public List<String> getBusNames() {
+        return Collections.unmodifiableList(new ArrayList<>(busNames));
+    }
+
+    /**
+     * @return Il bus del modulo che ha inviato l'ultima risposta letta
+     */
+    public String getBusName() {
+        return busNames.get(busID);
+    }
+
+    /**
+     * @return Il tipo della API richiesta per l'ultima risposta letta
+     */
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * @return Buffer contenente l'ultima risposta letta, valido fino alla lettura successiva
+     */
+    public byte[] getResponse() {
+        return response;
+    }
+
+    /**
+     * @return Numero di byte dell'ultima risposta letta
+     */
+    public int getLength() {
+        return length;
+    }
+}
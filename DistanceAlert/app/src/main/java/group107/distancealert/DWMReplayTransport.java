@@ -0,0 +1,226 @@
+package group107.distancealert;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Trasporto che riproduce le risposte di un modulo registrate da un DWMRecorder, così che una
+ * sessione reale possa essere rielaborata da DriverDWM e DistanceController senza l'hardware.
+ * Il modulo riprodotto comunica come via SPI.
+ * Le risposte a dwm_loc_get (0x0C) seguono il tempo della registrazione, scalato di un fattore
+ * di velocità: a ogni richiesta viene restituita l'ultima risposta registrata entro l'istante
+ * corrispondente, come farebbe il modulo reale con le sue misure. Con MAX_SPEED, invece, ogni
+ * richiesta riceve subito la risposta registrata successiva. Alle altre API viene restituita la
+ * prima risposta registrata per la stessa API, oppure un TLV di successo senza dati; a
+ * dwm_status_get (0x32) sempre quest'ultimo, perché il flag loc_ready registrato non
+ * corrisponde alle risposte riprodotte: il DistanceController considera allora ogni risposta
+ * un nuovo aggiornamento del modulo.
+ * Terminata la registrazione, il modulo smette di rispondere come se fosse scollegato.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DWMReplayTransport extends SpiSlaveTransport {
+    /**
+     * Fattore di velocità con cui le risposte vengono restituite senza seguire il tempo
+     */
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    /**
+     * Tipo della API le cui risposte seguono il tempo della registrazione (dwm_loc_get)
+     */
+    private static final byte LOCATION_TYPE = 0x0C;
+
+    /**
+     * Tipo della API il cui flag loc_ready non viene riprodotto (dwm_status_get)
+     */
+    private static final byte STATUS_TYPE = 0x32;
+
+    /**
+     * Risposta alle API non presenti nella registrazione: TLV di errore con codice 0
+     */
+    private static final byte[] EMPTY_SUCCESS = {0x40, 0x01, 0x00};
+
+    private final DWMRecording recording;
+    private final double speed;
+
+    /**
+     * Prima risposta registrata per ciascuna API diversa da dwm_loc_get, null se assente
+     */
+    private final byte[][] firstResponses = new byte[256][];
+
+    /**
+     * Risposta a dwm_loc_get da restituire e indicazione se la registrazione ne contiene
+     * un'altra, già letta (pending)
+     */
+    private final byte[] location = new byte[DriverDWM.MAX_RESPONSE_LENGTH];
+    private int locationLength = 0;
+    private boolean pending;
+
+    /**
+     * Istante (System.nanoTime()) della prima richiesta e della prima risposta registrata, che
+     * fanno corrispondere il tempo reale a quello della registrazione
+     */
+    private long replayStart = 0;
+    private long recordingStart = 0;
+
+    /**
+     * Numero di risposte a dwm_loc_get restituite e indicazione se la registrazione è terminata
+     */
+    private long replayed = 0;
+    private boolean finished = false;
+
+    /**
+     * Costruttore: apre la registrazione e prepara la riproduzione delle risposte di un bus
+     *
+     * @param path Il file della registrazione
+     * @param busName Il bus di cui riprodurre le risposte, usato anche come nome del trasporto
+     * @param speed Fattore di velocità della riproduzione (1 per il tempo reale), oppure MAX_SPEED
+     * @throws IOException Se la registrazione non è valida o non contiene risposte a dwm_loc_get
+     * del bus richiesto
+     * @throws IllegalArgumentException Se il fattore di velocità non è positivo
+     */
+    public DWMReplayTransport(File path, String busName, double speed) throws IOException {
+        super(busName);
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Speed must be positive");
+        }
+
+        this.recording = new DWMRecording(path);
+        this.speed = speed;
+
+        // Memorizza la prima risposta a ciascuna delle altre API
+        while (recording.next()) {
+            int type = recording.getType() & 0xff;
+            if (recording.getType() != LOCATION_TYPE && recording.getType() != STATUS_TYPE
+                    && firstResponses[type] == null && recording.getBusName().equals(busName)) {
+                firstResponses[type] = Arrays.copyOf(recording.getResponse(), recording.getLength());
+            }
+        }
+
+        recording.rewind();
+        pending = nextLocation();
+        if (!pending) {
+            throw new IOException("No location data recorded for " + busName);
+        }
+    }
+
+    /**
+     * Crea un driver per ciascun bus presente in una registrazione, da passare al
+     * DistanceController per riprodurre l'intera sessione
+     *
+     * @param path Il file della registrazione
+     * @param speed Fattore di velocità della riproduzione (1 per il tempo reale), oppure MAX_SPEED
+     * @return I driver, uno per bus, nell'ordine in cui i bus compaiono nella registrazione
+     * @throws IOException Se la registrazione non è valida
+     * @throws IllegalArgumentException Se il fattore di velocità non è positivo
+     */
+    public static DriverDWM[] openDrivers(File path, double speed) throws IOException {
+        DWMRecording recording = new DWMRecording(path);
+        while (recording.next()) {
+            // Legge tutta la registrazione per conoscere tutti i bus
+        }
+
+        List<String> busNames = recording.getBusNames();
+        DriverDWM[] drivers = new DriverDWM[busNames.size()];
+        try {
+            for (int i = 0; i < drivers.length; i++) {
+                drivers[i] = new DriverDWM(new DWMReplayTransport(path, busNames.get(i), speed));
+            }
+        } catch (IOException e) {
+            // Chiude i driver già creati prima di propagare l'errore
+            for (DriverDWM driver : drivers) {
+                if (driver != null) {
+                    try {
+                        driver.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+            throw e;
+        }
+        return drivers;
+    }
+
+    /**
+     * @return Numero di risposte a dwm_loc_get restituite finora
+     */
+    public synchronized long getReplayedCount() {
+        return replayed;
+    }
+
+    /**
+     * @return true se sono state restituite tutte le risposte registrate
+     */
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Sceglie la risposta a una richiesta, avanzando nella registrazione se serve
+     *
+     * @param request Array contenente la richiesta
+     * @param length Numero di byte della richiesta
+     * @throws IOException Se la registrazione è danneggiata
+     */
+    @Override
+    protected void prepareResponse(byte[] request, int length) throws IOException {
+        byte type = request[0];
+        if (type != LOCATION_TYPE) {
+            byte[] first = firstResponses[type & 0xff];
+            byte[] response = first != null ? first : EMPTY_SUCCESS;
+            setResponse(response, response.length);
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (replayed == 0) {
+            // Prima richiesta: fa corrispondere l'istante attuale alla prima risposta
+            replayStart = now;
+            recordingStart = recording.getTimestamp();
+            takePending();
+        } else if (!pending) {
+            // L'ultima risposta è già stata restituita
+            finished = true;
+        } else if (speed == MAX_SPEED) {
+            // Ogni richiesta riceve la risposta successiva
+            takePending();
+        } else {
+            // Restituisce l'ultima risposta registrata entro l'istante corrispondente
+            long target = recordingStart + (long) ((now - replayStart) * speed);
+            while (pending && recording.getTimestamp() - target <= 0) {
+                takePending();
+            }
+        }
+
+        // Registrazione terminata: il modulo non risponde, come se fosse scollegato
+        if (finished) {
+            return;
+        }
+        setResponse(location, locationLength);
+        replayed++;
+    }
+
+    /**
+     * Rende la risposta già letta quella da restituire e legge la successiva
+     */
+    private void takePending() throws IOException {
+        locationLength = recording.getLength();
+        System.arraycopy(recording.getResponse(), 0, location, 0, locationLength);
+        pending = nextLocation();
+    }
+
+    /**
+     * Legge la successiva risposta a dwm_loc_get del bus
+     *
+     * @return true se è stata trovata, false se la registrazione è terminata
+     */
+    private boolean nextLocation() throws IOException {
+        while (recording.next()) {
+            if (recording.getType() == LOCATION_TYPE && recording.getBusName().equals(getBusName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
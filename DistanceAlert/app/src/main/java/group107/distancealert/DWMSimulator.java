@@ -0,0 +1,612 @@
+package group107.distancealert;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Random;
+
+/**
+ * Simulatore del modulo DWM1001-DEV configurato come tag, a cui si comunica tramite il
+ * trasporto restituito da getTransport(). Come il modulo reale, riporta i nodi visti nella lista
+ * 0x49 di dwm_loc_get, con indirizzo breve e posizione.
+ * Implementa il protocollo TLV del modulo sia nella variante SPI (FullDuplexTransport: byte 0x00
+ * finché la risposta non è pronta, poi il byte di lunghezza e infine la risposta) che in quella
+ * UART (StreamTransport), con una latenza di elaborazione configurabile e una componente
+ * casuale (jitter).
+ * Non usa alcuna classe di Android, quindi può essere eseguito su una normale JVM per fare test
+ * e misurare le prestazioni del DriverDWM e del DistanceController senza l'hardware.
+ * Le API supportate sono: 0x02 (dwm_pos_get), 0x03 (dwm_upd_rate_set),
+ * 0x04 (dwm_upd_rate_get), 0x0C (dwm_loc_get) e 0x32 (dwm_status_get). Alle altre risponde con
+ * codice d'errore 1.
+ * Come il modulo reale, misura le distanze dei tag una volta per intervallo di aggiornamento,
+ * con un eventuale rumore di misura, e segnala ogni aggiornamento con il flag loc_ready di
+ * dwm_status_get; un tag fuori portata continua a essere riportato con l'ultima distanza
+ * misurata, ma con fattore di qualità nullo dal primo aggiornamento in cui non viene misurato.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DWMSimulator {
+    /**
+     * Numero massimo di tag inclusi nella risposta di dwm_loc_get: con 20 byte per tag è il
+     * massimo che permette alla risposta di stare nei 255 byte indicabili dal byte di lunghezza
+     */
+    public static final int MAX_TAGS = 11;
+
+    /**
+     * Numero di byte usati dal modulo DWM per descrivere i dati relativi a ciascun tag
+     */
+    private static final int BYTES_PER_ENTRY = 20;
+
+    /**
+     * Nome del bus simulato e trasporto (SPI o UART) con cui comunicare con il modulo
+     */
+    private final String busName;
+    private final DWMTransport transport;
+
+    /**
+     * Latenza di elaborazione delle richieste e relativo jitter massimo, in nanosecondi
+     */
+    private long latencyNanos;
+    private long jitterNanos;
+    private final Random random;
+
+    /**
+     * Stato del modulo simulato
+     */
+    private boolean connected = true;
+    private boolean closed = false;
+    private int updateRate = 1;
+    private int stationaryUpdateRate = 50;
+    private long requestCount = 0;
+
+    /**
+     * Dati dei tag visti dal modulo, memorizzati in array paralleli
+     */
+    private final int[] tagIDs = new int[MAX_TAGS];
+    private final int[] tagDistances = new int[MAX_TAGS];
+    private final int[] tagQualities = new int[MAX_TAGS];
+    private final int[] tagX = new int[MAX_TAGS];
+    private final int[] tagY = new int[MAX_TAGS];
+    private final int[] tagZ = new int[MAX_TAGS];
+    private final int[] tagPositionQualities = new int[MAX_TAGS];
+    private int tagCount = 0;
+
+    /**
+     * Ultime distanze misurate con la relativa qualità, incluse nella risposta di dwm_loc_get, e
+     * tag fuori portata, di cui non vengono più effettuate misure
+     */
+    private final int[] measuredDistances = new int[MAX_TAGS];
+    private final int[] measuredQualities = new int[MAX_TAGS];
+    private final boolean[] outOfRange = new boolean[MAX_TAGS];
+
+    /**
+     * Rumore massimo delle misure (in mm), momento dell'ultima misura, in nanosecondi, e flag
+     * loc_ready, impostato a ogni misura e azzerato dalla lettura con dwm_status_get
+     */
+    private int measurementNoise = 0;
+    private long lastMeasurement = 0;
+    private boolean locationReady = false;
+
+    /**
+     * Buffer in cui viene costruita la risposta alla richiesta corrente
+     */
+    private final byte[] response = new byte[255];
+    private int responseLength = 0;
+
+    /**
+     * Coda circolare dei byte in uscita dalla UART simulata.
+     * I byte fino a uartReleased sono leggibili, quelli successivi diventano leggibili quando
+     * scade il relativo tempo di elaborazione, memorizzato nella coda delle risposte pendenti.
+     */
+    private final byte[] uartOut = new byte[4096];
+    private long uartHead = 0;
+    private long uartTail = 0;
+    private long uartReleased = 0;
+    private final long[] pendingEnd = new long[16];
+    private final long[] pendingReadyAt = new long[16];
+    private int pendingHead = 0;
+    private int pendingCount = 0;
+
+    /**
+     * Costruttore: crea un modulo simulato senza latenza e senza tag
+     *
+     * @param busName Nome da usare per il bus simulato
+     * @param fullDuplex true per simulare la comunicazione via SPI, false per quella via UART
+     */
+    public DWMSimulator(String busName, boolean fullDuplex) {
+        this.busName = busName;
+        this.transport = fullDuplex ? new SpiPort() : new UartPort();
+        this.random = new Random(busName.hashCode());
+    }
+
+    /**
+     * Imposta la latenza con cui il modulo simulato prepara le risposte
+     *
+     * @param latency_micros Latenza minima, in microsecondi
+     * @param jitter_micros Ritardo casuale massimo da aggiungere alla latenza, in microsecondi
+     * @throws IllegalArgumentException Se uno dei parametri è negativo
+     */
+    public synchronized void setLatency(long latency_micros, long jitter_micros) {
+        if (latency_micros < 0 || jitter_micros < 0) {
+            throw new IllegalArgumentException("Latency and jitter must be positive");
+        }
+
+        latencyNanos = latency_micros * 1000L;
+        jitterNanos = jitter_micros * 1000L;
+    }
+
+    /**
+     * Imposta il rumore delle misure: a ogni intervallo di aggiornamento, la distanza riportata
+     * per ogni tag differisce da quella impostata di un valore casuale. Con rumore nullo, la
+     * distanza riportata è esattamente quella impostata.
+     *
+     * @param noise_mm Variazione massima, in millimetri
+     * @throws IllegalArgumentException Se il rumore è negativo
+     */
+    public synchronized void setMeasurementNoise(int noise_mm) {
+        if (noise_mm < 0) {
+            throw new IllegalArgumentException("Noise must be positive");
+        }
+        measurementNoise = noise_mm;
+    }
+
+    /**
+     * Simula l'uscita o il rientro di un tag nel raggio d'azione del modulo. Il modulo continua a
+     * riportare i tag fuori portata con l'ultima distanza misurata, con qualità nulla.
+     *
+     * @param tagID L'id del tag
+     * @param inRange false se il tag è fuori portata
+     * @throws IllegalArgumentException Se il tag non è presente
+     */
+    public synchronized void setTagInRange(int tagID, boolean inRange) {
+        int i = indexOf(tagID);
+        if (i < 0) {
+            throw new IllegalArgumentException("Unknown tag");
+        }
+        outOfRange[i] = !inRange;
+    }
+
+    /**
+     * Simula il collegamento o lo scollegamento fisico del modulo
+     *
+     * @param connected false per far smettere di rispondere il modulo
+     */
+    public synchronized void setConnected(boolean connected) {
+        this.connected = connected;
+    }
+
+    /**
+     * Aggiunge un tag o ne aggiorna i dati
+     *
+     * @param tagID L'id del tag
+     * @param distance La distanza del tag, in millimetri
+     * @param quality Il fattore di qualità della misura (0-100)
+     * @throws IllegalStateException Se si supera il numero massimo di tag
+     */
+    public synchronized void setTag(int tagID, int distance, int quality) {
+        int i = indexOf(tagID);
+        if (i < 0) {
+            if (tagCount == MAX_TAGS) {
+                throw new IllegalStateException("Too many tags");
+            }
+            i = tagCount++;
+            tagIDs[i] = tagID;
+            tagX[i] = 0;
+            tagY[i] = 0;
+            tagZ[i] = 0;
+            tagPositionQualities[i] = 0;
+            outOfRange[i] = false;
+        }
+
+        tagDistances[i] = distance;
+        tagQualities[i] = quality;
+        if (!outOfRange[i]) {
+            measuredDistances[i] = distance;
+            measuredQualities[i] = quality;
+        }
+    }
+
+    /**
+     * Imposta la posizione di un tag già aggiunto, inclusa nella risposta di dwm_loc_get
+     *
+     * @param tagID L'id del tag
+     * @param x Coordinata x, in millimetri
+     * @param y Coordinata y, in millimetri
+     * @param z Coordinata z, in millimetri
+     * @param quality Il fattore di qualità della posizione (0-100)
+     * @throws IllegalArgumentException Se il tag non è presente
+     */
+    public synchronized void setTagPosition(int tagID, int x, int y, int z, int quality) {
+        int i = indexOf(tagID);
+        if (i < 0) {
+            throw new IllegalArgumentException("Unknown tag");
+        }
+
+        tagX[i] = x;
+        tagY[i] = y;
+        tagZ[i] = z;
+        tagPositionQualities[i] = quality;
+    }
+
+    /**
+     * Rimuove un tag, se presente
+     *
+     * @param tagID L'id del tag da rimuovere
+     */
+    public synchronized void removeTag(int tagID) {
+        int i = indexOf(tagID);
+        if (i < 0) {
+            return;
+        }
+
+        tagCount--;
+        tagIDs[i] = tagIDs[tagCount];
+        tagDistances[i] = tagDistances[tagCount];
+        tagQualities[i] = tagQualities[tagCount];
+        tagX[i] = tagX[tagCount];
+        tagY[i] = tagY[tagCount];
+        tagZ[i] = tagZ[tagCount];
+        tagPositionQualities[i] = tagPositionQualities[tagCount];
+        measuredDistances[i] = measuredDistances[tagCount];
+        measuredQualities[i] = measuredQualities[tagCount];
+        outOfRange[i] = outOfRange[tagCount];
+    }
+
+    /**
+     * @return Numero di richieste ricevute dal modulo simulato
+     */
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * @return Il trasporto con cui comunicare con il modulo simulato: un FullDuplexTransport se
+     * il modulo è collegato via SPI, uno StreamTransport se è collegato via UART
+     */
+    public DWMTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Trasporto SPI del modulo simulato: la risposta diventa leggibile una volta trascorsa la
+     * latenza di elaborazione
+     */
+    private class SpiPort extends SpiSlaveTransport {
+        private long readyAt;
+
+        SpiPort() {
+            super(busName);
+        }
+
+        @Override
+        protected void prepareResponse(byte[] request, int length) {
+            synchronized (DWMSimulator.this) {
+                processRequest(request, 0, length);
+                readyAt = System.nanoTime() + nextLatency();
+                setResponse(response, responseLength);
+            }
+        }
+
+        @Override
+        protected boolean isResponseReady() {
+            return System.nanoTime() - readyAt >= 0;
+        }
+
+        @Override
+        protected boolean isConnected() {
+            synchronized (DWMSimulator.this) {
+                return connected;
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            super.close();
+            closeDevice();
+        }
+    }
+
+    /**
+     * Trasporto UART del modulo simulato
+     */
+    private class UartPort implements StreamTransport {
+        @Override
+        public String getBusName() {
+            return busName;
+        }
+
+        @Override
+        public void write(byte[] buffer, int length) throws IOException {
+            uartWrite(buffer, length);
+        }
+
+        @Override
+        public int read(byte[] buffer, int length) throws IOException {
+            return uartRead(buffer, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            uartFlush();
+        }
+
+        @Override
+        public boolean awaitData(long maxTimeWait_millis) throws IOException {
+            return uartAwaitData(maxTimeWait_millis);
+        }
+
+        @Override
+        public void close() {
+            closeDevice();
+        }
+    }
+
+    private synchronized void uartWrite(byte[] buffer, int length) throws IOException {
+        checkOpen();
+
+        if (!connected) {
+            return;
+        }
+
+        // Possono essere presenti più richieste TLV consecutive
+        int offset = 0;
+        while (offset + 2 <= length) {
+            int size = 2 + (buffer[offset + 1] & 0xff);
+            processRequest(buffer, offset, Math.min(size, length - offset));
+            offset += size;
+
+            if (pendingCount == pendingEnd.length
+                    || uartTail - uartHead + responseLength > uartOut.length) {
+                throw new IOException("Simulated UART buffer overflow");
+            }
+
+            // Accoda la risposta, che diventerà leggibile una volta trascorsa la latenza
+            for (int i = 0; i < responseLength; i++) {
+                uartOut[(int) (uartTail++ % uartOut.length)] = response[i];
+            }
+            int slot = (pendingHead + pendingCount) % pendingEnd.length;
+            pendingEnd[slot] = uartTail;
+            pendingReadyAt[slot] = System.nanoTime() + nextLatency();
+            pendingCount++;
+        }
+        notifyAll();
+    }
+
+    private synchronized int uartRead(byte[] buffer, int length) throws IOException {
+        checkOpen();
+        releaseReadyResponses();
+
+        int count = (int) Math.min(length, uartReleased - uartHead);
+        for (int i = 0; i < count; i++) {
+            buffer[i] = uartOut[(int) (uartHead++ % uartOut.length)];
+        }
+        return count;
+    }
+
+    private synchronized void uartFlush() throws IOException {
+        checkOpen();
+
+        uartHead = uartTail = uartReleased = 0;
+        pendingHead = pendingCount = 0;
+    }
+
+    private synchronized boolean uartAwaitData(long maxTimeWait_millis) throws IOException {
+        checkOpen();
+
+        long deadline = System.nanoTime() + maxTimeWait_millis * 1000000L;
+        while (true) {
+            releaseReadyResponses();
+            if (uartReleased > uartHead) {
+                return true;
+            }
+
+            // Attende fino alla prossima risposta pendente o fino alla scadenza
+            long now = System.nanoTime();
+            long wakeUp = deadline;
+            if (pendingCount > 0 && pendingReadyAt[pendingHead] - deadline < 0) {
+                wakeUp = pendingReadyAt[pendingHead];
+            }
+            if (deadline - now <= 0) {
+                return false;
+            }
+
+            long waitNanos = Math.max(wakeUp - now, 1L);
+            try {
+                wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for data");
+            }
+
+            checkOpen();
+        }
+    }
+
+    private synchronized void closeDevice() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Elabora una richiesta TLV e costruisce la relativa risposta nel buffer response
+     *
+     * @param request Array contenente la richiesta
+     * @param offset Posizione della richiesta nell'array
+     * @param length Lunghezza della richiesta
+     */
+    private void processRequest(byte[] request, int offset, int length) {
+        requestCount++;
+        responseLength = 0;
+
+        int type = request[offset] & 0xff;
+        int valueLength = length >= 2 ? request[offset + 1] & 0xff : -1;
+
+        // Richiesta troncata: errore di frame TLV
+        if (valueLength < 0 || length < 2 + valueLength) {
+            putError(1);
+            return;
+        }
+
+        switch (type) {
+            case 0x02:
+                // dwm_pos_get: posizione del modulo
+                putError(0);
+                putPosition(0x41);
+                break;
+
+            case 0x03:
+                // dwm_upd_rate_set: frequenze di aggiornamento in multipli di 100ms
+                if (valueLength != 4) {
+                    putError(3);
+                    break;
+                }
+                updateRate = (request[offset + 2] & 0xff) | ((request[offset + 3] & 0xff) << 8);
+                stationaryUpdateRate = (request[offset + 4] & 0xff) | ((request[offset + 5] & 0xff) << 8);
+                putError(0);
+                break;
+
+            case 0x04:
+                // dwm_upd_rate_get
+                putError(0);
+                put(0x46);
+                put(4);
+                putLittleEndian(updateRate, 2);
+                putLittleEndian(stationaryUpdateRate, 2);
+                break;
+
+            case 0x0C:
+                // dwm_loc_get: posizione del modulo e distanze dei tag
+                measure();
+                putError(0);
+                putPosition(0x41);
+                put(0x49);
+                put(1 + tagCount * BYTES_PER_ENTRY);
+                put(tagCount);
+                for (int i = 0; i < tagCount; i++) {
+                    putLittleEndian(tagIDs[i], 2);
+                    putLittleEndian(measuredDistances[i], 4);
+                    put(measuredQualities[i]);
+                    putLittleEndian(tagX[i], 4);
+                    putLittleEndian(tagY[i], 4);
+                    putLittleEndian(tagZ[i], 4);
+                    put(tagPositionQualities[i]);
+                }
+                break;
+
+            case 0x32:
+                // dwm_status_get: il flag loc_ready viene azzerato dalla lettura
+                measure();
+                putError(0);
+                put(0x5A);
+                put(2);
+                putLittleEndian(locationReady ? 1 : 0, 2);
+                locationReady = false;
+                break;
+
+            default:
+                putError(1);
+                break;
+        }
+    }
+
+    /**
+     * Misura le distanze dei tag nel raggio d'azione, se è trascorso l'intervallo di
+     * aggiornamento dall'ultima misura. Ai tag fuori portata resta l'ultima distanza misurata,
+     * con qualità nulla.
+     */
+    private void measure() {
+        long now = System.nanoTime();
+        if (now - lastMeasurement < updateRate * 100000000L) {
+            return;
+        }
+        lastMeasurement = now;
+        locationReady = true;
+
+        for (int i = 0; i < tagCount; i++) {
+            if (outOfRange[i]) {
+                measuredQualities[i] = 0;
+            } else {
+                int noise = measurementNoise == 0 ? 0
+                        : random.nextInt(2 * measurementNoise + 1) - measurementNoise;
+                measuredDistances[i] = tagDistances[i] + noise;
+                measuredQualities[i] = tagQualities[i];
+            }
+        }
+    }
+
+    /**
+     * Scrive nella risposta il TLV con il codice d'errore
+     *
+     * @param code Codice d'errore
+     */
+    private void putError(int code) {
+        put(0x40);
+        put(0x01);
+        put(code);
+    }
+
+    /**
+     * Scrive nella risposta il TLV con la posizione del modulo, ovvero nell'origine
+     *
+     * @param type Tipo del TLV
+     */
+    @SuppressWarnings("SameParameterValue")
+    private void putPosition(int type) {
+        put(type);
+        put(13);
+        putLittleEndian(0, 4);
+        putLittleEndian(0, 4);
+        putLittleEndian(0, 4);
+        put(100);
+    }
+
+    private void putLittleEndian(int value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            put(value >>> (8 * i));
+        }
+    }
+
+    private void put(int value) {
+        response[responseLength++] = (byte) value;
+    }
+
+    /**
+     * Rende leggibili i byte delle risposte UART la cui elaborazione è terminata
+     */
+    private void releaseReadyResponses() {
+        long now = System.nanoTime();
+        while (pendingCount > 0 && now - pendingReadyAt[pendingHead] >= 0) {
+            uartReleased = pendingEnd[pendingHead];
+            pendingHead = (pendingHead + 1) % pendingEnd.length;
+            pendingCount--;
+        }
+    }
+
+    /**
+     * @return La latenza della prossima risposta, in nanosecondi
+     */
+    private long nextLatency() {
+        if (jitterNanos == 0) {
+            return latencyNanos;
+        }
+        return latencyNanos + (long) (random.nextDouble() * jitterNanos);
+    }
+
+    /**
+     * Controlla che il trasporto sia aperto
+     *
+     * @throws IOException Se il trasporto è stato chiuso
+     */
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Simulated device closed");
+        }
+    }
+
+    private int indexOf(int tagID) {
+        for (int i = 0; i < tagCount; i++) {
+            if (tagIDs[i] == tagID) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
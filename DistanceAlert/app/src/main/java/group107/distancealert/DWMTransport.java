@@ -0,0 +1,26 @@
+package group107.distancealert;
+
+import java.io.IOException;
+
+/**
+ * Interfaccia che astrae il livello di trasporto usato dal DriverDWM per comunicare con il modulo
+ * DWM1001-DEV. Permette di usare indifferentemente le periferiche SPI e UART reali oppure un
+ * simulatore del modulo, eseguibile anche su una normale JVM.
+ * Un trasporto è full-duplex (FullDuplexTransport, come la SPI, dove ogni byte inviato
+ * corrisponde a un byte ricevuto) oppure basato su flussi (StreamTransport, come la UART, dove
+ * scritture e letture sono indipendenti): il DriverDWM sceglie il protocollo in base al tipo.
+ */
+@SuppressWarnings("WeakerAccess")
+public interface DWMTransport {
+    /**
+     * @return Stringa corrispondente al bus usato dal trasporto
+     */
+    String getBusName();
+
+    /**
+     * Chiude e rilascia la periferica usata dal trasporto
+     *
+     * @throws IOException Lanciata se ci sono problemi nella chiusura della periferica
+     */
+    void close() throws IOException;
+}
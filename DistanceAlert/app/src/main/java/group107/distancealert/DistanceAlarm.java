@@ -28,6 +28,11 @@ public class DistanceAlarm {
      */
     private static final long ALARM_PERIOD = 250L;
 
+    /**
+     * Prefisso dei nomi delle metriche dell'allarme
+     */
+    public static final String METRICS_PREFIX = "alarm.";
+
     /**
      * Sequenza di frequenze del segnale PWM utilizzate per realizzare il motivetto musicale
      * e relativo indice usato per puntare alla nota da eseguire
@@ -55,9 +60,20 @@ public class DistanceAlarm {
     private final Object lock = new Object();
 
     /**
-     * Oggetto ScheduledThreadPoolExecutor usato per gestire la programmazione temporizzata dell'allarme
+     * Oggetto ScheduledThreadPoolExecutor usato per gestire la programmazione temporizzata dell'allarme.
+     * E' volatile perché viene letto anche dal thread del timer e dalle metriche.
      */
-    private ScheduledThreadPoolExecutor timer;
+    private volatile ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Metriche dell'allarme: avvii, arresti, errori nell'aggiornamento delle periferiche e durata
+     * degli allarmi (in ns), con il momento dell'ultimo avvio
+     */
+    private final MetricsRegistry.Counter starts = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter stops = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter errors = new MetricsRegistry.Counter();
+    private final Histogram durations = new Histogram("duration.nanos");
+    private long startTime;
 
     /**
      * Costruttore: ottiene accesso alle periferiche e le inizializza
@@ -107,6 +123,8 @@ public class DistanceAlarm {
 
         // Reset inizio motivetto musicale
         toneIndex = 0;
+        starts.increment();
+        startTime = System.nanoTime();
 
         // Avvio programmazione temporizzata
         timer = new ScheduledThreadPoolExecutor(1);
@@ -135,6 +153,7 @@ public class DistanceAlarm {
                             led.setValue((!led.getValue()) && (timer != null));
                         }
                     } catch (IOException e) {
+                        errors.increment();
                         Log.w(TAG, "Exception updating alarm state", e);
                     }
                 }
@@ -161,6 +180,8 @@ public class DistanceAlarm {
         // Ferma timer
         timer.shutdown();
         timer = null;
+        stops.increment();
+        durations.record(System.nanoTime() - startTime);
 
         /*
          Spegne LED e buzzer facendo attenzione alla sincronizzazione
@@ -177,6 +198,24 @@ public class DistanceAlarm {
         }
     }
 
+    /**
+     * Registra le metriche dell'allarme, con prefisso METRICS_PREFIX
+     *
+     * @param registry Il registro delle metriche
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        registry.register(METRICS_PREFIX + "starts", starts);
+        registry.register(METRICS_PREFIX + "stops", stops);
+        registry.register(METRICS_PREFIX + "errors", errors);
+        registry.register(METRICS_PREFIX + durations.getName(), durations);
+        registry.register(METRICS_PREFIX + "active", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return timer != null ? 1 : 0;
+            }
+        });
+    }
+
     /**
      * Terminazione della programmazione temporizzata sul timer e
      * rilascio delle periferiche relative al led e al buzzer.
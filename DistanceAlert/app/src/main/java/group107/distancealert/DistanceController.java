@@ -1,19 +1,23 @@
 package group107.distancealert;
 
-import android.os.SystemClock;
 import android.util.Log;
-import android.util.Pair;
 
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Classe thread-safe che rappresenta un sensore di distanza.
+ * Può usare più moduli DWM contemporaneamente, collegati a bus diversi: i moduli vengono
+ * interrogati in parallelo, ciascuno tramite il proprio thread di I/O, e i loro dati vengono uniti
+ * in un unico insieme di tag. Se un tag è visto da più moduli, viene usata la misura con il
+ * fattore di qualità migliore.
  */
 public class DistanceController
 {
@@ -23,21 +27,23 @@ public class DistanceController
     private static final String TAG = "DistanceController";
 
     /**
-     * Numero di byte usati dal modulo DWM per descrivere i dati relativi a ciascun tag
+     * Intervallo di aggiornamento dei moduli DWM (in ms) usato se non è possibile leggerlo dal
+     * modulo: quello predefinito del firmware
      */
-    private static final int BYTES_PER_ENTRY = 20;
+    private static final long DEFAULT_MODULE_UPDATE_INTERVAL = 100L;
 
     /**
-     * Numero di volte per cui ricevendo gli stessi dati dal modulo DWM, un tag viene dichiarato
-     * disconnesso. Questo serve perché il modulo DWM continua ad includere i dati relativi
-     * a tag fuori portata, riportando l'ultima distanza nota.
+     * Numero di errori nella comunicazione con il modulo DWM prima di intervenire
      */
-    private static final int COUNTER_FOR_DISCONNECTED = 4;
+    private static final int COUNTER_FOR_CONNECTION_ERRORS = 2;
 
     /**
-     * Numero di errori nella comunicazione con il modulo DWM prima di intervenire
+     * Margine, in percentuale dell'intervallo di aggiornamento dei moduli, concesso a un tag
+     * connesso senza misure nuove prima di dichiararlo disconnesso: copre lo sfasamento tra gli
+     * aggiornamenti del modulo e la lettura del suo flag loc_ready. Il limite non dipende dal
+     * periodo di polling, ma la disconnessione viene rilevata solo alla prima lettura successiva.
      */
-    private static final int COUNTER_FOR_CONNECTION_ERRORS = 2;
+    private static final int STALE_SLACK_PERCENT = 25;
 
     /**
      * Periodo minimo di aggiornamento a cui può essere settato il controller (<= 10 Hz)
@@ -45,61 +51,115 @@ public class DistanceController
     private static final long MINIMUM_UPDATE_PERIOD = 100L;
 
     /**
-     * Periodo di sospensione delle comunicazioni in caso di problemi (in ms)
+     * Periodi iniziale e massimo di sospensione delle comunicazioni in caso di problemi (in ms).
+     * Il periodo raddoppia a ogni tentativo di ripristino fallito.
      */
+    private static final long INITIAL_PAUSE_TIME = 500L;
     private static final long COMMUNICATION_PAUSE_TIME = 30000L;
 
     /**
-     * Variabile usata per salvare il momento in cui sono state sospese le comunicazioni
+     * Variazione casuale massima del periodo di sospensione, in frazione del periodo, così che
+     * più controller non ritentino tutti nello stesso momento
      */
-    private static long communicationPauseTimer = 0;
+    private static final double PAUSE_JITTER = 0.2;
 
     /**
-     * Oggetto che serve per ordinare in ordine crescente per tagID le entry
+     * Prefisso dei nomi delle metriche del controller
      */
-    private final Comparator<Entry> MATCHING_ID_ENTRY_COMPARATOR = new Comparator<Entry>()
+    public static final String METRICS_PREFIX = "controller.";
+
+    /**
+     * Stati della connessione con i moduli DWM
+     */
+    @SuppressWarnings("WeakerAccess")
+    public enum ConnectionState
     {
-        @Override
-        public int compare(Entry e1, Entry e2)
-        {
-            return e1.tagID - e2.tagID;
-        }
-    };
+        /**
+         * Tutti i moduli rispondono
+         */
+        CONNECTED,
+
+        /**
+         * Ci sono stati errori, oppure alcuni moduli non rispondono, ma l'aggiornamento prosegue
+         */
+        DEGRADED,
+
+        /**
+         * L'aggiornamento è sospeso mentre si tenta di ripristinare la comunicazione
+         */
+        RECONNECTING,
+
+        /**
+         * L'aggiornamento è sospeso fino al prossimo tentativo di ripristino
+         */
+        PAUSED
+    }
 
     /**
-     * Classe che rappresenta una coppia id-distanza.
+     * Classe che rappresenta i dati di un tag: id, distanza e relativa qualità, posizione e
+     * relativa qualità, velocità. La distanza è quella filtrata, se è impostato un filtro.
      * E' implementata in modo tale da essere un oggetto immutabile.
+     * Le entry vengono create solo alla lettura delle istantanee e per gli AllTagsListener.
      */
     @SuppressWarnings("WeakerAccess")
     public static class Entry
     {
         public final int tagID;
         public final int tagDistance;
-        private int counter;
 
         /**
-         * Crea una nuova entry con id del tag e distanza specificata per parametro
+         * Fattore di qualità della distanza misurata (0-100)
+         */
+        public final int quality;
+
+        /**
+         * Posizione del tag in millimetri, come riportata dal modulo DWM
+         */
+        public final int x;
+        public final int y;
+        public final int z;
+
+        /**
+         * Fattore di qualità della posizione (0-100)
+         */
+        public final int positionQuality;
+
+        /**
+         * Velocità stimata del tag in mm/s, positiva se il tag si allontana
+         */
+        public final int velocity;
+
+        /**
+         * Istante in cui sono state richieste ai moduli le misure dell'aggiornamento che ha
+         * prodotto l'entry, in nanosecondi (System.nanoTime())
+         */
+        public final long timestamp;
+
+        /**
+         * Crea una nuova entry con i dati del tag specificati per parametro
          *
          * @param id L'id del tag a cui è associata l'entry
          * @param distance La distanza misurata
+         * @param quality Il fattore di qualità della distanza
+         * @param x La coordinata x della posizione
+         * @param y La coordinata y della posizione
+         * @param z La coordinata z della posizione
+         * @param positionQuality Il fattore di qualità della posizione
+         * @param velocity La velocità stimata
+         * @param timestamp L'istante della richiesta delle misure
          */
-        private Entry(int id, int distance)
+        private Entry(int id, int distance, int quality, int x, int y, int z, int positionQuality,
+                      int velocity, long timestamp)
         {
             tagID = id;
             tagDistance = distance;
-            counter = 0;
-        }
-
-        /**
-         * Crea una copia dell'entry passata per parametro
-         *
-         * @param e Entry da copiare
-         */
-        private Entry(Entry e)
-        {
-            tagID = e.tagID;
-            tagDistance = e.tagDistance;
-            counter = e.counter;
+            this.quality = quality;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.positionQuality = positionQuality;
+            this.velocity = velocity;
+            this.timestamp = timestamp;
         }
 
         /**
@@ -127,71 +187,320 @@ public class DistanceController
         @Override
         public String toString()
         {
-            return "ID: " + tagID + "  Distanza: " + tagDistance + "mm";
+            return "ID: " + tagID + "  Distanza: " + tagDistance + "mm  Qualità: " + quality;
+        }
+    }
+
+    /**
+     * Istantanea immutabile dello stato dei tag connessi, pubblicata alla fine di ogni ciclo di
+     * aggiornamento completato con successo.
+     * Permette ai consumatori che leggono i dati con i propri tempi (interfaccia grafica,
+     * registrazione, esportazione) di ottenerli senza listener e senza lock.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static final class Frame
+    {
+        /**
+         * Valori memorizzati per ogni tag: id, distanza, qualità, x, y, z, qualità della
+         * posizione e velocità
+         */
+        private static final int ENTRY_FIELDS = 8;
+
+        /**
+         * Numero progressivo dell'istantanea, che parte da 1. L'istantanea iniziale, senza
+         * tag, ha numero 0.
+         */
+        public final long sequence;
+
+        /**
+         * Istante in cui sono state richieste le misure ai moduli, in nanosecondi
+         * (System.nanoTime())
+         */
+        public final long timestamp;
+
+        /**
+         * Entry dei tag connessi, in ordine crescente di ID. La lista non è modificabile: le
+         * entry vengono create solo quando vengono lette.
+         */
+        public final List<Entry> tags;
+
+        /**
+         * Dati dei tag connessi, ENTRY_FIELDS valori per tag, in ordine crescente di ID
+         */
+        private final int[] data;
+        private final int count;
+
+        private Frame(long sequence, long timestamp, int[] data, int count)
+        {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.data = data;
+            this.count = count;
+            this.tags = new AbstractList<Entry>()
+            {
+                @Override
+                public Entry get(int index)
+                {
+                    if (index < 0 || index >= Frame.this.count)
+                        throw new IndexOutOfBoundsException("Index: " + index);
+                    return entry(index);
+                }
+
+                @Override
+                public int size()
+                {
+                    return Frame.this.count;
+                }
+            };
+        }
+
+        /**
+         * Cerca i dati di un tag nell'istantanea
+         *
+         * @param tagID L'id del tag
+         * @return L'entry del tag, oppure null se il tag non è connesso
+         */
+        public Entry getTag(int tagID)
+        {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                int id = data[mid * ENTRY_FIELDS];
+                if (id < tagID)
+                    low = mid + 1;
+                else if (id > tagID)
+                    high = mid - 1;
+                else
+                    return entry(mid);
+            }
+            return null;
+        }
+
+        /**
+         * Crea l'entry di un tag dai dati dell'istantanea
+         *
+         * @param index La posizione del tag nell'istantanea
+         * @return L'entry
+         */
+        private Entry entry(int index)
+        {
+            int offset = index * ENTRY_FIELDS;
+            return new Entry(data[offset], data[offset + 1], data[offset + 2], data[offset + 3],
+                    data[offset + 4], data[offset + 5], data[offset + 6], data[offset + 7], timestamp);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Frame " + sequence + ": " + tags;
         }
     }
 
     /**
-     * Logga tutte le entry presenti nella lista, anteponendoci un messaggio
+     * Logga i tag di una delle liste di eventi della tabella, anteponendoci un messaggio.
+     * La stringa viene costruita solo se il livello di log è abilitato.
      *
      * @param tag Il tag con cui fare il log
      * @param message Il messaggio da anteporre ai dati
      * @param separator Una stringa usata per separare visivamente i dati
-     * @param data Lista con le entry da loggare
+     * @param table La tabella dei tag
+     * @param event L'evento di cui loggare i tag
      */
     @SuppressWarnings("SameParameterValue")
-    private static void logEntryData(String tag, String message, String separator, List<Entry> data)
+    private static void logTagData(String tag, String message, String separator, TagTable table, byte event)
     {
-        if (data == null || data.size() == 0)
-        {
-            Log.d(tag, message + "<nessuno>");
+        if (!Log.isLoggable(tag, Log.DEBUG))
             return;
-        }
 
-        String result = message;
+        StringBuilder result = new StringBuilder(message);
+        boolean empty = true;
 
-        for (int i = 0; i < data.size(); i++)
-            result = result.concat(data.get(i).toString() + separator);
+        for (int slot = 0; slot < table.capacity(); slot++)
+        {
+            if (table.isUsed(slot) && table.event(slot) == event)
+            {
+                result.append("ID: ").append(table.tagID(slot)).append("  Distanza: ")
+                        .append(table.filteredDistance(slot)).append("mm  Qualità: ")
+                        .append(table.quality(slot)).append(separator);
+                empty = false;
+            }
+        }
 
-        Log.d(tag, result);
+        Log.d(tag, empty ? message + "<nessuno>" : result.toString());
     }
 
     /**
-     * Memorizza i dati attuali
+     * Tabella con lo stato di tutti i tag visti dai moduli
+     */
+    private final TagTable tagTable = new TagTable();
+
+    /**
+     * Tempo senza misure nuove dopo il quale un tag connesso viene dichiarato disconnesso (in ns):
+     * il più lento intervallo di aggiornamento dei moduli, più STALE_SLACK_PERCENT. Una misura è
+     * nuova se il modulo ha segnalato un aggiornamento con il flag loc_ready e riporta il tag con
+     * qualità non nulla, anche se con la stessa distanza, così che un tag fermo resti connesso.
+     * Il modulo DWM continua a riportare i tag fuori portata con l'ultima distanza misurata ma con
+     * qualità nulla, che li disconnette subito; il tempo limite disconnette i tag di un modulo che
+     * smette di aggiornare le misure.
+     */
+    private final long staleTimeout;
+
+    /**
+     * Latenze delle misure, dalla loro richiesta ai moduli fino alle callback dei listener
+     */
+    private final LatencyTrace trace = new LatencyTrace();
+
+    /**
+     * Distributore degli eventi ai listener, con un numero fisso di thread
+     */
+    private final EventDispatcher dispatcher =
+            new EventDispatcher(trace.getHistogram(LatencyTrace.Stage.CALLBACK_ENTERED));
+
+    /**
+     * Buffer riutilizzati per le risposte dei moduli DWM, richieste riutilizzabili di
+     * dwm_loc_get che vi salvano le risposte e viste usate per decodificarle, uno per ciascun
+     * modulo
+     */
+    private final byte[][] responseBuffers;
+    private final AsyncDriverDWM.Poll[] locationPolls;
+    private final DWMLocationView[] locationViews;
+
+    /**
+     * Buffer e richieste riutilizzabili di dwm_status_get, con cui ogni modulo segnala se ha
+     * aggiornato le misure dalla lettura precedente
+     */
+    private final byte[][] statusBuffers;
+    private final AsyncDriverDWM.Poll[] statusPolls;
+
+    /**
+     * Memorizza tutti i listeners, sia quelli associati a tutti i tag sia quelli associati ad uno
+     * specifico tag. Il lock del registro serializza le registrazioni, senza mai bloccare il polling.
+     */
+    private final ListenerRegistry listeners = new ListenerRegistry();
+
+    /**
+     * Regole sulle soglie di distanza, valutate a ogni aggiornamento. Le registrazioni usano lo
+     * stesso lock dei listener.
+     */
+    private final ThresholdRules rules = new ThresholdRules();
+
+    /**
+     * Oggetti che gestiscono la comunicazione a basso livello con i moduli DWM, ciascuno tramite
+     * un thread di I/O dedicato
+     */
+    private final AsyncDriverDWM[] driversDWM;
+
+    /**
+     * Indica se il controller è stato chiuso
      */
-    private List<Entry> actualData;
+    private volatile boolean closed = false;
 
     /**
-     * Memorizza i dati dei tag che sono disconnessi
+     * Ultima istantanea pubblicata. Essendo immutabile, può essere letta senza lock.
      */
-    private List<Entry> disconnectedData;
+    private volatile Frame latestFrame = new Frame(0, 0, new int[0], 0);
 
     /**
-     * Memorizza tutti i listeners associati a tutti i tag
+     * Istante in cui sono state richieste le misure del ciclo in corso, riportato nelle entry e
+     * negli eventi per misurarne la latenza
      */
-    private List<AllTagsListener> allListeners;
+    private long frameTimestamp;
 
     /**
-     * Memorizza tutti i listeners associati ad uno specifico tag
+     * Monitor su cui attendono i thread bloccati in awaitNextFrame(), e numero di tali thread.
+     * Il thread di aggiornamento acquisisce il monitor solo se c'è almeno un thread in attesa.
      */
-    private List<Pair<Integer, TagListener>> tagListeners;
+    private final Object frameMonitor = new Object();
+    private volatile int frameWaiters = 0;
 
     /**
-     * Oggetto che gestisce la comunicazione a basso livello con il modulo DWM
+     * Operazione che riapre la periferica di un driver, nel caso ne sia stato perso l'accesso
      */
-    private DriverDWM driverDWM;
+    private static final AsyncDriverDWM.DriverTask<Void> REOPEN_TASK = new AsyncDriverDWM.DriverTask<Void>()
+    {
+        @Override
+        public Void run(DriverDWM driver) throws IOException
+        {
+            driver.reopen();
+            return null;
+        }
+    };
 
     /**
      * Contatore degli errori di comunicazione con il modulo DWM
      */
     private int connectionErrors = 0;
 
+    /**
+     * Stato della connessione. Viene modificato solo dal thread di aggiornamento.
+     */
+    private volatile ConnectionState connectionState = ConnectionState.CONNECTED;
+
+    /**
+     * Dati del ripristino in corso: tentativi falliti consecutivi, momento del prossimo passo
+     * (in ns), controlli dei moduli in corso e inizio dell'interruzione degli aggiornamenti.
+     * lostPeripheral indica se l'ultimo errore è dovuto alla perdita dell'accesso alle
+     * periferiche (IllegalStateException): solo in questo caso il ripristino le riapre.
+     */
+    private int failedRecoveries = 0;
+    private boolean lostPeripheral = false;
+    private long nextRecoveryStep = 0;
+    private CompletableFuture<Void>[] healthChecks = null;
+    private long outageStart = 0;
+
+    /**
+     * Durata delle interruzioni (in ns), dal primo aggiornamento fallito al successivo riuscito,
+     * e numero complessivo di tentativi di ripristino
+     */
+    private final Histogram outageDurations = new Histogram("outage.duration.nanos");
+    private final MetricsRegistry.Counter recoveryAttempts = new MetricsRegistry.Counter();
+
+    /**
+     * Contatori del funzionamento del controller: aggiornamenti effettuati e falliti, risposte
+     * mancate dei singoli moduli, riaperture delle periferiche richieste, sospensioni e ripristini
+     * della comunicazione, tag connessi e disconnessi
+     */
+    private final MetricsRegistry.Counter polls = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter pollErrors = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter moduleErrors = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter reopenRequests = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter pauses = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter recoveries = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter tagsConnected = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter tagsDisconnected = new MetricsRegistry.Counter();
+
+    /**
+     * Filtro delle distanze richiesto, applicato alla tabella dal thread di aggiornamento
+     */
+    private volatile DistanceFilter distanceFilter = null;
+
+    /**
+     * Calcola il periodo di aggiornamento e memorizza le soglie di distanza registrate
+     */
+    private final AdaptivePolling polling = new AdaptivePolling();
+
+    /**
+     * Intervalli effettivi tra l'inizio di due aggiornamenti consecutivi (in ns), e inizio
+     * dell'ultimo aggiornamento
+     */
+    private final Histogram updateIntervals = new Histogram("update.interval.nanos");
+    private long lastUpdateStart = 0;
+
     /**
      * oggetto che, usando un thread secondario che autogestisce la sua schedulazione periodica,
      * si occupa di effettuare il polling del modulo DWM per ottenere le distanze.
      */
     private ScheduledThreadPoolExecutor updateDataTimer;
 
+    /**
+     * Lock ottenuto solo dal ciclo di aggiornamento: impedisce che il ciclo di un timer appena
+     * spento si sovrapponga a quello di un timer avviato subito dopo. Le interrogazioni e le
+     * registrazioni dei listener non lo ottengono mai.
+     */
+    private final Object cycleLock = new Object();
+
     /**
      * Oggetto che definisce la routine di aggiornamento periodica del controller
      */
@@ -200,68 +509,87 @@ public class DistanceController
         @Override
         public void run()
         {
-            if ((SystemClock.uptimeMillis() - communicationPauseTimer < COMMUNICATION_PAUSE_TIME)
-                    && communicationPauseTimer != 0) {
-                Log.v(TAG, "Aggiornamento distanza in pausa. Prossimo tentativo tra: "
-                        + (communicationPauseTimer + COMMUNICATION_PAUSE_TIME - SystemClock.uptimeMillis()) + "ms");
-                return;
+            synchronized (cycleLock)
+            {
+                cycle();
             }
+        }
 
-            synchronized (this)
+        private void cycle()
+        {
+            if (closed)
+                return;
+
+            long now = System.nanoTime();
+
+            // Durante il ripristino, ogni esecuzione effettua al più un passo, senza attese
+            switch (connectionState)
             {
-                try
-                {
-                    List<Entry> data = updateData();
-                    classifyDataAndNotify(data);
-                    actualData = data;
-                    connectionErrors = 0;
-                } catch (Exception e)
-                {
-                    connectionErrors++;
-                    Log.w(TAG, "Avvenuta " + connectionErrors + "^ eccezione in updateDataTask", e);
-
-                    /*
-                     Nel caso sia stato raggiunto il limite di errori di comunicazione consecutivi,
-                     si procede tentando di risolverli
-                     */
-                    if (connectionErrors >= COUNTER_FOR_CONNECTION_ERRORS)
+                case RECONNECTING:
+                    recoveryStep(now);
+                    return;
+
+                case PAUSED:
+                    if (now - nextRecoveryStep < 0)
                     {
-                        try
-                        {
-                            /*
-                             Nel caso sia stato perso l'accesso alla periferica,
-                             deve ricreare l'oggetto DriverDWM
-                             */
-                            if (e instanceof IllegalStateException) {
-                                String bus = driverDWM.getMyBus();
-                                driverDWM.close();
-                                driverDWM = new DriverDWM(bus);
-                            }
-
-                            // Dopo aver aspettato un tempo minimo, controlla la connessione
-                            SystemClock.sleep(MINIMUM_UPDATE_PERIOD);
-                            driverDWM.checkDWM();
-
-                            /*
-                             Arrivati a questo punto, la connessione è funzionante.
-                             Viene azzerato il contatore degli errori.
-                             */
-                            connectionErrors = 0;
-                        } catch (Exception e1)
-                        {
-                            /*
-                             Nel caso ci siano stati ancora problemi, sospende l'aggiornamento
-                             per un lasso di tempo, così da permettere al modulo di sistemarsi.
-                             */
-                            communicationPauseTimer = SystemClock.uptimeMillis();
-
-                            String text = "Periferica non funzionante.\n" +
-                                    "Nuovo tentativo tra " + (COMMUNICATION_PAUSE_TIME / 1000L) + " secondi.";
-                            notifyError(text, e1);
-                            Log.e(TAG, text, e1);
-                        }
+                        Log.v(TAG, "Aggiornamento distanza in pausa. Prossimo tentativo tra: "
+                                + TimeUnit.NANOSECONDS.toMillis(nextRecoveryStep - now) + "ms");
+                        return;
                     }
+                    beginRecovery(now, lostPeripheral);
+                    return;
+
+                default:
+                    break;
+            }
+
+            if (lastUpdateStart != 0)
+                updateIntervals.record(now - lastUpdateStart);
+            lastUpdateStart = now;
+            polls.increment();
+
+            /*
+             Il ciclo viene eseguito senza lock: la fase di I/O attende i thread dei driver,
+             mentre lo stato viene modificato solo da questo thread e pubblicato atomicamente
+             alla fine del ciclo. Così le interrogazioni e le registrazioni dei listener non
+             attendono mai il bus.
+             */
+            try
+            {
+                int validResponses = updateData();
+
+                // Aggiorna lo stato della connessione prima di pubblicare i nuovi dati
+                connectionErrors = 0;
+                failedRecoveries = 0;
+                if (outageStart != 0)
+                {
+                    outageDurations.record(now - outageStart);
+                    outageStart = 0;
                 }
+                connectionState = validResponses == driversDWM.length
+                        ? ConnectionState.CONNECTED : ConnectionState.DEGRADED;
+
+                classifyDataAndNotify();
+            } catch (Exception e)
+            {
+                // Errori dovuti alla chiusura del controller durante il ciclo
+                if (closed)
+                    return;
+
+                connectionErrors++;
+                pollErrors.increment();
+                if (outageStart == 0)
+                    outageStart = now;
+                Log.w(TAG, "Avvenuta " + connectionErrors + "^ eccezione in updateDataTask", e);
+
+                /*
+                 Un errore isolato costa un solo aggiornamento. Nel caso sia stato raggiunto il
+                 limite di errori di comunicazione consecutivi, si procede tentando di risolverli
+                 */
+                if (connectionErrors >= COUNTER_FOR_CONNECTION_ERRORS)
+                    beginRecovery(now, e instanceof IllegalStateException);
+                else
+                    connectionState = ConnectionState.DEGRADED;
             }
         }
     };
@@ -277,33 +605,145 @@ public class DistanceController
     @SuppressWarnings("WeakerAccess")
     public DistanceController(String busName) throws IllegalArgumentException, IOException
     {
-        synchronized (this)
-        {
-            driverDWM = new DriverDWM(busName);
-            tagListeners = new ArrayList<>();
-            allListeners = new ArrayList<>();
+        this(new DriverDWM(busName));
+    }
 
-            actualData = new ArrayList<>();
-            disconnectedData = new ArrayList<>();
+    /**
+     * Imposta il controller usando più moduli DWM, uno per ciascun bus.
+     * Non avvia il polling con i moduli, che deve essere fatto manualmente tramite il metodo
+     * startUpdate()
+     *
+     * @param busNames I nomi dei pin a cui sono collegati fisicamente i moduli
+     * @throws IllegalArgumentException Se uno dei busName non è valido
+     * @throws IOException Se avviene un errore nella creazione di uno dei driver DWM
+     */
+    @SuppressWarnings("WeakerAccess")
+    public DistanceController(String[] busNames) throws IllegalArgumentException, IOException
+    {
+        this(openDrivers(busNames));
+    }
 
-            connectionErrors = 0;
+    /**
+     * Imposta il controller usando uno o più driver già creati, ad esempio collegati al
+     * DWMSimulator. Non avvia il polling con i moduli, che deve essere fatto manualmente tramite
+     * il metodo startUpdate()
+     *
+     * @param drivers I driver con cui comunicare con i moduli DWM
+     * @throws IllegalArgumentException Se non viene passato alcun driver
+     * @throws IOException Se la comunicazione con uno dei moduli DWM non funziona
+     */
+    @SuppressWarnings("WeakerAccess")
+    public DistanceController(DriverDWM... drivers) throws IllegalArgumentException, IOException
+    {
+        if (drivers == null || drivers.length == 0)
+            throw new IllegalArgumentException("Nessun modulo DWM specificato.");
 
-            // Evita di effettuare il check della connessione se il controller è stato messo in pausa
-            if (SystemClock.uptimeMillis() - communicationPauseTimer < COMMUNICATION_PAUSE_TIME
-                    && communicationPauseTimer != 0) {
-                Log.v(TAG, "Controllo della connessione non effettuato.");
-                return;
-            }
+        synchronized (this)
+        {
+            connectionErrors = 0;
 
-            // Controlla lo stato della connessione del modulo
+            // Controlla lo stato della connessione dei moduli e legge i loro intervalli di aggiornamento
+            long slowestInterval = 0;
             try {
-                driverDWM.checkDWM();
+                for (DriverDWM driver : drivers)
+                {
+                    driver.checkDWM();
+                    slowestInterval = Math.max(slowestInterval, readUpdateInterval(driver));
+                }
             } catch (Exception e) {
                 // Connessione non funzionante. Rilascia risorse
-                driverDWM.close();
+                for (DriverDWM driver : drivers)
+                    driver.close();
+                dispatcher.close();
                 throw e;
             }
+
+            staleTimeout = TimeUnit.MILLISECONDS.toNanos(slowestInterval * (100 + STALE_SLACK_PERCENT) / 100);
+
+            // Da questo momento ciascun driver viene usato solo dal proprio thread di I/O
+            driversDWM = new AsyncDriverDWM[drivers.length];
+            responseBuffers = new byte[drivers.length][DriverDWM.MAX_RESPONSE_LENGTH];
+            locationPolls = new AsyncDriverDWM.Poll[drivers.length];
+            locationViews = new DWMLocationView[drivers.length];
+            statusBuffers = new byte[drivers.length][DriverDWM.MAX_RESPONSE_LENGTH];
+            statusPolls = new AsyncDriverDWM.Poll[drivers.length];
+            for (int i = 0; i < drivers.length; i++)
+            {
+                driversDWM[i] = new AsyncDriverDWM(drivers[i]);
+                locationPolls[i] = new AsyncDriverDWM.Poll((byte) 0x0C, responseBuffers[i]);
+                locationViews[i] = new DWMLocationView();
+                statusPolls[i] = new AsyncDriverDWM.Poll((byte) 0x32, statusBuffers[i]);
+            }
+        }
+    }
+
+    /**
+     * Legge l'intervallo di aggiornamento delle misure del modulo (API dwm_upd_rate_get).
+     * L'intervallo usato quando il modulo è fermo non viene considerato: i tag continuano a
+     * essere misurati con l'intervallo normale.
+     *
+     * @param driver Il driver del modulo
+     * @return L'intervallo di aggiornamento in ms, oppure quello predefinito se la risposta non è
+     * valida
+     * @throws IOException Se avviene un errore nella comunicazione con il modulo
+     */
+    private static long readUpdateInterval(DriverDWM driver) throws IOException
+    {
+        // Risposta: TLV di errore, poi TLV 0x46 con le due frequenze in multipli di 100 ms
+        int[] response = driver.requestAPI((byte) 0x04, null);
+        if (response.length < 7 || response[2] != 0 || response[3] != 0x46 || response[4] < 2)
+            return DEFAULT_MODULE_UPDATE_INTERVAL;
+
+        int rate = response[5] | (response[6] << 8);
+        return rate > 0 ? rate * 100L : DEFAULT_MODULE_UPDATE_INTERVAL;
+    }
+
+    /**
+     * Interpreta la risposta di dwm_status_get, che indica con il flag loc_ready se il modulo ha
+     * aggiornato le misure dalla lettura precedente.
+     * Se il modulo non supporta la API, o la risposta non è valida, ogni lettura viene
+     * considerata un aggiornamento: i tag vengono allora disconnessi solo con la qualità nulla.
+     *
+     * @param response Buffer contenente la risposta
+     * @param length Numero di byte della risposta
+     * @return true se il modulo ha aggiornato le misure, o se non è possibile saperlo
+     */
+    private static boolean locationUpdated(byte[] response, int length)
+    {
+        // Risposta: TLV di errore, poi TLV 0x5A con i flag di stato, di cui loc_ready è il primo bit
+        if (length < 6 || response[2] != 0 || response[3] != 0x5A || response[4] < 1)
+            return true;
+
+        return (response[5] & 0x01) != 0;
+    }
+
+    /**
+     * Crea i driver per i bus specificati. In caso di errore chiude quelli già creati.
+     *
+     * @param busNames I nomi dei pin a cui sono collegati fisicamente i moduli
+     * @return I driver creati
+     * @throws IllegalArgumentException Se uno dei busName non è valido
+     * @throws IOException Se avviene un errore nella creazione di uno dei driver DWM
+     */
+    private static DriverDWM[] openDrivers(String[] busNames) throws IllegalArgumentException, IOException
+    {
+        if (busNames == null || busNames.length == 0)
+            throw new IllegalArgumentException("Nessun modulo DWM specificato.");
+
+        DriverDWM[] drivers = new DriverDWM[busNames.length];
+        try
+        {
+            for (int i = 0; i < busNames.length; i++)
+                drivers[i] = new DriverDWM(busNames[i]);
+        } catch (IOException | RuntimeException e)
+        {
+            for (DriverDWM driver : drivers)
+                if (driver != null)
+                    driver.close();
+            throw e;
         }
+
+        return drivers;
     }
 
     /**
@@ -326,375 +766,764 @@ public class DistanceController
      *
      * @return una lista contenente i tag connessi
      */
-    public synchronized List<Integer> getTagIDs()
+    public List<Integer> getTagIDs()
     {
-        List<Integer> tags = new ArrayList<>(actualData.size());
-        for (int i = 0; i < actualData.size(); i++)
+        // Non usa lock: legge i dati pubblicati alla fine dell'ultimo aggiornamento
+        Frame frame = latestFrame;
+        List<Integer> tags = new ArrayList<>(frame.count);
+        for (int i = 0; i < frame.count; i++)
         {
-            tags.add(actualData.get(i).tagID);
+            tags.add(frame.data[i * Frame.ENTRY_FIELDS]);
         }
 
         return tags;
     }
 
     /**
-     * Inizia l'aggiornamento del modulo con un periodo impostabile come parametro
+     * Restituisce l'ultima istantanea pubblicata, senza attese e senza lock.
      *
-     * @param period Il tempo che trascorre tra un update e il successivo
-     * @throws IllegalArgumentException Se il periodo di aggiornamento è troppo basso
-     * @throws IllegalStateException Se l'aggiornamento è già avviato
+     * @return L'ultima istantanea dei tag connessi
      */
-    @SuppressWarnings("WeakerAccess")
-    public synchronized void startUpdate(long period) throws IllegalArgumentException, IllegalStateException
+    @SuppressWarnings("unused")
+    public Frame getLatestFrame()
     {
-        if (period < 0)
-            throw new IllegalArgumentException("Il periodo di aggiornamento deve essere positivo. " +
-                    "Il periodo deve essere di almeno: " + MINIMUM_UPDATE_PERIOD + " ms.");
+        return latestFrame;
+    }
 
-        else if (period < MINIMUM_UPDATE_PERIOD)
-            throw new IllegalArgumentException("Il periodo di aggiornamento è troppo basso. " +
-                    "Il periodo deve essere di almeno: " + MINIMUM_UPDATE_PERIOD + " ms.");
+    /**
+     * Attende un'istantanea più recente di quella già letta dal chiamante.
+     * Se è già disponibile viene restituita subito; le istantanee intermedie eventualmente
+     * pubblicate nel frattempo vengono saltate.
+     *
+     * @param lastSequence Il numero dell'ultima istantanea letta, 0 se nessuna
+     * @param timeout Il tempo massimo di attesa (in ms)
+     * @return L'ultima istantanea, con numero maggiore di lastSequence, oppure null se il
+     * tempo è scaduto o il controller è stato chiuso
+     * @throws InterruptedException Se il thread viene interrotto durante l'attesa
+     */
+    @SuppressWarnings("unused")
+    public Frame awaitNextFrame(long lastSequence, long timeout) throws InterruptedException
+    {
+        Frame frame = latestFrame;
+        if (frame.sequence > lastSequence)
+            return frame;
 
-        // Avvio aggiornamento temporizzato
-        if (updateDataTimer == null)
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized (frameMonitor)
         {
-            updateDataTimer = new ScheduledThreadPoolExecutor(1);
-
             /*
-             Impostazione necessaria per spegnere correttamente il timer completando l'esecuzione del
-             relativo task già avviato prima dello spegnimento
+             L'incremento è visibile al thread di aggiornamento prima che venga riletta
+             l'istantanea: o questo thread vede la nuova istantanea, o viene risvegliato
+             */
+            frameWaiters++;
+            try
+            {
+                while (true)
+                {
+                    frame = latestFrame;
+                    if (frame.sequence > lastSequence)
+                        return frame;
+
+                    long remaining = deadline - System.nanoTime();
+                    if (closed || remaining <= 0)
+                        return null;
+
+                    TimeUnit.NANOSECONDS.timedWait(frameMonitor, remaining);
+                }
+            } finally
+            {
+                frameWaiters--;
+            }
+        }
+    }
+
+    /**
+     * Inizia l'aggiornamento del modulo con un periodo impostabile come parametro
+     *
+     * @param period Il tempo che trascorre tra un update e il successivo
+     * @throws IllegalArgumentException Se il periodo di aggiornamento è troppo basso
+     * @throws IllegalStateException Se l'aggiornamento è già avviato
+     */
+    @SuppressWarnings("WeakerAccess")
+    public synchronized void startUpdate(long period) throws IllegalArgumentException, IllegalStateException
+    {
+        checkPeriod(period);
+
+        // Avvio aggiornamento temporizzato
+        if (updateDataTimer == null)
+        {
+            updateDataTimer = new ScheduledThreadPoolExecutor(1);
+
+            /*
+             Impostazione necessaria per spegnere correttamente il timer completando l'esecuzione del
+             relativo task già avviato prima dello spegnimento
              */
             updateDataTimer.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+            polling.reset(period, period);
+            lastUpdateStart = 0;
             updateDataTimer.scheduleAtFixedRate(updateDataTask, period, period, TimeUnit.MILLISECONDS);
         } else
             throw new IllegalStateException("Timer già avviato");
     }
 
     /**
-     * Recupera le informazioni dal pacchetto di risposta del modulo DWM
+     * Inizia l'aggiornamento del modulo con un periodo che varia tra due estremi: il periodo si
+     * riduce quando i tag si muovono velocemente o sono vicini a una delle soglie registrate con
+     * addDistanceThreshold(), e aumenta quando i tag sono fermi o assenti.
      *
-     * @param dwmResponse Il pacchetto di risposta del modulo DWM
-     * @return La lista di coppie id-distanza dei tag
-     * @throws IllegalArgumentException Se i dati ricevuti dal modulo DWM non sono validi
+     * @param minPeriod Il periodo minimo tra un update e il successivo
+     * @param maxPeriod Il periodo massimo tra un update e il successivo
+     * @throws IllegalArgumentException Se i periodi non sono validi
+     * @throws IllegalStateException Se l'aggiornamento è già avviato
      */
-    private synchronized List<Entry> getDataFromDWMResponse(int[] dwmResponse) throws IllegalArgumentException
+    @SuppressWarnings("WeakerAccess")
+    public synchronized void startAdaptiveUpdate(long minPeriod, long maxPeriod)
+            throws IllegalArgumentException, IllegalStateException
     {
-        if (dwmResponse == null || dwmResponse.length < 21 || dwmResponse[2] != 0)
-        {
-            // Dati non validi
-            throw new IllegalArgumentException("Dati ricevuti dal modulo non validi.");
-        }
+        checkPeriod(minPeriod);
+        if (maxPeriod < minPeriod)
+            throw new IllegalArgumentException("Il periodo massimo deve essere maggiore o uguale " +
+                    "al periodo minimo.");
+
+        if (updateDataTimer != null)
+            throw new IllegalStateException("Timer già avviato");
 
-        // Ottiene il numero di tag inclusi nella risposta
-        int numberOfValues = dwmResponse[20];
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
 
-        List<Entry> newData = new ArrayList<>(numberOfValues);
-        int startIndex = 21;
+        // Allo spegnimento del timer viene cancellato l'eventuale aggiornamento in attesa
+        timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        updateDataTimer = timer;
+        polling.reset(minPeriod, maxPeriod);
+        lastUpdateStart = 0;
 
-        // Si noti che il modulo DWM usa la notazione Little Endian
-        for (int i = 0; i < numberOfValues; i++, startIndex += BYTES_PER_ENTRY)
+        // Ogni aggiornamento programma il successivo, con il periodo calcolato nel frattempo
+        timer.schedule(new Runnable()
         {
-            // Decodifica dell'id del tag
-            int id = (dwmResponse[startIndex + 1] << 8) + dwmResponse[startIndex];
+            @Override
+            public void run()
+            {
+                long start = System.nanoTime();
+                updateDataTask.run();
 
-            // Decodifica della distanza relativa al tag
-            int d1 = dwmResponse[startIndex + 2];
-            int d2 = dwmResponse[startIndex + 3];
-            int d3 = dwmResponse[startIndex + 4];
-            int d4 = dwmResponse[startIndex + 5];
-            int distance = (d4 << 24) + (d3 << 16) + (d2 << 8) + d1;
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                try
+                {
+                    if (!timer.isShutdown())
+                        timer.schedule(this, Math.max(0, polling.period() - elapsed),
+                                TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e)
+                {
+                    // Il timer è stato spento durante l'aggiornamento
+                }
+            }
+        }, minPeriod, TimeUnit.MILLISECONDS);
+    }
 
-            // Aggiunge i dati alla lista delle Entry
-            newData.add(new Entry(id, distance));
-        }
+    /**
+     * Controlla che il periodo di aggiornamento sia valido
+     *
+     * @param period Il periodo di aggiornamento (in ms)
+     * @throws IllegalArgumentException Se il periodo di aggiornamento è troppo basso
+     */
+    private static void checkPeriod(long period) throws IllegalArgumentException
+    {
+        if (period < 0)
+            throw new IllegalArgumentException("Il periodo di aggiornamento deve essere positivo. " +
+                    "Il periodo deve essere di almeno: " + MINIMUM_UPDATE_PERIOD + " ms.");
 
-        return newData;
+        else if (period < MINIMUM_UPDATE_PERIOD)
+            throw new IllegalArgumentException("Il periodo di aggiornamento è troppo basso. " +
+                    "Il periodo deve essere di almeno: " + MINIMUM_UPDATE_PERIOD + " ms.");
     }
 
     /**
-     * Ottiene i nuovi dati dal modulo DWM
+     * Imposta il filtro applicato alle distanze di ciascun tag prima di notificarle ai listener
+     * e di pubblicarle nelle istantanee. Il filtro viene applicato dall'aggiornamento successivo.
      *
-     * @return I nuovi dati dal modulo DWM
-     * @throws IOException Se avviene un errore di comunicazione con il modulo DWM
+     * @param filter Il filtro, creato con DistanceFilter.median() o DistanceFilter.kalman(),
+     *               oppure null per usare le distanze misurate dai moduli
      */
-    private synchronized List<Entry> updateData() throws IOException
+    @SuppressWarnings("WeakerAccess")
+    public void setDistanceFilter(DistanceFilter filter)
     {
-        // Richiede i dati al driverDVM
-        int[] dwmResponse = driverDWM.requestAPI((byte) 0x0C, null);
+        distanceFilter = filter;
+    }
 
-        // Ottiene una lista di Entry dai dati ricevuti dal modulo
-        List<Entry> newData = getDataFromDWMResponse(dwmResponse);
+    /**
+     * Imposta il registratore delle risposte ricevute da tutti i moduli DWM, così che la
+     * sessione possa essere riprodotta con un DWMReplayTransport. Il registratore non viene
+     * chiuso dal controller.
+     *
+     * @param recorder Il registratore, oppure null per terminare la registrazione
+     */
+    @SuppressWarnings("unused")
+    public void setRecorder(DWMRecorder recorder)
+    {
+        for (AsyncDriverDWM driver : driversDWM)
+            driver.getDriver().setRecorder(recorder);
+    }
 
-        logEntryData(TAG, "\nDati dal modulo:\n", "\n", newData);
+    /**
+     * Registra una soglia di distanza: con l'aggiornamento adattivo, i tag vicini alla soglia
+     * vengono interrogati con il periodo minimo
+     *
+     * @param distance La soglia (in mm)
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void addDistanceThreshold(int distance)
+    {
+        polling.addThreshold(distance);
+    }
 
-        // Ordina gli elementi per tagID crescente, in modo tale da velocizzare le operazioni successive
-        Collections.sort(newData, MATCHING_ID_ENTRY_COMPARATOR);
+    /**
+     * Rimuove una soglia di distanza, se presente
+     *
+     * @param distance La soglia (in mm)
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void removeDistanceThreshold(int distance)
+    {
+        polling.removeThreshold(distance);
+    }
 
-        // Elimina i dati dei tag disconnessi
-        for (int i = 0; i < disconnectedData.size(); i++)
-        {
-            Entry discEntry = disconnectedData.get(i);
+    /**
+     * Restituisce il periodo di aggiornamento attuale, fisso o calcolato dopo l'ultimo
+     * aggiornamento
+     *
+     * @return Il periodo (in ms)
+     */
+    @SuppressWarnings("unused")
+    public long getUpdatePeriod()
+    {
+        return polling.period();
+    }
 
-            String toLog = "updateData() -> Esaminando tag disconnesso: " + Integer.toHexString(discEntry.tagID);
+    /**
+     * Restituisce l'istogramma degli intervalli effettivi (in nanosecondi) tra l'inizio di due
+     * aggiornamenti consecutivi, da cui si ricava la frequenza di aggiornamento nel tempo
+     *
+     * @return L'istogramma degli intervalli
+     */
+    @SuppressWarnings("unused")
+    public Histogram getUpdateIntervals()
+    {
+        return updateIntervals;
+    }
 
-            // Ricerca di dati relativi al tag disconnesso in esame nei dati ricevuti dal modulo
-            int result = Collections.binarySearch(newData, discEntry, MATCHING_ID_ENTRY_COMPARATOR);
-            if (result >= 0)
-            {
-                // Dato dello stesso tag presente
-                Entry newEntry = newData.get(result);
+    /**
+     * @return Lo stato attuale della connessione con i moduli DWM
+     */
+    @SuppressWarnings("unused")
+    public ConnectionState getConnectionState()
+    {
+        return connectionState;
+    }
 
-                if(newEntry.tagDistance == discEntry.tagDistance)
-                {
-                    // Tag disconnesso. Eliminare entry dai dati attuali
-                    toLog += " rimossa entry dalla lista.";
-                    newData.remove(result);
-                } else
-                {
-                    /*
-                     Tag che prima era disconnesso e ora si è riconnesso. Rimuovere dalla lista dei
-                     tag disconnessi; la sua riconnessione verrà riconosciuta al prossimo passo.
-                     */
-                    toLog += " tag si è riconnesso.";
-                    disconnectedData.remove(i);
-                    i--;
-                }
-            }
-            else
-                // Dati del tag disconnesso in esame non presenti nei dati ricevuti dal modulo
-                toLog += " tag non è presente.";
+    /**
+     * Restituisce l'istogramma delle durate (in nanosecondi) delle interruzioni degli
+     * aggiornamenti, dal primo aggiornamento fallito al successivo riuscito
+     *
+     * @return L'istogramma delle durate
+     */
+    @SuppressWarnings("unused")
+    public Histogram getOutageDurations()
+    {
+        return outageDurations;
+    }
 
-            Log.v(TAG, toLog);
-        }
+    /**
+     * Restituisce le latenze delle misure, dalla loro richiesta ai moduli fino a ciascuna fase:
+     * ricezione, classificazione, pubblicazione degli eventi e inizio delle callback. La fase
+     * dell'interfaccia grafica viene registrata da chi aggiorna la View, con il timestamp
+     * ricevuto dalla callback.
+     *
+     * @return Le latenze, consultabili in qualsiasi momento
+     */
+    @SuppressWarnings("unused")
+    public LatencyTrace getLatencyTrace()
+    {
+        return trace;
+    }
 
-        return newData;
+    /**
+     * @return Il numero complessivo di tentativi di ripristino della comunicazione
+     */
+    @SuppressWarnings("unused")
+    public long getRecoveryAttempts()
+    {
+        return recoveryAttempts.get();
     }
 
     /**
-     * Classifica i dati ottenuti dal modulo DWM e notifica ai listener
+     * Registra le metriche del controller, con prefisso METRICS_PREFIX, e quelle dei driver dei
+     * moduli DWM. Le gauge leggono lo stato pubblicato dal thread di aggiornamento, senza lock.
      *
-     * @param newData I nuovi dati ottenuti dal modulo
+     * @param registry Il registro delle metriche
      */
-    private synchronized void classifyDataAndNotify(List<Entry> newData)
+    @SuppressWarnings("unused")
+    public void registerMetrics(MetricsRegistry registry)
     {
-        List<Entry> updated = new ArrayList<>();
-        List<Entry> connected = new ArrayList<>();
-        List<Entry> disconnected = new ArrayList<>();
+        registry.register(METRICS_PREFIX + "polls", polls);
+        registry.register(METRICS_PREFIX + "pollErrors", pollErrors);
+        registry.register(METRICS_PREFIX + "moduleErrors", moduleErrors);
+        registry.register(METRICS_PREFIX + "reopenRequests", reopenRequests);
+        registry.register(METRICS_PREFIX + "recoveryAttempts", recoveryAttempts);
+        registry.register(METRICS_PREFIX + "pauses", pauses);
+        registry.register(METRICS_PREFIX + "recoveries", recoveries);
+        registry.register(METRICS_PREFIX + "tagsConnected", tagsConnected);
+        registry.register(METRICS_PREFIX + "tagsDisconnected", tagsDisconnected);
+
+        registry.register(METRICS_PREFIX + "connectionState", new MetricsRegistry.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                return connectionState.ordinal();
+            }
+        });
+        registry.register(METRICS_PREFIX + "tags", new MetricsRegistry.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                return latestFrame.count;
+            }
+        });
+        registry.register(METRICS_PREFIX + "updatePeriod", new MetricsRegistry.Gauge()
+        {
+            @Override
+            public long getValue()
+            {
+                return polling.period();
+            }
+        });
 
-        for (int i = 0; i < newData.size(); i++)
+        registry.register(METRICS_PREFIX + updateIntervals.getName(), updateIntervals);
+        registry.register(METRICS_PREFIX + outageDurations.getName(), outageDurations);
+        for (LatencyTrace.Stage stage : LatencyTrace.Stage.values())
         {
-            Entry newEntry = newData.get(i);
+            Histogram histogram = trace.getHistogram(stage);
+            registry.register(METRICS_PREFIX + histogram.getName(), histogram);
+        }
 
-            String toLog = "classifyDataAndNotify() -> Esaminando tag: " + Integer.toHexString(newEntry.tagID);
+        for (AsyncDriverDWM driver : driversDWM)
+            driver.getDriver().registerMetrics(registry);
+    }
 
-            // Ricerca di Entry nei dati precedenti con lo stesso tagID
-            int result = Collections.binarySearch(actualData, newEntry, MATCHING_ID_ENTRY_COMPARATOR);
-            if (result >= 0)
+    /**
+     * Ottiene i nuovi dati dai moduli DWM e li decodifica direttamente dai buffer delle risposte,
+     * salvandoli nella tabella dei tag.
+     * I moduli vengono interrogati in parallelo; se un modulo non risponde vengono usati i dati
+     * degli altri, così che i dati uniti contengano solo misure appena ricevute, mentre i tag
+     * riportati da quel modulo mantengono lo stato precedente.
+     *
+     * Viene invocato solo dal thread di aggiornamento, senza lock.
+     *
+     * @return Il numero di moduli che hanno risposto correttamente
+     * @throws IOException Se avviene un errore di comunicazione con tutti i moduli DWM
+     * @throws IllegalArgumentException Se i dati ricevuti da tutti i moduli DWM non sono validi
+     */
+    private int updateData() throws IOException, IllegalArgumentException
+    {
+        // Richiede a tutti i driverDWM lo stato e poi i dati, che vengono salvati nei buffer riutilizzati
+        frameTimestamp = System.nanoTime();
+        for (int m = 0; m < driversDWM.length; m++)
+        {
+            driversDWM[m].submit(statusPolls[m], AsyncDriverDWM.Priority.HIGH);
+            driversDWM[m].submit(locationPolls[m], AsyncDriverDWM.Priority.HIGH);
+        }
+
+        // Fornisce alla tabella i tag di tutte le risposte valide
+        tagTable.beginFrame(frameTimestamp);
+        int validResponses = 0;
+        Exception firstError = null;
+        for (int m = 0; m < driversDWM.length; m++)
+        {
+            DWMLocationView view;
+            boolean updated;
+            try
+            {
+                updated = locationUpdated(statusBuffers[m], statusPolls[m].await());
+                int length = locationPolls[m].await();
+                view = locationViews[m].wrap(responseBuffers[m], length);
+            } catch (IOException | RuntimeException e)
             {
-                Entry actualEntry = actualData.get(result);
+                if (firstError == null)
+                    firstError = e;
+                moduleErrors.increment();
+
+                // I tag del modulo mantengono lo stato precedente, senza disconnessioni spurie
+                tagTable.moduleFailed(m);
 
-                if (newEntry.tagDistance == actualEntry.tagDistance)
+                if (driversDWM.length > 1)
                 {
-                    // Tag appena disconnesso
-                    newEntry.counter = actualEntry.counter + 1;
-
-                    /*
-                     Controlla se il tag è andato fuori portata,
-                     ovvero se ha ricevuto troppi dati uguali consecutivi
-                     */
-                    if (newEntry.counter >= COUNTER_FOR_DISCONNECTED)
-                    {
-                        // Dichiara disconnessione
-                        toLog += " appena disconnesso.";
-                        disconnected.add(new Entry(newEntry));
-                        disconnectedData.add(new Entry(newEntry));
-                    }
-                    else
+                    Log.w(TAG, "Dati non ricevuti dal modulo su " + driversDWM[m].getMyBus(), e);
+
+                    // Nel caso sia stato perso l'accesso alla periferica, la riapre in background
+                    if (e instanceof IllegalStateException)
                     {
-                        // Incrementa contatore dati uguali consecutivi
-                        toLog += (" potrebbe essere disconnesso, con counter: " + newEntry.counter + ".");
-                        updated.add(new Entry(newEntry));
+                        reopenRequests.increment();
+                        driversDWM[m].submitTask(REOPEN_TASK, AsyncDriverDWM.Priority.LOW);
                     }
-                } else
-                {
-                    // Ricevuti nuovi dati, azzera contatore
-                    newEntry.counter = 0;
-                    toLog += " tag aggiornato.";
-                    updated.add(new Entry(newEntry));
                 }
-            } else
-            {
-                // Tag appena connesso
-                newEntry.counter = 0;
-                toLog += " appena connesso.";
-                connected.add(new Entry(newEntry));
+                continue;
             }
 
-            Log.v(TAG, toLog);
+            validResponses++;
+            if (updated)
+                tagTable.moduleUpdated(m);
+
+            // Tra le misure dello stesso tag fatte da moduli diversi, la tabella sceglie la più affidabile
+            for (int i = 0; i < view.size(); i++)
+                tagTable.offer(view, i, m);
         }
 
-        // Ricerca di Entry relative a tag che "scompaiono" nell'ultimo aggiornamento
-        for (int i = 0; i < actualData.size(); i++)
+        if (validResponses == 0)
         {
-            Entry actualEntry = actualData.get(i);
+            if (firstError instanceof IOException)
+                throw (IOException) firstError;
+            throw (RuntimeException) firstError;
+        }
 
-            int result = Collections.binarySearch(newData, actualEntry, MATCHING_ID_ENTRY_COMPARATOR);
-            if (result < 0)
-            {
-                // Tag presente nei dati vecchi ma non più nei nuovi => tag disconnesso
-                disconnected.add(new Entry(actualEntry.tagID, actualEntry.tagDistance));
+        trace.record(LatencyTrace.Stage.BUS_DONE, frameTimestamp);
+        return validResponses;
+    }
 
-                Log.v(TAG, "classifyDataAndNotify() -> Esaminando vecchio tag: " +
-                        Integer.toHexString(actualEntry.tagID) + ": appena disconnesso.");
-            }
+    /**
+     * Elabora un aggiornamento con risposte già ricevute e decodificate, senza interrogare i
+     * moduli: classifica i tag, pubblica l'istantanea e notifica ai listener come un normale
+     * ciclo di aggiornamento. Serve ai benchmark per misurare l'elaborazione senza i tempi del
+     * bus; non va usato mentre l'aggiornamento periodico è attivo. Ogni risposta viene
+     * considerata un nuovo aggiornamento del modulo.
+     *
+     * @param views Le risposte dei moduli
+     * @param count Il numero di risposte da usare
+     * @param now Il momento dell'aggiornamento, come restituito da System.nanoTime()
+     */
+    void processFrame(DWMLocationView[] views, int count, long now)
+    {
+        frameTimestamp = now;
+        tagTable.beginFrame(now);
+        for (int m = 0; m < count; m++)
+        {
+            tagTable.moduleUpdated(m);
+            for (int i = 0; i < views[m].size(); i++)
+                tagTable.offer(views[m], i, m);
+        }
+
+        classifyDataAndNotify();
+    }
+
+    /**
+     * Classifica i dati ottenuti dai moduli DWM, aggiornando sul posto la tabella dei tag,
+     * pubblica il nuovo stato e notifica ai listener.
+     * Viene invocato solo dal thread di aggiornamento, senza lock.
+     */
+    private void classifyDataAndNotify()
+    {
+        // Il filtro viene cambiato solo tra due classificazioni
+        DistanceFilter filter = distanceFilter;
+        if (filter != tagTable.getFilter())
+            tagTable.setFilter(filter);
+
+        tagTable.classify(staleTimeout);
+        polling.update(tagTable, frameTimestamp);
+        tagsConnected.add(tagTable.connectedCount());
+        tagsDisconnected.add(tagTable.disconnectedCount());
+
+        publishFrame();
+        trace.record(LatencyTrace.Stage.CLASSIFIED, frameTimestamp);
+
+        logTagData(TAG, "\nTag appena connessi: " + tagTable.connectedCount() + "\n", "\n",
+                tagTable, TagTable.EVENT_CONNECTED);
+        logTagData(TAG, "\nTag appena disconnessi: " + tagTable.disconnectedCount() + "\n", "\n",
+                tagTable, TagTable.EVENT_DISCONNECTED);
+        logTagData(TAG, "\nTag ancora connessi: " + tagTable.updatedCount() + "\n", "\n",
+                tagTable, TagTable.EVENT_UPDATED);
+
+        // Notifica i nuovi dati a tutti i listener. Le entry vengono create solo se servono
+        ListenerRegistry.Snapshot snapshot = listeners.snapshot();
+        if (snapshot.allListeners.length > 0)
+        {
+            List<Entry> connected = new ArrayList<>(tagTable.connectedCount());
+            for (int i = 0; i < tagTable.connectedCount(); i++)
+                connected.add(toEntry(tagTable.connectedSlot(i)));
+
+            List<Entry> disconnected = new ArrayList<>(tagTable.disconnectedCount());
+            for (int i = 0; i < tagTable.disconnectedCount(); i++)
+                disconnected.add(toEntry(tagTable.disconnectedSlot(i)));
+
+            List<Entry> updated = new ArrayList<>(tagTable.updatedCount());
+            for (int i = 0; i < tagTable.updatedCount(); i++)
+                updated.add(toEntry(tagTable.updatedSlot(i)));
+
+            notifyToAllTagsListeners(snapshot, connected, disconnected, updated);
+        }
+        if (snapshot.tagCount() > 0)
+            notifyToTagsListeners(snapshot);
+
+        evaluateRules();
+        trace.record(LatencyTrace.Stage.DISPATCHED, frameTimestamp);
+    }
+
+    /**
+     * Valuta le regole sulle soglie per i tag misurati nell'ultimo aggiornamento, notificando
+     * solo gli attraversamenti.
+     * Viene invocato solo dal thread di aggiornamento.
+     */
+    private void evaluateRules()
+    {
+        if (rules.beginCycle().size() == 0)
+            return;
+
+        for (int i = 0; i < tagTable.connectedCount(); i++)
+        {
+            int slot = tagTable.connectedSlot(i);
+            rules.evaluate(tagTable.tagID(slot), tagTable.filteredDistance(slot), frameTimestamp,
+                    dispatcher);
+        }
+        for (int i = 0; i < tagTable.updatedCount(); i++)
+        {
+            int slot = tagTable.updatedSlot(i);
+            rules.evaluate(tagTable.tagID(slot), tagTable.filteredDistance(slot), frameTimestamp,
+                    dispatcher);
+        }
+        for (int i = 0; i < tagTable.disconnectedCount(); i++)
+            rules.tagLost(tagTable.tagID(tagTable.disconnectedSlot(i)));
+    }
+
+    /**
+     * Crea e pubblica l'istantanea con i tag connessi presenti nella tabella, risvegliando gli
+     * eventuali thread in attesa. I dati vengono copiati in un unico array, scorrendo la tabella
+     * nell'ordine dei tagID: non vengono create entry né effettuati ordinamenti.
+     */
+    private void publishFrame()
+    {
+        int count = 0;
+        for (int i = 0; i < tagTable.size(); i++)
+        {
+            if (tagTable.state(tagTable.sortedSlot(i)) == TagTable.STATE_CONNECTED)
+                count++;
         }
 
-        // Ordina i dati relativi ai tag disconnessi. Necessario per velocizzare le operazioni.
-        Collections.sort(disconnectedData, MATCHING_ID_ENTRY_COMPARATOR);
+        int[] data = new int[count * Frame.ENTRY_FIELDS];
+        int offset = 0;
+        for (int i = 0; i < tagTable.size(); i++)
+        {
+            int slot = tagTable.sortedSlot(i);
+            if (tagTable.state(slot) != TagTable.STATE_CONNECTED)
+                continue;
+
+            data[offset] = tagTable.tagID(slot);
+            data[offset + 1] = tagTable.filteredDistance(slot);
+            data[offset + 2] = tagTable.quality(slot);
+            data[offset + 3] = tagTable.x(slot);
+            data[offset + 4] = tagTable.y(slot);
+            data[offset + 5] = tagTable.z(slot);
+            data[offset + 6] = tagTable.positionQuality(slot);
+            data[offset + 7] = tagTable.velocity(slot);
+            offset += Frame.ENTRY_FIELDS;
+        }
 
-        logEntryData(TAG, "\nTag appena connessi: " + connected.size() + "\n", "\n", connected);
-        logEntryData(TAG, "\nTag appena disconnessi: " + disconnected.size() + "\n", "\n", disconnected);
-        logEntryData(TAG, "\nTag ancora connessi: " + updated.size() + "\n", "\n", updated);
+        // Viene scritta solo da questo thread, quindi l'incremento non richiede lock
+        latestFrame = new Frame(latestFrame.sequence + 1, frameTimestamp, data, count);
 
-        // Notifica i nuovi dati a tutti i listener
-        notifyToAllTagsListeners(connected, disconnected, updated);
-        notifyToTagsListeners(connected, disconnected, updated);
+        if (frameWaiters > 0)
+        {
+            synchronized (frameMonitor)
+            {
+                frameMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Crea un'entry con i dati di un tag della tabella
+     *
+     * @param slot La posizione del tag nella tabella
+     * @return L'entry
+     */
+    private Entry toEntry(int slot)
+    {
+        return new Entry(tagTable.tagID(slot), tagTable.filteredDistance(slot), tagTable.quality(slot),
+                tagTable.x(slot), tagTable.y(slot), tagTable.z(slot), tagTable.positionQuality(slot),
+                tagTable.velocity(slot), frameTimestamp);
     }
 
     /**
-     * Notifica a tutti i listener globali.
-     * Questo metodo non è synchronized poiché viene invocato solamente all'interno di metodi synchronized.
+     * Notifica a tutti i listener globali, tramite il distributore degli eventi.
+     * Viene invocato solo dal thread di aggiornamento.
      *
+     * @param snapshot Istantanea dei listener registrati
      * @param connected Lista di entry dei tag appena connessi
      * @param disconnected Lista di entry dei tag appena disconnessi
      * @param updated Lista di entry dei tag con dati aggiornati
      */
-    private void notifyToAllTagsListeners(final List<Entry> connected, final List<Entry> disconnected, final List<Entry> updated)
+    private void notifyToAllTagsListeners(ListenerRegistry.Snapshot snapshot, List<Entry> connected,
+                                          List<Entry> disconnected, List<Entry> updated)
     {
-        for (int i = 0; i < allListeners.size(); i++)
+        for (AllTagsListener listener : snapshot.allListeners)
         {
-            final AllTagsListener listener = allListeners.get(i);
-
+            // Presenti tags connessi nell'ultimo aggiornamento dei dati
             if (connected != null && connected.size() > 0)
-            {
-                // Presenti tags connessi nell'ultimo aggiornamento dei dati
-                new Thread(new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        // Notifica su thread separato
-                        listener.onTagHasConnected(connected);
-                    }
-                }).start();
-            }
+                dispatcher.tagsConnected(listener, connected, frameTimestamp);
 
+            // Presenti tags disconnessi nell'ultimo aggiornamento dei dati
             if (disconnected != null && disconnected.size() > 0)
-            {
-                // Presenti tags disconnessi nell'ultimo aggiornamento dei dati
-                new Thread(new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        // Notifica su thread separato
-                        listener.onTagHasDisconnected(disconnected);
-                    }
-                }).start();
-            }
+                dispatcher.tagsDisconnected(listener, disconnected, frameTimestamp);
 
+            // Presenti tags aggiornati nell'ultimo aggiornamento dei dati
             if (updated != null && updated.size() > 0)
-            {
-                // Presenti tags aggiornati nell'ultimo aggiornamento dei dati
-                new Thread(new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        // Notifica su thread separato
-                        listener.onTagDataAvailable(updated);
-                    }
-                }).start();
-            }
+                dispatcher.tagsDataAvailable(listener, updated, frameTimestamp);
         }
     }
 
     /**
-     * Notifica a tutti i listener specifici per un tag, se sono avvenuti degli eventi su quel tag
+     * Notifica ai listener specifici per un tag gli eventi avvenuti su quel tag.
+     * Vengono esaminati solo i tag con eventi nell'ultimo aggiornamento, cercandone i listener
+     * nell'istantanea del registro.
      *
-     * @param connected Lista di entry dei tag appena connessi
-     * @param disconnected Lista di entry dei tag appena disconnessi
-     * @param updated Lista di entry dei tag con dati aggiornati
+     * @param snapshot Istantanea dei listener registrati
      */
-    private void notifyToTagsListeners(final List<Entry> connected, final List<Entry> disconnected, final List<Entry> updated)
+    private void notifyToTagsListeners(ListenerRegistry.Snapshot snapshot)
     {
-        // Lock già ottenuto
+        // Tag appena connessi
+        for (int i = 0; i < tagTable.connectedCount(); i++)
+        {
+            int slot = tagTable.connectedSlot(i);
+            TagListener[] tagListeners = snapshot.forTag(tagTable.tagID(slot));
+            if (tagListeners != null)
+                for (TagListener listener : tagListeners)
+                    dispatcher.tagConnected(listener, tagTable.filteredDistance(slot), frameTimestamp);
+        }
 
-        for (int i = 0; i < tagListeners.size(); i++)
+        // Tag appena disconnessi
+        for (int i = 0; i < tagTable.disconnectedCount(); i++)
         {
-            final Pair<Integer, TagListener> pair = tagListeners.get(i);
-            int ID = pair.first;
-            final TagListener listener = pair.second;
+            int slot = tagTable.disconnectedSlot(i);
+            TagListener[] tagListeners = snapshot.forTag(tagTable.tagID(slot));
+            if (tagListeners != null)
+                for (TagListener listener : tagListeners)
+                    dispatcher.tagDisconnected(listener, tagTable.filteredDistance(slot), frameTimestamp);
+        }
 
-            if (connected != null && connected.size() > 0)
-            {
-                // connected, disconnected e data sono ordinati, per costruzione
-                final int r1 = Collections.binarySearch(connected, new Entry(ID, -1), MATCHING_ID_ENTRY_COMPARATOR);
-                if (r1 >= 0)
-                {
-                    // Il tag si è appena connesso
-                    new Thread(new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            // Notifica su thread separato
-                            listener.onTagHasConnected(connected.get(r1).tagDistance);
-                        }
-                    }).start();
-
-                    continue;
-                }
-            }
+        // Tag ancora connessi, di cui si notifica la nuova posizione
+        for (int i = 0; i < tagTable.updatedCount(); i++)
+        {
+            int slot = tagTable.updatedSlot(i);
+            TagListener[] tagListeners = snapshot.forTag(tagTable.tagID(slot));
+            if (tagListeners != null)
+                for (TagListener listener : tagListeners)
+                    dispatcher.tagDataAvailable(listener, tagTable.filteredDistance(slot), frameTimestamp);
+        }
+    }
 
-            if (disconnected != null && disconnected.size() > 0)
+    /**
+     * Inizia il ripristino della comunicazione con i moduli DWM. Il controllo dei moduli viene
+     * richiesto dopo un tempo minimo, da un'esecuzione successiva del task di aggiornamento.
+     * Viene invocato solo dal thread di aggiornamento.
+     *
+     * @param now L'istante attuale (in ns)
+     * @param reopen true se è stato perso l'accesso alle periferiche, che vanno quindi riaperte
+     */
+    private void beginRecovery(long now, boolean reopen)
+    {
+        connectionState = ConnectionState.RECONNECTING;
+        lostPeripheral = reopen;
+        recoveryAttempts.increment();
+
+        // Riapre le periferiche; eventuali errori verranno rilevati dal controllo successivo
+        if (reopen)
+            for (AsyncDriverDWM driver : driversDWM)
             {
-                final int r2 = Collections.binarySearch(disconnected, new Entry(ID, -1), MATCHING_ID_ENTRY_COMPARATOR);
-                if (r2 >= 0)
-                {
-                    // Il tag si è appena disconnesso
-                    new Thread(new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            // Notifica su thread separato
-                            listener.onTagHasDisconnected(disconnected.get(r2).tagDistance);
-                        }
-                    }).start();
-
-                    continue;
-                }
+                reopenRequests.increment();
+                driver.submitTask(REOPEN_TASK, AsyncDriverDWM.Priority.LOW);
             }
 
-            if (updated != null && updated.size() > 0)
+        healthChecks = null;
+        nextRecoveryStep = now + TimeUnit.MILLISECONDS.toNanos(MINIMUM_UPDATE_PERIOD);
+    }
+
+    /**
+     * Effettua un passo del ripristino della comunicazione: richiede il controllo di tutti i
+     * moduli in parallelo oppure, quando tutti i controlli sono terminati, ne valuta l'esito.
+     * La comunicazione è considerata ripristinata se almeno uno dei moduli funziona; altrimenti
+     * l'aggiornamento viene sospeso per un periodo che cresce esponenzialmente.
+     * Viene invocato solo dal thread di aggiornamento e non attende mai i moduli.
+     *
+     * @param now L'istante attuale (in ns)
+     */
+    private void recoveryStep(long now)
+    {
+        if (healthChecks == null)
+        {
+            // Attende che i moduli si siano sistemati
+            if (now - nextRecoveryStep < 0)
+                return;
+
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            CompletableFuture<Void>[] checks = new CompletableFuture[driversDWM.length];
+            for (int m = 0; m < driversDWM.length; m++)
+                checks[m] = driversDWM[m].submitHealthCheck();
+            healthChecks = checks;
+            return;
+        }
+
+        Exception firstError = null;
+        boolean working = false;
+        boolean lost = false;
+        for (CompletableFuture<Void> check : healthChecks)
+        {
+            if (!check.isDone())
+                return;
+
+            try
             {
-                final int r3 = Collections.binarySearch(updated, new Entry(ID, -1), MATCHING_ID_ENTRY_COMPARATOR);
-                if (r3 >= 0)
-                {
-                    // Il tag è ancora connesso e si notifica la nuova posizione
-                    new Thread(new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            // Notifica su thread separato
-                            listener.onTagDataAvailable(updated.get(r3).tagDistance);
-                        }
-                    }).start();
-                }
+                AsyncDriverDWM.await(check);
+                working = true;
+            } catch (IOException | RuntimeException e)
+            {
+                if (firstError == null)
+                    firstError = e;
+                if (e instanceof IllegalStateException)
+                    lost = true;
             }
         }
+        healthChecks = null;
+
+        if (working)
+        {
+            // La connessione è funzionante: riprende l'aggiornamento
+            connectionErrors = 0;
+            connectionState = ConnectionState.DEGRADED;
+            recoveries.increment();
+            Log.i(TAG, "Comunicazione ripristinata");
+            return;
+        }
+
+        /*
+         Nel caso ci siano stati ancora problemi, sospende l'aggiornamento per un lasso di tempo,
+         così da permettere al modulo di sistemarsi
+         */
+        long base = INITIAL_PAUSE_TIME << Math.min(failedRecoveries, 16);
+        base = Math.min(base, COMMUNICATION_PAUSE_TIME);
+        double jitter = PAUSE_JITTER * (2.0 * ThreadLocalRandom.current().nextDouble() - 1.0);
+        long pause = (long) (base * (1.0 + jitter));
+        failedRecoveries++;
+
+        // Al termine della pausa le periferiche vengono riaperte solo se ne è stato perso l'accesso
+        lostPeripheral = lost;
+        nextRecoveryStep = now + TimeUnit.MILLISECONDS.toNanos(pause);
+        connectionState = ConnectionState.PAUSED;
+        pauses.increment();
+
+        String text = "Periferica non funzionante.\n" +
+                "Nuovo tentativo tra " + ((pause + 999L) / 1000L) + " secondi.";
+        Log.e(TAG, text, firstError);
+
+        // Segnala il problema all'inizio dell'interruzione, e poi a ogni periodo massimo
+        if (failedRecoveries == 1 || base == COMMUNICATION_PAUSE_TIME)
+            notifyError(text, firstError);
     }
 
     /**
@@ -703,59 +1532,91 @@ public class DistanceController
      * @param shortDescription Breve descrizione del problema
      * @param e Eccezzione avvenuta
      */
-    private void notifyError(final String shortDescription, final Exception e) {
+    private void notifyError(String shortDescription, Exception e) {
+        ListenerRegistry.Snapshot snapshot = listeners.snapshot();
+
         // Segnalazione a tutti gli AllTagsListener
-        for (int i = 0; i < allListeners.size(); i++) {
-            final AllTagsListener listener = allListeners.get(i);
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    // Notifica su thread separato
-                    listener.onError(shortDescription, e);
-                }
-            }).start();
-        }
+        for (AllTagsListener listener : snapshot.allListeners)
+            dispatcher.error(listener, shortDescription, e);
 
         // Segnalazione a tutti i TagListener
-        for (int i = 0; i < tagListeners.size(); i++) {
-            final Pair<Integer, TagListener> pair = tagListeners.get(i);
-            final TagListener listener = pair.second;
-
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    // Notifica su thread separato
-                    listener.onError(shortDescription, e);
-                }
-            }).start();
-        }
+        for (int i = 0; i < snapshot.tagCount(); i++)
+            for (TagListener listener : snapshot.listenersAt(i))
+                dispatcher.error(listener, shortDescription, e);
     }
 
     /**
-     * Aggiunge un listener che risponde agli eventi per tutti i tag
+     * Aggiunge un listener che risponde agli eventi per tutti i tag.
+     * Non attende mai il polling in corso: il listener riceverà gli eventi dall'aggiornamento
+     * successivo.
      *
      * @param listener Il listener da aggiungere
      */
-    public synchronized void addAllTagsListener(AllTagsListener listener)
+    public void addAllTagsListener(AllTagsListener listener)
     {
-        if (allListeners == null)
-            return;
-
-        allListeners.add(listener);
+        synchronized (listeners)
+        {
+            dispatcher.subscribe(listener);
+            listeners.addAllTagsListener(listener);
+        }
     }
 
     /**
-     * Aggiunge un listener per uno specifico tag
+     * Aggiunge un listener per uno specifico tag.
+     * Non attende mai il polling in corso: il listener riceverà gli eventi dall'aggiornamento
+     * successivo.
      *
      * @param tagID L'ID del tag a cui viene associato il listener
      * @param listener Il listener
      */
-    public synchronized void addTagListener(int tagID, TagListener listener)
+    public void addTagListener(int tagID, TagListener listener)
     {
-        if (tagListeners == null)
-            return;
+        synchronized (listeners)
+        {
+            dispatcher.subscribe(listener);
+            listeners.addTagListener(tagID, listener);
+        }
+    }
+
+    /**
+     * Aggiunge una regola su una soglia di distanza, valutata a ogni aggiornamento.
+     * Il listener viene notificato quando la distanza del tag supera la soglia per almeno il tempo
+     * minimo, e quando rientra sotto la soglia meno l'isteresi per almeno il tempo minimo; non
+     * riceve notifiche per gli altri aggiornamenti.
+     *
+     * @param tagID L'ID del tag
+     * @param limit La soglia (in mm)
+     * @param hysteresis L'isteresi (in mm)
+     * @param dwell Il tempo minimo per cui deve durare la condizione (in ms)
+     * @param listener Il listener a cui notificare gli attraversamenti
+     * @return L'ID della regola, da usare per rimuoverla, oppure -1 se il controller è chiuso
+     * @throws IllegalArgumentException Se l'isteresi o il tempo minimo sono negativi
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int addThresholdRule(int tagID, int limit, int hysteresis, long dwell,
+                                ThresholdListener listener) throws IllegalArgumentException
+    {
+        synchronized (listeners)
+        {
+            dispatcher.subscribe(listener);
+            return rules.add(tagID, limit, hysteresis, dwell, listener);
+        }
+    }
 
-        tagListeners.add(new Pair<>(tagID, listener));
+    /**
+     * Rimuove una regola, se presente
+     *
+     * @param ruleID L'ID della regola, restituito da addThresholdRule()
+     */
+    @SuppressWarnings("unused")
+    public void removeThresholdRule(int ruleID)
+    {
+        synchronized (listeners)
+        {
+            ThresholdListener listener = rules.remove(ruleID);
+            if (listener != null && !rules.contains(listener) && !listeners.contains(listener))
+                dispatcher.unsubscribe(listener);
+        }
     }
 
     /**
@@ -764,47 +1625,111 @@ public class DistanceController
      * @param listener Il listener da rimuovere
      */
     @SuppressWarnings("unused")
-    public synchronized void removeAllTagsListener(AllTagsListener listener)
+    public void removeAllTagsListener(AllTagsListener listener)
     {
-        if (allListeners == null)
-            return;
-
-        allListeners.remove(listener);
+        synchronized (listeners)
+        {
+            if (listeners.removeAllTagsListener(listener) && !listeners.contains(listener)
+                    && !rules.contains(listener))
+                dispatcher.unsubscribe(listener);
+        }
     }
 
     /**
-     * Rimuove il listener, se presente
+     * Rimuove il listener da tutti i tag a cui è associato, se presente
      *
      * @param listener Il listener da rimuovere
      */
     @SuppressWarnings("unused")
-    public synchronized void removeTagListener(TagListener listener)
+    public void removeTagListener(TagListener listener)
     {
-        if (tagListeners == null)
+        synchronized (listeners)
+        {
+            if (listeners.removeTagListener(listener) && !listeners.contains(listener)
+                    && !rules.contains(listener))
+                dispatcher.unsubscribe(listener);
+        }
+    }
+
+    /**
+     * Restituisce il numero di eventi pubblicati per un listener e non ancora consegnati.
+     * Un valore che cresce indica un listener troppo lento, che comunque non rallenta il polling.
+     *
+     * @param listener Un AllTagsListener, un TagListener o un ThresholdListener registrato
+     * @return Il numero di eventi in attesa, 0 se il listener non è registrato
+     */
+    @SuppressWarnings("unused")
+    public long getListenerLag(Object listener)
+    {
+        EventDispatcher.Subscriber subscriber = dispatcher.getSubscriber(listener);
+        return subscriber == null ? 0 : subscriber.getLag();
+    }
+
+    /**
+     * Restituisce il numero di eventi di dati disponibili scartati per un listener perché troppo lento
+     *
+     * @param listener Un AllTagsListener, un TagListener o un ThresholdListener registrato
+     * @return Il numero di eventi scartati, 0 se il listener non è registrato
+     */
+    @SuppressWarnings("unused")
+    public long getListenerDroppedEvents(Object listener)
+    {
+        EventDispatcher.Subscriber subscriber = dispatcher.getSubscriber(listener);
+        return subscriber == null ? 0 : subscriber.dropped.get();
+    }
+
+    /**
+     * Restituisce l'istogramma dei ritardi (in nanosecondi) tra la pubblicazione di un evento e
+     * la sua consegna al listener
+     *
+     * @param listener Un AllTagsListener, un TagListener o un ThresholdListener registrato
+     * @return L'istogramma dei ritardi, oppure null se il listener non è registrato
+     */
+    @SuppressWarnings("unused")
+    public Histogram getListenerLatency(Object listener)
+    {
+        EventDispatcher.Subscriber subscriber = dispatcher.getSubscriber(listener);
+        return subscriber == null ? null : subscriber.latency;
+    }
+
+    /**
+     * Termina l'aggiornamento del modulo, attendendo il termine dell'eventuale ciclo in corso:
+     * al ritorno nessun ciclo è in esecuzione e startUpdate() può essere invocato subito.
+     * Non deve essere invocato dal thread di aggiornamento.
+     */
+    @SuppressWarnings({"WeakerAccess"})
+    public void stopUpdate()
+    {
+        ScheduledThreadPoolExecutor timer = detachTimer();
+        if (timer == null)
             return;
 
-        for (int i = 0; i < tagListeners.size(); i++)
+        // L'attesa avviene fuori dal lock, così da non bloccare le altre chiamate al controller
+        try
         {
-            Pair<Integer, TagListener> pair = tagListeners.get(i);
-
-            if (pair.second.equals(listener))
-            {
-                tagListeners.remove(i);
-            }
+            while (!timer.awaitTermination(1, TimeUnit.SECONDS))
+                Log.w(TAG, "Attesa del termine del ciclo di aggiornamento in corso");
+        } catch (InterruptedException e)
+        {
+            // Il ciclo in corso non si sovrappone comunque al successivo grazie a cycleLock
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * Termina l'aggiornamento del modulo
+     * Spegne il timer di aggiornamento senza attendere il ciclo in corso
+     *
+     * @return Il timer spento, null se l'aggiornamento non era avviato
      */
-    @SuppressWarnings({"WeakerAccess"})
-    public synchronized void stopUpdate()
+    private synchronized ScheduledThreadPoolExecutor detachTimer()
     {
-        if (updateDataTimer != null)
+        ScheduledThreadPoolExecutor timer = updateDataTimer;
+        if (timer != null)
         {
-            updateDataTimer.shutdown();
+            timer.shutdown();
             updateDataTimer = null;
         }
+        return timer;
     }
 
     /**
@@ -812,24 +1737,32 @@ public class DistanceController
      */
     public synchronized void close()
     {
-        // Termina l'aggiornamento
-        stopUpdate();
+        if (closed)
+            return;
+        closed = true;
 
-        // Chiude il driverDWM
-        if (driverDWM != null)
+        /*
+         Termina l'aggiornamento senza attenderlo: un ciclo eventualmente in corso termina
+         senza effetti, e la chiusura dei driver lo sblocca al termine del trasferimento in corso
+         */
+        detachTimer();
+
+        /*
+         Chiude i driverDWM, terminando i relativi thread di I/O: le richieste in coda falliscono
+         subito, si attende solo il termine dell'eventuale trasferimento in corso
+         */
+        for (AsyncDriverDWM driver : driversDWM)
+            driver.close();
+
+        // Cancella i listener e le regole e termina i thread che li notificano
+        listeners.close();
+        rules.close();
+        dispatcher.close();
+
+        // Risveglia i thread in attesa di una nuova istantanea
+        synchronized (frameMonitor)
         {
-            try
-            {
-                driverDWM.close();
-            } catch (IOException e)
-            {
-                Log.e(TAG, "Eccezione in chiusura del driver DWM", e);
-            }
-            driverDWM = null;
+            frameMonitor.notifyAll();
         }
-
-        // Cancella i listener
-        allListeners = null;
-        tagListeners = null;
     }
 }
\ No newline at end of file
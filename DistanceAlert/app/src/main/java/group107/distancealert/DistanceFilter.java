@@ -0,0 +1,261 @@
+package group107.distancealert;
+
+/**
+ * Filtro applicato dal DistanceController alle distanze di ciascun tag, prima di notificarle ai
+ * listener, per eliminare i picchi e il rumore delle singole misure. Oltre alla distanza filtrata
+ * fornisce una stima della velocità del tag.
+ * Il filtro non ha stato proprio: lo stato di ciascun tag è memorizzato dalla tabella dei tag in
+ * un array di double preallocato, di stateSize() elementi per tag, quindi l'aggiornamento non
+ * alloca memoria e lo stesso filtro può essere usato da più controller.
+ * I filtri disponibili sono la mediana delle ultime N misure e un filtro di Kalman a velocità
+ * costante.
+ */
+@SuppressWarnings("WeakerAccess")
+public abstract class DistanceFilter {
+    /**
+     * Crea un filtro che restituisce la mediana delle ultime misure, che elimina i picchi isolati
+     *
+     * @param window Numero di misure considerate, dispari
+     * @return Il filtro
+     * @throws IllegalArgumentException Se window non è un numero dispari positivo
+     */
+    public static DistanceFilter median(int window) throws IllegalArgumentException {
+        if (window <= 0 || window % 2 == 0) {
+            throw new IllegalArgumentException("Bad window size");
+        }
+        return new Median(window);
+    }
+
+    /**
+     * Crea un filtro di Kalman monodimensionale con modello a velocità costante: la distanza e
+     * la velocità del tag vengono stimate insieme, considerando l'accelerazione del tag come
+     * rumore del modello
+     *
+     * @param accelerationNoise Deviazione standard dell'accelerazione del tag (in mm/s^2)
+     * @param measurementNoise Deviazione standard dell'errore di misura (in mm)
+     * @return Il filtro
+     * @throws IllegalArgumentException Se i parametri non sono positivi
+     */
+    public static DistanceFilter kalman(double accelerationNoise, double measurementNoise)
+            throws IllegalArgumentException {
+        if (!(accelerationNoise > 0) || !(measurementNoise > 0)) {
+            throw new IllegalArgumentException("Bad noise parameters");
+        }
+        return new Kalman(accelerationNoise * accelerationNoise, measurementNoise * measurementNoise);
+    }
+
+    /**
+     * I filtri possono essere creati solo tramite i metodi statici
+     */
+    private DistanceFilter() {
+    }
+
+    /**
+     * @return Numero di elementi dello stato di un tag
+     */
+    abstract int stateSize();
+
+    /**
+     * Inizializza lo stato di un tag con la prima misura
+     *
+     * @param state Array degli stati
+     * @param offset Posizione dello stato del tag nell'array
+     * @param distance La misura (in mm)
+     */
+    abstract void reset(double[] state, int offset, int distance);
+
+    /**
+     * Aggiorna lo stato di un tag con una nuova misura
+     *
+     * @param state Array degli stati
+     * @param offset Posizione dello stato del tag nell'array
+     * @param distance La misura (in mm)
+     * @param elapsed Tempo trascorso dalla misura precedente (in s)
+     */
+    abstract void update(double[] state, int offset, int distance, double elapsed);
+
+    /**
+     * @return La distanza filtrata (in mm)
+     */
+    abstract int distance(double[] state, int offset);
+
+    /**
+     * @return La velocità stimata (in mm/s), positiva se il tag si allontana
+     */
+    abstract double velocity(double[] state, int offset);
+
+    /**
+     * Mediana delle ultime misure. Lo stato contiene il numero di misure, la posizione della
+     * prossima misura nel buffer circolare, il buffer circolare, le stesse misure ordinate,
+     * l'uscita e la velocità. Il buffer ordinato viene aggiornato a ogni misura togliendo la più
+     * vecchia e inserendo la nuova, in tempo lineare nella dimensione della finestra.
+     */
+    private static final class Median extends DistanceFilter {
+        /**
+         * Peso di ogni nuova stima della velocità, ottenuta dalla differenza tra due uscite
+         */
+        private static final double VELOCITY_SMOOTHING = 0.5;
+
+        private static final int COUNT = 0;
+        private static final int NEXT = 1;
+        private static final int RING = 2;
+
+        private final int window;
+        private final int sorted;
+        private final int output;
+        private final int velocity;
+
+        Median(int window) {
+            this.window = window;
+            sorted = RING + window;
+            output = sorted + window;
+            velocity = output + 1;
+        }
+
+        @Override
+        int stateSize() {
+            return velocity + 1;
+        }
+
+        @Override
+        void reset(double[] state, int offset, int distance) {
+            state[offset + COUNT] = 1;
+            state[offset + NEXT] = 1 % window;
+            state[offset + RING] = distance;
+            state[offset + sorted] = distance;
+            state[offset + output] = distance;
+            state[offset + velocity] = 0;
+        }
+
+        @Override
+        void update(double[] state, int offset, int distance, double elapsed) {
+            int count = (int) state[offset + COUNT];
+            int next = (int) state[offset + NEXT];
+            int s = offset + sorted;
+
+            // Toglie dalle misure ordinate quella che esce dalla finestra
+            if (count == window) {
+                double old = state[offset + RING + next];
+                int i = 0;
+                while (state[s + i] != old) {
+                    i++;
+                }
+                System.arraycopy(state, s + i + 1, state, s + i, count - i - 1);
+                count--;
+            }
+
+            // Inserisce la nuova misura mantenendo l'ordinamento
+            int i = count;
+            while (i > 0 && state[s + i - 1] > distance) {
+                state[s + i] = state[s + i - 1];
+                i--;
+            }
+            state[s + i] = distance;
+            count++;
+
+            state[offset + RING + next] = distance;
+            state[offset + NEXT] = (next + 1) % window;
+            state[offset + COUNT] = count;
+
+            double median = state[s + count / 2];
+            if (elapsed > 0) {
+                double v = (median - state[offset + output]) / elapsed;
+                state[offset + velocity] += VELOCITY_SMOOTHING * (v - state[offset + velocity]);
+            }
+            state[offset + output] = median;
+        }
+
+        @Override
+        int distance(double[] state, int offset) {
+            return (int) state[offset + output];
+        }
+
+        @Override
+        double velocity(double[] state, int offset) {
+            return state[offset + velocity];
+        }
+    }
+
+    /**
+     * Filtro di Kalman a velocità costante. Lo stato contiene la distanza, la velocità e gli
+     * elementi della matrice di covarianza (simmetrica) della stima.
+     */
+    private static final class Kalman extends DistanceFilter {
+        /**
+         * Varianza iniziale della velocità, (1 m/s)^2: alla prima misura la velocità è ignota
+         */
+        private static final double INITIAL_VELOCITY_VARIANCE = 1e6;
+
+        private static final int X = 0;
+        private static final int V = 1;
+        private static final int P00 = 2;
+        private static final int P01 = 3;
+        private static final int P11 = 4;
+
+        private final double q;
+        private final double r;
+
+        Kalman(double q, double r) {
+            this.q = q;
+            this.r = r;
+        }
+
+        @Override
+        int stateSize() {
+            return 5;
+        }
+
+        @Override
+        void reset(double[] state, int offset, int distance) {
+            state[offset + X] = distance;
+            state[offset + V] = 0;
+            state[offset + P00] = r;
+            state[offset + P01] = 0;
+            state[offset + P11] = INITIAL_VELOCITY_VARIANCE;
+        }
+
+        @Override
+        void update(double[] state, int offset, int distance, double elapsed) {
+            double x = state[offset + X];
+            double v = state[offset + V];
+            double p00 = state[offset + P00];
+            double p01 = state[offset + P01];
+            double p11 = state[offset + P11];
+
+            // Predizione: x' = x + v dt, P' = F P F^T + Q
+            double dt = elapsed;
+            double dt2 = dt * dt;
+            x += v * dt;
+            p00 += dt * (2 * p01 + dt * p11) + q * dt2 * dt2 / 4;
+            p01 += dt * p11 + q * dt2 * dt / 2;
+            p11 += q * dt2;
+
+            // Correzione con la misura
+            double innovation = distance - x;
+            double s = p00 + r;
+            double k0 = p00 / s;
+            double k1 = p01 / s;
+            x += k0 * innovation;
+            v += k1 * innovation;
+            p11 -= k1 * p01;
+            p01 -= k0 * p01;
+            p00 -= k0 * p00;
+
+            state[offset + X] = x;
+            state[offset + V] = v;
+            state[offset + P00] = p00;
+            state[offset + P01] = p01;
+            state[offset + P11] = p11;
+        }
+
+        @Override
+        int distance(double[] state, int offset) {
+            return (int) Math.round(state[offset + X]);
+        }
+
+        @Override
+        double velocity(double[] state, int offset) {
+            return state[offset + V];
+        }
+    }
+}
@@ -1,28 +1,85 @@
 package group107.distancealert;
 
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.android.things.pio.PeripheralManager;
 import com.google.android.things.pio.SpiDevice;
 import com.google.android.things.pio.UartDevice;
-import com.google.android.things.pio.UartDeviceCallback;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
 import static java.lang.Byte.toUnsignedInt;
 
 /**
  * Questa classe ha lo scopo di gestire completamente la comunicazione con il modulo DWM1001-DEV,
  * sia collegato via UART che via SPI.
+ * L'accesso alle periferiche avviene tramite un DWMTransport, così da poter usare anche il
+ * DWMSimulator al posto del modulo reale.
  * Quando si ha finito di usare un oggetto di questa classe è importante invocare il metodo close
  * per rilasciare le periferiche hardware utilizzate.
  */
 @SuppressWarnings("WeakerAccess")
 public class DriverDWM {
+    /**
+     * Classe che rappresenta una richiesta TLV al modulo DWM: il byte relativo alla API e i
+     * valori da passarle. E' implementata in modo tale da essere un oggetto immutabile.
+     */
+    public static class TLV {
+        public final byte type;
+        private final byte[] value;
+
+        /**
+         * Crea una richiesta senza valori
+         *
+         * @param type Il byte relativo alla API da usare
+         */
+        public TLV(byte type) {
+            this(type, null);
+        }
+
+        /**
+         * Crea una richiesta con i valori specificati, che vengono copiati
+         *
+         * @param type Il byte relativo alla API da usare
+         * @param value I valori da passare alla API, può essere null
+         * @throws IllegalArgumentException Se ci sono più di 255 valori
+         */
+        public TLV(byte type, byte[] value) {
+            if (value != null && value.length > 255) {
+                throw new IllegalArgumentException("Bad parameters");
+            }
+
+            this.type = type;
+            this.value = value == null ? new byte[0] : value.clone();
+        }
+
+        /**
+         * @return Una copia dei valori da passare alla API
+         */
+        public byte[] getValue() {
+            return value.clone();
+        }
+    }
+
+    /**
+     * Strategie con cui attendere, via SPI, che il modulo abbia preparato la risposta:
+     * SPIN interroga il modulo continuamente, SPIN_THEN_YIELD dopo SPIN_POLLS interrogazioni
+     * cede il processore tra un'interrogazione e l'altra, ADAPTIVE_BACKOFF attende per gran
+     * parte del tempo di preparazione osservato nelle richieste recenti e poi interroga il modulo
+     * a intervalli crescenti.
+     */
+    public enum SpiWaitStrategy {
+        SPIN,
+        SPIN_THEN_YIELD,
+        ADAPTIVE_BACKOFF
+    }
+
     /**
      * Stringa utile per log del DriverDWM
      */
@@ -35,6 +92,25 @@ public class DriverDWM {
     private static final long MAX_SPI_WAIT = 10L;
     private static final long MAX_UART_WAIT = 30L;
 
+    /**
+     * Parametri delle strategie d'attesa SPI: numero di interrogazioni consecutive prima di
+     * cedere il processore e intervalli minimo e massimo tra due interrogazioni, in nanosecondi
+     */
+    private static final int SPIN_POLLS = 16;
+    private static final long MIN_SPI_BACKOFF_NANOS = 20000L;
+    private static final long MAX_SPI_BACKOFF_NANOS = 500000L;
+
+    /**
+     * Tempo di inattività della linea UART, in millisecondi, dopo il quale si considera terminata
+     * una risposta di cui il parser TLV non conosce la struttura
+     */
+    private static final long UART_IDLE_WAIT = 2L;
+
+    /**
+     * Numero massimo di richieste inviate insieme via UART da requestBatch
+     */
+    private static final int UART_PIPELINE_DEPTH = 4;
+
     /**
      * Parametri costanti usati per gestire i tentativi di accesso alle periferiche SPI e UART
      */
@@ -42,10 +118,40 @@ public class DriverDWM {
     private static final long RETRY_OPEN_DELAY = 20L;
 
     /**
-     * Oggetti riferiti alle periferiche SPI e UART
+     * Lunghezza massima di una risposta del modulo DWM, limitata dal byte di lunghezza
+     */
+    public static final int MAX_RESPONSE_LENGTH = 255;
+
+    /**
+     * Prefisso dei nomi delle metriche dei driver, seguito dal nome del bus
+     */
+    public static final String METRICS_PREFIX = "dwm.";
+
+    /**
+     * Indica se le richieste e le risposte scambiate con il modulo vengono scritte nel log con
+     * Log.d. Il log costruisce una stringa per ogni pacchetto, quindi è disattivato per default,
+     * così che il polling non allochi memoria; MainActivity lo attiva nelle build di debug.
+     */
+    private static volatile boolean trafficLogging = false;
+
+    /**
+     * Array di soli byte 0xff, inviati via SPI durante l'attesa e la lettura della risposta.
+     * Non viene mai modificato.
      */
-    private SpiDevice mySPI;
-    private UartDevice myUART;
+    private static final byte[] FILL_BUFFER = new byte[MAX_RESPONSE_LENGTH];
+
+    static {
+        Arrays.fill(FILL_BUFFER, (byte) 0xff);
+    }
+
+    /**
+     * Oggetto riferito al trasporto (SPI, UART o simulato) usato per comunicare con il modulo e
+     * lo stesso trasporto visto come full-duplex (SPI) o basato su flussi (UART): solo uno dei
+     * due è diverso da null, a seconda del tipo del trasporto
+     */
+    private DWMTransport transport;
+    private FullDuplexTransport spiTransport;
+    private StreamTransport uartTransport;
 
     /**
      * Nome del bus della periferica scelta
@@ -53,14 +159,58 @@ public class DriverDWM {
     private String myBus;
 
     /**
-     * Oggetto usato per la sincronizzazione tra il thread principale e il thread della callback UART
+     * Indica se la periferica può essere riaperta, ovvero se è stata ottenuta da PeripheralManager
+     */
+    private final boolean reopenable;
+
+    /**
+     * Buffer preallocati e riutilizzati a ogni richiesta, così che il percorso di
+     * richiesta/risposta non allochi memoria: pacchetto TLV da inviare, byte ricevuti durante
+     * l'invio via SPI (da scartare), byte di stato SPI, gruppi di byte letti via UART e risposta
+     * usata dai metodi che non ricevono un buffer dal chiamante. Anche il parser delle risposte
+     * UART viene riutilizzato.
+     */
+    private final byte[] requestBuffer = new byte[MAX_RESPONSE_LENGTH + 2];
+    private final byte[] discardBuffer = new byte[MAX_RESPONSE_LENGTH + 2];
+    private final byte[] pollBuffer = new byte[1];
+    private final byte[] uartChunkBuffer = new byte[20];
+    private final byte[] responseBuffer = new byte[MAX_RESPONSE_LENGTH];
+    private final TLVFrameParser uartParser = new TLVFrameParser();
+    private final byte[] batchBuffer = new byte[UART_PIPELINE_DEPTH * (MAX_RESPONSE_LENGTH + 2)];
+
+    /**
+     * Strategia d'attesa SPI e stima del tempo di preparazione della risposta (in nanosecondi)
+     * usata dalla strategia adattiva
+     */
+    private volatile SpiWaitStrategy spiWaitStrategy = SpiWaitStrategy.SPIN;
+    private long spiReadyEstimate = 0;
+
+    /**
+     * Istogrammi delle fasi delle richieste via SPI: invio della richiesta, attesa della
+     * risposta (in nanosecondi e in numero di interrogazioni) e lettura della risposta
+     */
+    private final Histogram spiWriteLatency = new Histogram("spi.write.nanos");
+    private final Histogram spiReadyWaitLatency = new Histogram("spi.readyWait.nanos");
+    private final Histogram spiReadyWaitPolls = new Histogram("spi.readyWait.polls");
+    private final Histogram spiReadLatency = new Histogram("spi.read.nanos");
+
+    /**
+     * Contatori del funzionamento del driver: richieste effettuate, risposte non conformi,
+     * errori di comunicazione, interrogazioni del modulo durante le attese via SPI, byte inviati
+     * e ricevuti via UART e riaperture della periferica
      */
-    private final Object lock = new Object();
+    private final MetricsRegistry.Counter requestCount = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter invalidResponses = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter communicationErrors = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter spiPolls = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter uartBytesWritten = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter uartBytesRead = new MetricsRegistry.Counter();
+    private final MetricsRegistry.Counter reopens = new MetricsRegistry.Counter();
 
     /**
-     * Oggetto riferito al thread usato per la callback della periferica UART
+     * Registratore delle risposte ricevute, null se la registrazione non è attiva
      */
-    private HandlerThread myThread;
+    private volatile DWMRecorder recorder = null;
 
     /**
      * Costruttore: verifica la validità del busName richiesto e configura la comunicazione
@@ -72,6 +222,20 @@ public class DriverDWM {
      */
     @SuppressWarnings("WeakerAccess")
     public DriverDWM(String busName) throws IOException {
+        setTransport(openTransport(busName));
+        myBus = busName;
+        reopenable = true;
+    }
+
+    /**
+     * Ottiene l'accesso alla periferica relativa al bus richiesto e la configura
+     *
+     * @param busName stringa relativa al bus SPI o UART a cui è connesso il modulo
+     * @return Il trasporto che usa la periferica
+     * @throws IOException Lanciata se ci sono problemi di accesso alla periferica
+     * @throws IllegalArgumentException Lanciata se il parametro busName non è valido
+     */
+    private static DWMTransport openTransport(String busName) throws IOException {
         // Ottiene istanza di PeripheralManager per poter gestire le periferiche
         PeripheralManager manager = PeripheralManager.getInstance();
 
@@ -81,13 +245,13 @@ public class DriverDWM {
          Questo serve perché a volte Android Things da degli errori che dopo pochi millisecondi
          si risolvono automaticamente.
          */
+        SpiDevice mySPI = null;
+        UartDevice myUART = null;
         int retryCounter = 0;
         while (mySPI == null && myUART == null) {
 
             // Se il busName è un bus SPI, prova ad ottenere un'istanza della periferica SPI.
             if (busName.contains("SPI")) {
-                myBus = busName;
-
                 try {
                     mySPI = manager.openSpiDevice(busName);
                 } catch (IOException e) {
@@ -104,8 +268,6 @@ public class DriverDWM {
 
             // Se invece il busName è un bus UART, prova ad ottenere un'istanza della periferica UART.
             else if (busName.contains("UART")) {
-                myBus = busName;
-
                 try {
                     myUART = manager.openUartDevice(busName);
                 } catch (IOException e) {
@@ -127,42 +289,43 @@ public class DriverDWM {
         }
 
         // Configura i parametri della comunicazione per il modulo DWM
-        configureCommunication();
+        if (mySPI != null) {
+            return new SpiTransport(mySPI, busName);
+        } else {
+            return new UartTransport(myUART, busName);
+        }
     }
 
     /**
-     * Configura i parametri della comunicazione SPI o UART necessari per il modulo DWM
+     * Costruttore: usa il trasporto passato per parametro, già aperto e configurato.
+     * Utile per comunicare con il DWMSimulator o con trasporti diversi da quelli forniti
+     * da PeripheralManager.
      *
-     * @throws IOException Lanciata se ci sono problemi di accesso alla periferica
+     * @param transport Trasporto da usare per comunicare con il modulo
+     * @throws IllegalArgumentException Lanciata se il parametro transport è null o non è né un
+     * FullDuplexTransport né uno StreamTransport
      */
-    private void configureCommunication() throws IOException {
-        /*
-         Caso SPI:
-                Modalità 0
-                Clock = 8MHz
-                Numero di bit = 8
-                ordine dei bit = prima quelli più significativi
-         */
-        if (mySPI != null) {
-            mySPI.setMode(SpiDevice.MODE0);
-            mySPI.setFrequency(8000000);
-            mySPI.setBitsPerWord(8);
-            mySPI.setBitJustification(SpiDevice.BIT_JUSTIFICATION_MSB_FIRST);
+    @SuppressWarnings("WeakerAccess")
+    public DriverDWM(DWMTransport transport) {
+        if (!(transport instanceof FullDuplexTransport) && !(transport instanceof StreamTransport)) {
+            throw new IllegalArgumentException("Null or unsupported transport");
         }
 
-        /*
-         Caso UART:
-                Baud-rate = 115200
-                Numero di bit = 8
-                Nessun bit di parità
-                Un bit di stop
-         */
-        else {
-            myUART.setBaudrate(115200);
-            myUART.setDataSize(8);
-            myUART.setParity(UartDevice.PARITY_NONE);
-            myUART.setStopBits(1);
-        }
+        setTransport(transport);
+        myBus = transport.getBusName();
+        reopenable = false;
+    }
+
+    /**
+     * Imposta il trasporto in uso, scegliendo il protocollo in base al suo tipo
+     *
+     * @param transport Il trasporto, oppure null se la periferica è stata chiusa
+     */
+    private void setTransport(DWMTransport transport) {
+        this.transport = transport;
+        spiTransport = transport instanceof FullDuplexTransport ? (FullDuplexTransport) transport : null;
+        uartTransport = spiTransport == null && transport instanceof StreamTransport
+                ? (StreamTransport) transport : null;
     }
 
     /**
@@ -177,27 +340,27 @@ public class DriverDWM {
      */
     public synchronized void checkDWM() throws IOException,IllegalStateException {
         // Reset: caso SPI
-        if (mySPI != null) {
+        if (spiTransport != null) {
             /*
              Per resettare lo stato della comunicazione SPI con in modulo DWM,
              si inviano 3 byte 0xff in 3 trasferimenti separati
              */
-            transferViaSPI(new byte[1], true);
-            transferViaSPI(new byte[1], true);
-            int response = transferViaSPI(new byte[1], true)[0];
+            pollViaSPI();
+            pollViaSPI();
+            int response = pollViaSPI();
 
             // Se l'ultimo byte ricevuto è diverso da 0xff significa che c'è un problema
             if (response != 0xff) {
-                mySPI.close();
-                mySPI = null;
+                transport.close();
+                setTransport(null);
                 throw new IOException("SPI device not connected");
             }
         }
 
         // Reset: caso UART
-        else if (myUART != null) {
+        else if (uartTransport != null) {
             // La semplice pulizia dei buffer di input e di output è sufficiente
-            myUART.flush(UartDevice.FLUSH_IN_OUT);
+            uartTransport.flush();
         }
 
         // Nel caso il metodo fosse stato invocato senza aver ottenuto l'accesso a una periferica
@@ -210,8 +373,8 @@ public class DriverDWM {
          ovvero quella per ricevere le frequenze di aggiornamento del modulo.
          Poi controlla che l'operazione sia andata a buon fine, se no lancia un'eccezione.
          */
-        int[] buffer = requestAPI((byte) 0x04, null);
-        if (buffer[0] != 0x40 || buffer[1] != 0x01 || buffer[2] != 0x00) {
+        requestAPI((byte) 0x04, null, 0, 0, responseBuffer);
+        if (responseBuffer[0] != 0x40 || responseBuffer[1] != 0x01 || responseBuffer[2] != 0x00) {
             throw new IOException("Communication problem: check hardware and reset DWM");
         }
     }
@@ -233,34 +396,137 @@ public class DriverDWM {
      */
     public synchronized int[] requestAPI(byte tag, byte[] value)
                 throws IOException, IllegalArgumentException, IllegalStateException {
-        // Ottiene la lunghezza dell'array dei valori della API
-        int L = value == null ? 0 : value.length;
+        int length = requestAPI(tag, value, 0, value == null ? 0 : value.length, responseBuffer);
+        return toUnsignedArray(responseBuffer, length);
+    }
 
+    /**
+     * Effettua in sequenza le richieste di più API, ottenendo il lock del driver una sola volta:
+     * nessun altro thread può inserire le proprie richieste tra quelle del gruppo.
+     * Via UART le richieste di cui è nota la struttura della risposta vengono inviate insieme
+     * (fino a UART_PIPELINE_DEPTH alla volta) e le risposte vengono poi ricevute in ordine,
+     * risparmiando un'attesa completa per ogni richiesta.
+     * Questo metodo è synchronized per evitare la sua sovrapposizione con il metodo close.
+     *
+     * @param requests Lista delle richieste TLV da effettuare
+     * @return Lista delle risposte, convertite in unsigned int, nello stesso ordine delle richieste
+     * @throws IOException Lanciata se ci sono problemi di comunicazione con una qualsiasi richiesta
+     * @throws IllegalArgumentException Lanciata se la lista delle richieste è null
+     * @throws IllegalStateException Lanciata se non si ha l'accesso ad alcuna periferica
+     */
+    public synchronized List<int[]> requestBatch(List<TLV> requests)
+                throws IOException, IllegalArgumentException, IllegalStateException {
+        if (requests == null) {
+            throw new IllegalArgumentException("Bad parameters");
+        }
+        if (transport == null) {
+            throw new IllegalStateException("No peripherals opened.");
+        }
+
+        List<int[]> responses = new ArrayList<>(requests.size());
+
+        // Caso SPI: il protocollo non permette più richieste pendenti
+        if (spiTransport != null) {
+            for (int i = 0; i < requests.size(); i++) {
+                TLV request = requests.get(i);
+                int length = requestAPI(request.type, request.value, 0, request.value.length,
+                        responseBuffer);
+                responses.add(toUnsignedArray(responseBuffer, length));
+            }
+            return responses;
+        }
+
+        // Caso UART
+        int i = 0;
+        while (i < requests.size()) {
+            // Prepara un gruppo di richieste consecutive la cui risposta è riconoscibile dal parser
+            int end = i;
+            int batchLength = 0;
+            while (end < requests.size() && end - i < UART_PIPELINE_DEPTH
+                    && TLVFrameParser.expectedTLVCount(requests.get(end).type)
+                            != TLVFrameParser.UNKNOWN_TLV_COUNT) {
+                TLV request = requests.get(end++);
+                batchBuffer[batchLength] = request.type;
+                batchBuffer[batchLength + 1] = (byte) request.value.length;
+                System.arraycopy(request.value, 0, batchBuffer, batchLength + 2, request.value.length);
+                batchLength += request.value.length + 2;
+            }
+
+            // Richiesta con risposta di struttura ignota: deve essere effettuata da sola
+            if (end == i) {
+                TLV request = requests.get(i++);
+                responses.add(requestAPI(request.type, request.value));
+                continue;
+            }
+
+            // Invia tutte le richieste del gruppo, poi riceve le risposte in ordine
+            uartTransport.flush();
+            uartTransport.write(batchBuffer, batchLength);
+            uartBytesWritten.add(batchLength);
+            for (; i < end; i++) {
+                requestCount.increment();
+                int length = receiveViaUART(requests.get(i).type, responseBuffer);
+                record(requests.get(i).type, responseBuffer, length);
+                checkResponse(responseBuffer, length);
+                responses.add(toUnsignedArray(responseBuffer, length));
+            }
+        }
+
+        return responses;
+    }
+
+    /**
+     * Versione della richiesta di una API che non alloca memoria: i valori da passare alla API
+     * sono letti da una porzione di un array del chiamante e la risposta viene scritta in un
+     * buffer anch'esso del chiamante, che può essere riutilizzato a ogni richiesta.
+     * I byte della risposta non vengono convertiti: per ottenerne il valore senza segno si usi
+     * Byte.toUnsignedInt solo sui byte effettivamente letti.
+     * Questo metodo è synchronized per evitare la sua sovrapposizione con il metodo close.
+     * N.B. Questo metodo è bloccante e normalmente può richiedere fino a 10ms per essere completato.
+     *
+     * @param tag    byte relativo alla API da usare
+     * @param value  array contenente i valori da passare alla API. Può essere null se length è 0.
+     * @param offset posizione del primo valore nell'array value
+     * @param length numero di valori da passare alla API
+     * @param response buffer in cui salvare la risposta, di almeno MAX_RESPONSE_LENGTH byte
+     * @return Numero di byte della risposta salvati all'inizio del buffer response
+     * @throws IOException Lanciata se ci sono problemi di comunicazione o di accesso alla periferica
+     * @throws IllegalArgumentException Lanciata se vengono passati parametri insensati
+     * @throws IllegalStateException Lanciata se non si ha l'accesso ad alcuna periferica
+     */
+    public synchronized int requestAPI(byte tag, byte[] value, int offset, int length, byte[] response)
+                throws IOException, IllegalArgumentException, IllegalStateException {
         // Controlla che il tag richiesto e i relativi valori abbiano senso
-        if (tag != 0 && L > 255) {
+        if (length < 0 || length > 255 || (length > 0 && (value == null || offset < 0
+                || offset + length > value.length))
+                || response == null || response.length < MAX_RESPONSE_LENGTH) {
             throw new IllegalArgumentException("Bad parameters");
         }
 
+        requestCount.increment();
+
         // Prepara il pacchetto TLV da inviare al modulo
-        byte[] buffer = new byte[L + 2];
-        buffer[0] = tag;
-        buffer[1] = (byte) L;
-        if (L > 0) {
-            System.arraycopy(value, 0, buffer, 2, L);
+        requestBuffer[0] = tag;
+        requestBuffer[1] = (byte) length;
+        if (length > 0) {
+            System.arraycopy(value, offset, requestBuffer, 2, length);
         }
 
-        Log.d(TAG, "Request:\n" + Arrays.toString(buffer));
+        // Il log dei pacchetti viene costruito solo se richiesto, per non allocare memoria
+        if (trafficLogging) {
+            Log.d(TAG, "Request:\n" + Arrays.toString(Arrays.copyOf(requestBuffer, length + 2)));
+        }
 
-        int[] response;
+        int responseLength;
 
         // Caso SPI
-        if (mySPI != null) {
-            response = requestViaSPI(buffer);
+        if (spiTransport != null) {
+            responseLength = requestViaSPI(length + 2, response);
         }
 
         // Caso UART
-        else if (myUART != null) {
-            response = requestViaUART(buffer);
+        else if (uartTransport != null) {
+            responseLength = requestViaUART(length + 2, response);
         }
 
         // Nel caso il metodo fosse stato invocato senza aver ottenuto l'accasso a una periferica
@@ -268,15 +534,58 @@ public class DriverDWM {
             throw new IllegalStateException("No peripherals opened.");
         }
 
-        // Se il modulo ha inviato una risposta non conforme lancia un'eccezione
-        if (response.length < 3
-                || (response[0] == 0xff && response[1] == 0xff && response[2] == 0xff)
+        record(tag, response, responseLength);
+        checkResponse(response, responseLength);
+        return responseLength;
+    }
+
+    /**
+     * Registra una risposta ricevuta, anche se non conforme, se la registrazione è attiva
+     *
+     * @param tag Byte relativo alla API richiesta
+     * @param response Buffer contenente la risposta
+     * @param length Numero di byte della risposta
+     */
+    private void record(byte tag, byte[] response, int length) {
+        DWMRecorder current = recorder;
+        if (current != null) {
+            current.record(myBus, tag, response, length);
+        }
+    }
+
+    /**
+     * Controlla che la risposta ricevuta dal modulo sia conforme
+     *
+     * @param response Buffer contenente la risposta
+     * @param length Numero di byte della risposta
+     * @throws IOException Lanciata se il modulo ha inviato una risposta non conforme
+     */
+    private void checkResponse(byte[] response, int length) throws IOException {
+        if (length < 3
+                || (response[0] == (byte) 0xff && response[1] == (byte) 0xff && response[2] == (byte) 0xff)
                 || (response[0] == 0x00 && response[1] == 0x00 && response[2] == 0x00)) {
+            invalidResponses.increment();
             throw new IOException("Invalid response received.");
         }
 
-        Log.d(TAG, "Response:\n" + Arrays.toString(response));
-        return response;
+        if (trafficLogging) {
+            Log.d(TAG, "Response:\n" + Arrays.toString(Arrays.copyOf(response, length)));
+        }
+    }
+
+    /**
+     * Converte i byte della risposta in unsigned int
+     *
+     * @param buffer Buffer contenente la risposta
+     * @param length Numero di byte della risposta
+     * @return int[] Contenente i valori convertiti
+     */
+    private static int[] toUnsignedArray(byte[] buffer, int length) {
+        int[] result = new int[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = toUnsignedInt(buffer[i]);
+        }
+        return result;
     }
 
     /**
@@ -284,170 +593,247 @@ public class DriverDWM {
      * l'attesa della preparazione della risposta dal modulo DWM e la ricezione della stessa.
      * Se non riceve alcuna risposta entro MAX_SPI_WAIT lancia la relativa eccezione.
      *
-     * @param transmit Array contenete i byte da inviare via UART
-     * @return int[] Contenente i valori ricevuti convertiti in unsigned int
+     * @param requestLength Numero di byte della richiesta, già presente in requestBuffer
+     * @param response Buffer in cui salvare la risposta
+     * @return Numero di byte ricevuti
      * @throws IOException Lanciata se ci sono problemi di comunicazione o di accesso alla periferica
      */
-    private int[] requestViaSPI(byte[] transmit) throws IOException {
+    private int requestViaSPI(int requestLength, byte[] response) throws IOException {
         // Trasferisce pacchetto a DWM contenente la richiesta
-        transferViaSPI(transmit, false);
+        long start = System.nanoTime();
+        spiTransport.transfer(requestBuffer, discardBuffer, requestLength);
+        long written = System.nanoTime();
+        spiWriteLatency.record(written - start);
 
         /*
          Attesa della costruzione della risposta da parte del modulo.
          Finché non è pronta lui risponde sempre 0x00.
          Quando è pronta, invece, comunica la lunghezza totale della risposta da leggere.
          Se l'attesa va oltre il tempo massimo significa che ci sono dei problemi.
+         La frequenza con cui viene interrogato il modulo dipende dalla strategia d'attesa scelta.
          */
+        SpiWaitStrategy strategy = spiWaitStrategy;
+        long deadline = written + MAX_SPI_WAIT * 1000000L;
+        long backoff = MIN_SPI_BACKOFF_NANOS;
+        int polls = 0;
         int length;
-        long timer = SystemClock.uptimeMillis();
-        do {
+
+        // Con la strategia adattiva, evita di interrogare il modulo quando la risposta non può essere pronta
+        if (strategy == SpiWaitStrategy.ADAPTIVE_BACKOFF && spiReadyEstimate > 0) {
+            LockSupport.parkNanos(spiReadyEstimate * 3 / 4);
+        }
+
+        while (true) {
+            // parkNanos e yield ritornano subito se il thread è interrotto: non deve continuare a girare
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted while waiting for the DWM");
+            }
+
             // Riceve del byte contente la lunghezza della risposta
-            length = transferViaSPI(new byte[1], true)[0];
-        } while ((length == 0x00) && ((SystemClock.uptimeMillis() - timer) < MAX_SPI_WAIT));
+            length = pollViaSPI();
+            polls++;
+
+            long now = System.nanoTime();
+            if (length != 0x00 || now - deadline >= 0) {
+                break;
+            }
+
+            if (strategy == SpiWaitStrategy.SPIN_THEN_YIELD && polls >= SPIN_POLLS) {
+                Thread.yield();
+            } else if (strategy == SpiWaitStrategy.ADAPTIVE_BACKOFF) {
+                LockSupport.parkNanos(Math.min(backoff, deadline - now));
+                backoff = Math.min(backoff * 2, MAX_SPI_BACKOFF_NANOS);
+            }
+        }
+
+        long ready = System.nanoTime();
+        spiReadyWaitLatency.record(ready - written);
+        spiReadyWaitPolls.record(polls);
+        spiPolls.add(polls);
 
         // Nel caso ci siano stati problemi di comunicazione
         if (length == 0x00 || length == 0xff) {
+            communicationErrors.increment();
             throw new IOException("Communication error via SPI");
         }
 
-        // Ricezione della risposta
-        return transferViaSPI(new byte[length], true);
+        // Aggiorna la stima del tempo di preparazione della risposta (media mobile esponenziale)
+        spiReadyEstimate = spiReadyEstimate == 0 ? ready - written
+                : spiReadyEstimate + ((ready - written) - spiReadyEstimate) / 8;
+
+        // Ricezione della risposta, inviando byte 0xff
+        spiTransport.transfer(FILL_BUFFER, response, length);
+        spiReadLatency.record(System.nanoTime() - ready);
+        return length;
     }
 
     /**
-     * Gestisce lo scambio di dati  via SPI, con l'opzione, utile per le specifiche del DWM, di
-     * riempire automaticamente di 0xff l'array di byte da inviare.
+     * Trasferisce via SPI un singolo byte 0xff, come richiesto dal DWM per leggere lo stato
+     * della comunicazione, usando buffer preallocati.
      *
-     * @param transmit Array contenete i byte da inviare via SPI
-     * @param autoFill L'opzione autoFill è abilitata riempie il buffer di 0xff
-     * @return int[] Contenente i valori ricevuti convertiti in unsigned int
+     * @return Il byte ricevuto, convertito in unsigned int
      * @throws IOException Lanciata se ci sono problemi di comunicazione o di accesso alla periferica
      */
-    private int[] transferViaSPI(byte[] transmit, boolean autoFill) throws IOException {
-        // Nel caso l'opzione autoFill sia true, riempie l'array trasmit di 0xff
-        if (autoFill) {
-            Arrays.fill(transmit, (byte) 0xff);
-        }
-
-        // Istanzia l'array receive di lunghezza pari a quella di trasmit
-        byte[] receive = new byte[transmit.length];
-
-        /*
-         Trasferisce dati via SPI, i dati da inviare sono nell'array trasmit,
-         i dati ricevuti vengono salvati nell'array receive
-         */
-        mySPI.transfer(transmit, receive, transmit.length);
-
-        // Converte i dati ricevuti a unsigned int
-        int[] intReceive = new int[receive.length];
-        for (int i = 0; i < receive.length; i++) {
-            intReceive[i] = toUnsignedInt(receive[i]);
-        }
-
-        return intReceive;
+    private int pollViaSPI() throws IOException {
+        spiTransport.transfer(FILL_BUFFER, pollBuffer, 1);
+        return toUnsignedInt(pollBuffer[0]);
     }
 
     /**
      * Gestisce le varie fasi dello scambio di dati via UART, ovvero l'invio della richiesta e
      * l'attesa della risposta dal modulo DWM.
-     * Se non riceve alcuna risposta entro MAX_UART_WAIT lancia la relativa eccezione.
      *
-     * @param transmit Array contenete i byte da inviare via UART
-     * @return int[] Contenente i valori ricevuti convertiti in unsigned int
+     * @param requestLength Numero di byte della richiesta, già presente in requestBuffer
+     * @param response Buffer in cui salvare la risposta
+     * @return Numero di byte ricevuti
      * @throws IOException Lanciata se ci sono problemi di comunicazione o di accesso alla periferica
      */
-    private int[] requestViaUART(byte[] transmit) throws IOException {
+    private int requestViaUART(int requestLength, byte[] response) throws IOException {
         // Reset della comunicazione e invio della richiesta
-        myUART.flush(UartDevice.FLUSH_IN_OUT);
-        myUART.write(transmit, transmit.length);
-
-        // Prepara i buffer e i contatori usati per salvare la risposta
-        byte[] totalReceive = new byte[255];
-        int totalCount = 0;
-        byte[] tempReceive = new byte[20];
-        int tempCount;
-
-        // Aspetta che arrivi la risposta entro il tempo d'attesa massimo
-        waitUART(MAX_UART_WAIT);
-
-        // Legge i dati in arrivo
-        while ((tempCount = myUART.read(tempReceive, tempReceive.length)) > 0) {
-            // Nel caso ci siano problemi di comunicazione, lancia eccezione
-            if (totalCount + tempCount > 255) {
-                throw new IOException("Communication error via UART: endless communication");
+        uartTransport.flush();
+        uartTransport.write(requestBuffer, requestLength);
+        uartBytesWritten.add(requestLength);
+
+        return receiveViaUART(requestBuffer[0], response);
+    }
+
+    /**
+     * Riceve via UART la risposta a una richiesta già inviata, passando i byte ricevuti al parser
+     * TLV: la ricezione termina appena arriva l'ultimo byte della risposta, senza leggere byte
+     * di eventuali risposte successive. Se la struttura della risposta non è nota, la ricezione
+     * termina quando la linea rimane inattiva per UART_IDLE_WAIT.
+     * Se non riceve la risposta completa entro MAX_UART_WAIT lancia la relativa eccezione.
+     *
+     * @param tag Byte relativo alla API richiesta
+     * @param response Buffer in cui salvare la risposta
+     * @return Numero di byte ricevuti
+     * @throws IOException Lanciata se ci sono problemi di comunicazione o di accesso alla periferica
+     */
+    private int receiveViaUART(byte tag, byte[] response) throws IOException {
+        uartParser.reset(TLVFrameParser.expectedTLVCount(tag), response);
+        long deadline = System.nanoTime() + MAX_UART_WAIT * 1000000L;
+
+        while (!uartParser.isComplete()) {
+            // Legge solo i byte che appartengono sicuramente alla risposta corrente
+            int count = uartTransport.read(uartChunkBuffer,
+                    Math.min(uartParser.bytesNeeded(), uartChunkBuffer.length));
+            if (count > 0) {
+                uartBytesRead.add(count);
+                uartParser.feed(uartChunkBuffer, 0, count);
+                continue;
             }
 
-            /*
-             Se ha letto qualche byte li trasferisce dall'array temporaneo all'array complessivo.
-             Questo perché i byte non vengono ricevuti tutti assieme, ma in gruppi di
-             lunghezza variabile. La lunghezza massima è di 20 byte per ogni gruppo.
-             */
-            System.arraycopy(tempReceive, 0, totalReceive, totalCount, tempCount);
-            totalCount += tempCount;
+            long remaining = (deadline - System.nanoTime()) / 1000000L;
+            if (remaining <= 0) {
+                break;
+            }
+
+            // Se la fine della risposta non è riconoscibile, attende solo finché la linea è attiva
+            long wait = (!uartParser.isBounded() && uartParser.length() > 0)
+                    ? Math.min(UART_IDLE_WAIT, remaining) : remaining;
+            if (!uartTransport.awaitData(wait) && wait < remaining) {
+                break;
+            }
         }
 
         // Nel caso ci siano problemi di comunicazione, lancia eccezione
-        if (totalCount < 3) {
+        if (uartParser.length() < 3) {
+            communicationErrors.increment();
             throw new IOException("Communication error via UART: nothing received");
         }
-
-        /*
-         Ritaglia array tenendo solo la parte interessante e poi fa la
-         conversione dei dati ricevuti a unsigned int
-         */
-        totalReceive = Arrays.copyOfRange(totalReceive, 0, totalCount);
-        int[] intReceive = new int[totalReceive.length];
-        for (int i = 0; i < totalReceive.length; i++) {
-            intReceive[i] = toUnsignedInt(totalReceive[i]);
+        if (uartParser.isBounded() && !uartParser.isComplete()) {
+            communicationErrors.increment();
+            throw new IOException("Communication error via UART: incomplete response");
         }
 
-        return intReceive;
+        return uartParser.length();
     }
 
     /**
-     * Aspetta che siano ricevuti dei dati dalla periferica UART.
-     * Se l'attesa si protrae oltre il limite impostato viene comunque terminata
+     * Imposta la strategia con cui attendere la risposta del modulo via SPI
      *
-     * @param maxTimeWait_millis Tempo d'attesa massimo
-     * @throws IOException Lanciata se ci sono problemi di accesso alla periferica
+     * @param strategy La strategia da usare
+     * @throws IllegalArgumentException Se la strategia è null
      */
-    @SuppressWarnings("SameParameterValue")
-    private void waitUART(long maxTimeWait_millis) throws IOException {
-        // Crea un thread separato su cui svolgere la callback della UART
-        myThread = new HandlerThread("UartCallbackThread");
-        myThread.start();
-        Handler myHandler = new Handler(myThread.getLooper());
-
-        // Registra la callback
-        myUART.registerUartDeviceCallback(myHandler, new UartDeviceCallback() {
-            @Override
-            public boolean onUartDeviceDataAvailable(UartDevice uartDevice) {
-                synchronized (lock) {
-                    // Risveglia il thread principale
-                    lock.notify();
-                }
-
-                // Callback viene eseguita solo una volta e poi si deregistra
-                return false;
-            }
-        });
-
-        synchronized (lock) {
-            try {
-                // Thread principale in pausa per il tempo impostato o finché callback non lo sveglia
-                lock.wait(maxTimeWait_millis);
-            } catch (InterruptedException e) {
-                Log.w(TAG, "UART wait interrupted");
-            }
+    public void setSpiWaitStrategy(SpiWaitStrategy strategy) {
+        if (strategy == null) {
+            throw new IllegalArgumentException("Null strategy");
         }
+        spiWaitStrategy = strategy;
+    }
+
+    /**
+     * @return La strategia d'attesa SPI in uso
+     */
+    public SpiWaitStrategy getSpiWaitStrategy() {
+        return spiWaitStrategy;
+    }
+
+    /**
+     * @return Istogramma della durata dell'invio delle richieste via SPI, in nanosecondi
+     */
+    public Histogram getSpiWriteLatency() {
+        return spiWriteLatency;
+    }
+
+    /**
+     * @return Istogramma della durata dell'attesa della risposta via SPI, in nanosecondi
+     */
+    public Histogram getSpiReadyWaitLatency() {
+        return spiReadyWaitLatency;
+    }
 
-        // Chiude il thread della callback
-        myThread.quitSafely();
-        myThread = null;
+    /**
+     * @return Istogramma del numero di interrogazioni del modulo durante l'attesa via SPI
+     */
+    public Histogram getSpiReadyWaitPolls() {
+        return spiReadyWaitPolls;
+    }
+
+    /**
+     * @return Istogramma della durata della lettura delle risposte via SPI, in nanosecondi
+     */
+    public Histogram getSpiReadLatency() {
+        return spiReadLatency;
+    }
 
-        // Nel caso durante l'attesa fosse stata chiusa la periferica, lancia la seguente eccezione
-        if (myUART == null) {
-            throw new IOException("Communication error via UART: communication interrupted");
+    /**
+     * Imposta il registratore delle risposte ricevute dal modulo, che può essere condiviso tra
+     * più driver. Il registratore non viene chiuso dal driver.
+     *
+     * @param recorder Il registratore, oppure null per terminare la registrazione
+     */
+    public void setRecorder(DWMRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Attiva o disattiva, per tutti i driver, il log di richieste e risposte con Log.d.
+     * Con il log attivo ogni richiesta alloca le stringhe dei pacchetti.
+     *
+     * @param enabled true per scrivere il traffico nel log
+     */
+    public static void setTrafficLogging(boolean enabled) {
+        trafficLogging = enabled;
+    }
+
+    /**
+     * Registra le metriche del driver, con prefisso METRICS_PREFIX seguito dal nome del bus
+     *
+     * @param registry Il registro delle metriche
+     */
+    public void registerMetrics(MetricsRegistry registry) {
+        String prefix = METRICS_PREFIX + myBus + ".";
+        registry.register(prefix + "requests", requestCount);
+        registry.register(prefix + "invalidResponses", invalidResponses);
+        registry.register(prefix + "communicationErrors", communicationErrors);
+        registry.register(prefix + "spi.polls", spiPolls);
+        registry.register(prefix + "uart.bytesWritten", uartBytesWritten);
+        registry.register(prefix + "uart.bytesRead", uartBytesRead);
+        registry.register(prefix + "reopens", reopens);
+        for (Histogram histogram : new Histogram[]{spiWriteLatency, spiReadyWaitLatency,
+                spiReadyWaitPolls, spiReadLatency}) {
+            registry.register(prefix + histogram.getName(), histogram);
         }
     }
 
@@ -459,7 +845,26 @@ public class DriverDWM {
     }
 
     /**
-     * Chiude e rilascia le periferiche SPI e UART se erano aperte.
+     * Chiude la periferica, se era aperta, e ne ottiene nuovamente l'accesso.
+     * Utile per recuperare la comunicazione dopo che è stato perso l'accesso alla periferica.
+     * Questo metodo è synchronized per evitare la sua sovrapposizione con gli altri metodi.
+     *
+     * @throws IOException Lanciata se ci sono problemi di accesso alla periferica
+     * @throws IllegalStateException Lanciata se il driver usa un trasporto fornito dall'esterno,
+     * che non può essere riaperto
+     */
+    public synchronized void reopen() throws IOException, IllegalStateException {
+        if (!reopenable) {
+            throw new IllegalStateException("Transport cannot be reopened.");
+        }
+
+        reopens.increment();
+        close();
+        setTransport(openTransport(myBus));
+    }
+
+    /**
+     * Chiude e rilascia la periferica SPI o UART se era aperta.
      * Questo metodo è synchronized per evitare la sua sovrapposizione con i metodi requestAPI e checkDWM
      *
      * @throws IOException Lanciata se ci sono problemi nella chiusura della periferica
@@ -467,23 +872,10 @@ public class DriverDWM {
     public synchronized void close() throws IOException {
         Log.d(TAG, "Closing");
 
-        if (mySPI != null) {
-            // Chiude SPI
-            mySPI.close();
-            mySPI = null;
-        }
-
-        if (myUART != null) {
-            // Chiude UART
-            myUART.close();
-            myUART = null;
-
-            // Eventualmente termina il thread della callback UART e risveglia il thread principale
-            if (myThread != null) {
-                synchronized (lock) {
-                    lock.notify();
-                }
-            }
+        if (transport != null) {
+            // Chiude la periferica SPI o UART
+            transport.close();
+            setTransport(null);
         }
     }
 }
\ No newline at end of file
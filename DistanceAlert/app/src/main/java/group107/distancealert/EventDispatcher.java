@@ -0,0 +1,481 @@
+package group107.distancealert;
+
+import android.util.Log;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Distributore degli eventi del DistanceController ai listener, con un numero fisso di thread
+ * consumatori avviati una sola volta.
+ * Ogni listener viene assegnato a un consumatore al momento della registrazione: gli eventi di un
+ * listener vengono quindi consegnati sempre dallo stesso thread, nell'ordine in cui sono stati
+ * pubblicati. Ogni consumatore ha un proprio buffer circolare di eventi preallocato; il produttore
+ * non si blocca mai, così che un listener lento non rallenti il polling dei moduli. Se il buffer di
+ * un consumatore è pieno, i nuovi dati disponibili vengono scartati e conteggiati, dato che saranno
+ * sostituiti da quelli dell'aggiornamento successivo. Connessioni, disconnessioni, errori e
+ * attraversamenti di soglia invece non vengono mai scartati: finiscono in una coda di overflow
+ * del consumatore, che viene svuotata nell'ordine di pubblicazione dopo il buffer.
+ * I listener assegnati allo stesso consumatore condividono il thread e il buffer: un listener lento
+ * ritarda anche gli altri listener del suo consumatore, mentre non ha effetti su quelli degli
+ * altri consumatori. Le callback devono quindi restare brevi.
+ * Per ogni listener vengono misurati il numero di eventi in attesa di consegna, quelli scartati e
+ * il ritardo tra pubblicazione e consegna. Ogni evento porta con sé il momento in cui è stata
+ * richiesta la misura, che viene passato alla callback; se è stato fornito un istogramma, vi
+ * viene registrato il tempo trascorso da quel momento all'inizio della callback.
+ */
+class EventDispatcher {
+    /**
+     * Stringa utile per log dell'EventDispatcher
+     */
+    private static final String TAG = "EventDispatcher";
+
+    /**
+     * Numero predefinito di thread consumatori e capacità predefinita dei loro buffer
+     */
+    static final int DEFAULT_CONSUMERS = 2;
+    static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * Tipi degli eventi
+     */
+    private static final byte TAGS_CONNECTED = 0;
+    private static final byte TAGS_DISCONNECTED = 1;
+    private static final byte TAGS_DATA_AVAILABLE = 2;
+    private static final byte TAG_CONNECTED = 3;
+    private static final byte TAG_DISCONNECTED = 4;
+    private static final byte TAG_DATA_AVAILABLE = 5;
+    private static final byte ERROR = 6;
+    private static final byte THRESHOLD_EXCEEDED = 7;
+    private static final byte THRESHOLD_RESTORED = 8;
+
+    /**
+     * Tempo massimo per cui un consumatore inattivo resta sospeso prima di ricontrollare lo stato
+     */
+    private static final long IDLE_PARK_NANOS = 100000000L;
+
+    /**
+     * Evento che non ha trovato posto nel buffer circolare di un consumatore
+     */
+    private static final class PendingEvent {
+        final Subscriber subscriber;
+        final byte type;
+        final int distance;
+        final int ruleID;
+        final int tagID;
+        final long measured;
+        final Object payload;
+        final Exception error;
+        final long timestamp;
+
+        PendingEvent(Subscriber subscriber, byte type, int distance, int ruleID, int tagID,
+                     long measured, Object payload, Exception error) {
+            this.subscriber = subscriber;
+            this.type = type;
+            this.distance = distance;
+            this.ruleID = ruleID;
+            this.tagID = tagID;
+            this.measured = measured;
+            this.payload = payload;
+            this.error = error;
+            timestamp = System.nanoTime();
+        }
+    }
+
+    /**
+     * Dati e statistiche di un listener registrato
+     */
+    static class Subscriber {
+        final Object listener;
+        final Consumer consumer;
+        final AtomicLong published = new AtomicLong();
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final Histogram latency;
+
+        Subscriber(Object listener, Consumer consumer) {
+            this.listener = listener;
+            this.consumer = consumer;
+            latency = new Histogram("listener.latency.nanos");
+        }
+
+        /**
+         * @return Numero di eventi pubblicati ma non ancora consegnati al listener
+         */
+        long getLag() {
+            return published.get() - delivered.get() - dropped.get();
+        }
+    }
+
+    /**
+     * Thread consumatore con il proprio buffer circolare di eventi, con un solo produttore.
+     * Gli eventi sono memorizzati in array paralleli preallocati; la coda di overflow alloca
+     * solo quando il buffer è pieno.
+     */
+    private class Consumer implements Runnable {
+        private final Subscriber[] subscribers;
+        private final byte[] types;
+        private final int[] distances;
+        private final int[] ruleIDs;
+        private final int[] tagIDs;
+        private final Object[] payloads;
+        private final Exception[] errors;
+        private final long[] timestamps;
+        private final long[] measuredAt;
+        private final int mask;
+
+        /**
+         * Posizione assoluta del prossimo evento da consegnare (modificata solo dal consumatore) e
+         * del prossimo evento da pubblicare (modificata solo dal produttore)
+         */
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        /**
+         * Eventi da non scartare pubblicati con il buffer pieno. Finché la coda non è vuota, il
+         * produttore vi accoda anche gli eventi successivi, così che l'ordine resti quello di
+         * pubblicazione; il consumatore la svuota solo quando il buffer è vuoto.
+         */
+        private final ConcurrentLinkedQueue<PendingEvent> overflow = new ConcurrentLinkedQueue<>();
+
+        private final Thread thread;
+        private volatile boolean waiting;
+
+        Consumer(int capacity, String name) {
+            subscribers = new Subscriber[capacity];
+            types = new byte[capacity];
+            distances = new int[capacity];
+            ruleIDs = new int[capacity];
+            tagIDs = new int[capacity];
+            payloads = new Object[capacity];
+            errors = new Exception[capacity];
+            timestamps = new long[capacity];
+            measuredAt = new long[capacity];
+            mask = capacity - 1;
+
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Pubblica un evento. Da usare solo dal produttore.
+         *
+         * @return false se il buffer è pieno e l'evento, di dati disponibili, è stato scartato
+         */
+        boolean publish(Subscriber subscriber, byte type, int distance, int ruleID, int tagID,
+                        long measured, Object payload, Exception error) {
+            long t = tail.get();
+            if (!overflow.isEmpty() || t - head.get() == subscribers.length) {
+                if (type == TAGS_DATA_AVAILABLE || type == TAG_DATA_AVAILABLE) {
+                    return false;
+                }
+
+                if (overflow.isEmpty()) {
+                    Log.w(TAG, "Buffer di " + thread.getName() + " pieno: eventi in coda di overflow");
+                }
+                overflow.add(new PendingEvent(subscriber, type, distance, ruleID, tagID, measured,
+                        payload, error));
+                if (waiting) {
+                    LockSupport.unpark(thread);
+                }
+                return true;
+            }
+
+            int slot = (int) t & mask;
+            subscribers[slot] = subscriber;
+            types[slot] = type;
+            distances[slot] = distance;
+            ruleIDs[slot] = ruleID;
+            tagIDs[slot] = tagID;
+            payloads[slot] = payload;
+            errors[slot] = error;
+            measuredAt[slot] = measured;
+            timestamps[slot] = System.nanoTime();
+
+            // Scrittura volatile: deve essere visibile prima di leggere waiting
+            tail.set(t + 1);
+
+            // Risveglia il consumatore, se in attesa
+            if (waiting) {
+                LockSupport.unpark(thread);
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                long h = head.get();
+                if (h == tail.get()) {
+                    // Buffer vuoto: gli eventi in overflow sono stati pubblicati dopo quelli del buffer
+                    PendingEvent event = overflow.poll();
+                    if (event != null) {
+                        dispatch(event.subscriber, event.type, event.distance, event.ruleID,
+                                event.tagID, event.measured, event.payload, event.error,
+                                event.timestamp);
+                        continue;
+                    }
+
+                    waiting = true;
+                    if (h == tail.get() && overflow.isEmpty() && !closed) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    waiting = false;
+                    continue;
+                }
+
+                int slot = (int) h & mask;
+                Subscriber subscriber = subscribers[slot];
+                byte type = types[slot];
+                int distance = distances[slot];
+                int ruleID = ruleIDs[slot];
+                int tagID = tagIDs[slot];
+                Object payload = payloads[slot];
+                Exception error = errors[slot];
+                long timestamp = timestamps[slot];
+                long measured = measuredAt[slot];
+
+                // Rilascia i riferimenti e libera la posizione prima di eseguire il listener
+                subscribers[slot] = null;
+                payloads[slot] = null;
+                errors[slot] = null;
+                head.lazySet(h + 1);
+
+                dispatch(subscriber, type, distance, ruleID, tagID, measured, payload, error, timestamp);
+            }
+        }
+
+        /**
+         * Consegna un evento al listener, registrandone le latenze
+         */
+        private void dispatch(Subscriber subscriber, byte type, int distance, int ruleID, int tagID,
+                              long measured, Object payload, Exception error, long timestamp) {
+            long now = System.nanoTime();
+            subscriber.latency.record(now - timestamp);
+            if (callbackLatency != null && type != ERROR) {
+                callbackLatency.record(now - measured);
+            }
+            try {
+                deliver(subscriber.listener, type, distance, ruleID, tagID, measured, payload, error);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Eccezione nel listener " + subscriber.listener, e);
+            }
+            subscriber.delivered.incrementAndGet();
+        }
+    }
+
+    private final Consumer[] consumers;
+    private final Map<Object, Subscriber> subscribers = new IdentityHashMap<>();
+    private int nextConsumer = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * Istogramma dei tempi tra la richiesta delle misure e l'inizio delle callback, oppure null
+     */
+    private final Histogram callbackLatency;
+
+    /**
+     * Crea il distributore con il numero predefinito di consumatori e la capacità predefinita
+     */
+    EventDispatcher() {
+        this(DEFAULT_CONSUMERS, DEFAULT_CAPACITY, null);
+    }
+
+    /**
+     * Crea il distributore con il numero predefinito di consumatori e la capacità predefinita
+     *
+     * @param callbackLatency Istogramma in cui registrare i tempi tra la richiesta delle misure e
+     *                        l'inizio delle callback
+     */
+    EventDispatcher(Histogram callbackLatency) {
+        this(DEFAULT_CONSUMERS, DEFAULT_CAPACITY, callbackLatency);
+    }
+
+    /**
+     * Crea il distributore e avvia i thread consumatori
+     *
+     * @param consumers Numero di thread consumatori
+     * @param capacity Numero massimo di eventi in attesa per ciascun consumatore, potenza di 2
+     * @throws IllegalArgumentException Se i parametri non sono validi
+     */
+    EventDispatcher(int consumers, int capacity) {
+        this(consumers, capacity, null);
+    }
+
+    /**
+     * Crea il distributore e avvia i thread consumatori
+     *
+     * @param consumers Numero di thread consumatori
+     * @param capacity Numero massimo di eventi in attesa per ciascun consumatore, potenza di 2
+     * @param callbackLatency Istogramma in cui registrare i tempi tra la richiesta delle misure e
+     *                        l'inizio delle callback, oppure null
+     * @throws IllegalArgumentException Se i parametri non sono validi
+     */
+    EventDispatcher(int consumers, int capacity, Histogram callbackLatency) {
+        this.callbackLatency = callbackLatency;
+        if (consumers <= 0 || capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Bad parameters");
+        }
+
+        this.consumers = new Consumer[consumers];
+        for (int i = 0; i < consumers; i++) {
+            this.consumers[i] = new Consumer(capacity, "DistanceController-Dispatcher-" + i);
+        }
+        for (Consumer consumer : this.consumers) {
+            consumer.thread.start();
+        }
+    }
+
+    /**
+     * Registra un listener, assegnandolo a un consumatore a rotazione. Il listener condivide il
+     * consumatore con gli altri listener assegnati allo stesso thread.
+     *
+     * @param listener Un AllTagsListener, un TagListener o un ThresholdListener
+     */
+    synchronized void subscribe(Object listener) {
+        if (!subscribers.containsKey(listener)) {
+            subscribers.put(listener, new Subscriber(listener, consumers[nextConsumer]));
+            nextConsumer = (nextConsumer + 1) % consumers.length;
+        }
+    }
+
+    /**
+     * Rimuove un listener. Gli eventi già pubblicati vengono comunque consegnati.
+     *
+     * @param listener Il listener da rimuovere
+     */
+    synchronized void unsubscribe(Object listener) {
+        subscribers.remove(listener);
+    }
+
+    /**
+     * @param listener Un listener registrato
+     * @return Le statistiche del listener, oppure null se non registrato
+     */
+    synchronized Subscriber getSubscriber(Object listener) {
+        return subscribers.get(listener);
+    }
+
+    synchronized void tagsConnected(AllTagsListener listener, List<DistanceController.Entry> tags,
+                                    long measured) {
+        publish(listener, TAGS_CONNECTED, 0, measured, tags, null);
+    }
+
+    synchronized void tagsDisconnected(AllTagsListener listener, List<DistanceController.Entry> tags,
+                                       long measured) {
+        publish(listener, TAGS_DISCONNECTED, 0, measured, tags, null);
+    }
+
+    synchronized void tagsDataAvailable(AllTagsListener listener, List<DistanceController.Entry> tags,
+                                        long measured) {
+        publish(listener, TAGS_DATA_AVAILABLE, 0, measured, tags, null);
+    }
+
+    synchronized void tagConnected(TagListener listener, int distance, long measured) {
+        publish(listener, TAG_CONNECTED, distance, measured, null, null);
+    }
+
+    synchronized void tagDisconnected(TagListener listener, int distance, long measured) {
+        publish(listener, TAG_DISCONNECTED, distance, measured, null, null);
+    }
+
+    synchronized void tagDataAvailable(TagListener listener, int distance, long measured) {
+        publish(listener, TAG_DATA_AVAILABLE, distance, measured, null, null);
+    }
+
+    synchronized void error(Object listener, String shortDescription, Exception e) {
+        publish(listener, ERROR, 0, 0, shortDescription, e);
+    }
+
+    synchronized void thresholdExceeded(ThresholdListener listener, int ruleID, int tagID, int distance,
+                                        long measured) {
+        publish(listener, THRESHOLD_EXCEEDED, distance, ruleID, tagID, measured, null, null);
+    }
+
+    synchronized void thresholdRestored(ThresholdListener listener, int ruleID, int tagID, int distance,
+                                        long measured) {
+        publish(listener, THRESHOLD_RESTORED, distance, ruleID, tagID, measured, null, null);
+    }
+
+    /**
+     * Termina i thread consumatori. Gli eventi non ancora consegnati, anche quelli in overflow,
+     * vengono scartati.
+     */
+    void close() {
+        closed = true;
+        for (Consumer consumer : consumers) {
+            LockSupport.unpark(consumer.thread);
+        }
+    }
+
+    /**
+     * Pubblica un evento per un listener registrato
+     */
+    private void publish(Object listener, byte type, int distance, long measured, Object payload,
+                         Exception error) {
+        publish(listener, type, distance, 0, 0, measured, payload, error);
+    }
+
+    /**
+     * Pubblica un evento per un listener registrato, con gli id della regola e del tag
+     */
+    private void publish(Object listener, byte type, int distance, int ruleID, int tagID,
+                         long measured, Object payload, Exception error) {
+        Subscriber subscriber = subscribers.get(listener);
+        if (subscriber == null || closed) {
+            return;
+        }
+
+        subscriber.published.incrementAndGet();
+        if (!subscriber.consumer.publish(subscriber, type, distance, ruleID, tagID, measured, payload,
+                error)) {
+            subscriber.dropped.incrementAndGet();
+            Log.w(TAG, "Dati scartati: il listener " + listener + " è troppo lento");
+        }
+    }
+
+    /**
+     * Consegna un evento al listener, nel thread consumatore
+     */
+    @SuppressWarnings("unchecked")
+    private static void deliver(Object listener, byte type, int distance, int ruleID, int tagID,
+                                long measured, Object payload, Exception error) {
+        switch (type) {
+            case TAGS_CONNECTED:
+                ((AllTagsListener) listener).onTagHasConnected((List<DistanceController.Entry>) payload);
+                break;
+            case TAGS_DISCONNECTED:
+                ((AllTagsListener) listener).onTagHasDisconnected((List<DistanceController.Entry>) payload);
+                break;
+            case TAGS_DATA_AVAILABLE:
+                ((AllTagsListener) listener).onTagDataAvailable((List<DistanceController.Entry>) payload);
+                break;
+            case TAG_CONNECTED:
+                ((TagListener) listener).onTagHasConnected(distance, measured);
+                break;
+            case TAG_DISCONNECTED:
+                ((TagListener) listener).onTagHasDisconnected(distance, measured);
+                break;
+            case TAG_DATA_AVAILABLE:
+                ((TagListener) listener).onTagDataAvailable(distance, measured);
+                break;
+            case THRESHOLD_EXCEEDED:
+                ((ThresholdListener) listener).onThresholdExceeded(ruleID, tagID, distance, measured);
+                break;
+            case THRESHOLD_RESTORED:
+                ((ThresholdListener) listener).onThresholdRestored(ruleID, tagID, distance, measured);
+                break;
+            default:
+                if (listener instanceof AllTagsListener) {
+                    ((AllTagsListener) listener).onError((String) payload, error);
+                } else {
+                    ((TagListener) listener).onError((String) payload, error);
+                }
+                break;
+        }
+    }
+}
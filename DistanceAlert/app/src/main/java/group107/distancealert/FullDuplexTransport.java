@@ -0,0 +1,20 @@
+package group107.distancealert;
+
+import java.io.IOException;
+
+/**
+ * Trasporto full-duplex, come la SPI: ogni byte inviato corrisponde a un byte ricevuto.
+ */
+@SuppressWarnings("WeakerAccess")
+public interface FullDuplexTransport extends DWMTransport {
+    /**
+     * Trasferimento full-duplex: invia i primi length byte di transmit e contemporaneamente
+     * salva in receive i byte ricevuti.
+     *
+     * @param transmit Array contenente i byte da inviare
+     * @param receive Array in cui salvare i byte ricevuti
+     * @param length Numero di byte da trasferire
+     * @throws IOException Lanciata se ci sono problemi di comunicazione o di accesso alla periferica
+     */
+    void transfer(byte[] transmit, byte[] receive, int length) throws IOException;
+}
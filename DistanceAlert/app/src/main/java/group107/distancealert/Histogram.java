@@ -0,0 +1,170 @@
+package group107.distancealert;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Istogramma lock-free di valori interi non negativi (tipicamente latenze in nanosecondi o
+ * conteggi). I valori sono raggruppati in intervalli log-lineari: ogni potenza di 2 è divisa in
+ * SUB_BUCKETS intervalli uguali, quindi i percentili hanno un errore relativo massimo del 12.5%.
+ * La registrazione di un valore non usa lock e non alloca memoria, quindi può essere fatta
+ * anche nei percorsi critici; la lettura può avvenire in qualsiasi momento da altri thread.
+ */
+@SuppressWarnings("WeakerAccess")
+public class Histogram {
+    /**
+     * Numero di bit e numero di intervalli lineari in cui è divisa ciascuna potenza di 2
+     */
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * Numero complessivo di intervalli, sufficiente a rappresentare tutti i long non negativi
+     */
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Crea un istogramma vuoto
+     *
+     * @param name Nome dell'istogramma, usato nella sua rappresentazione testuale
+     */
+    public Histogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return Il nome dell'istogramma
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Registra un valore. I valori negativi vengono considerati pari a 0.
+     *
+     * @param value Il valore da registrare
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return Numero di valori registrati
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return Valore massimo registrato, 0 se l'istogramma è vuoto
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return Media dei valori registrati, 0 se l'istogramma è vuoto
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0.0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Calcola un percentile dei valori registrati, approssimato per eccesso all'estremo
+     * superiore dell'intervallo in cui ricade (ma mai oltre il massimo registrato)
+     *
+     * @param percentile Il percentile desiderato, tra 0 e 100
+     * @return Il valore del percentile, 0 se l'istogramma è vuoto
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1L, (long) Math.ceil(n * Math.min(percentile, 100.0) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Azzera l'istogramma. I valori registrati in concorrenza con l'azzeramento potrebbero
+     * essere conteggiati solo in parte.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Ottiene una rappresentazione testuale sintetica dell'istogramma
+     *
+     * @return Stringa con numero di campioni, media, percentili 50 e 99 e massimo
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: n=%d mean=%.1f p50=%d p99=%d max=%d",
+                name, getCount(), getMean(), getPercentile(50), getPercentile(99), getMax());
+    }
+
+    /**
+     * Calcola l'intervallo in cui ricade un valore
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> exponent) & (SUB_BUCKETS - 1);
+        return (exponent + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Calcola il valore massimo che ricade in un intervallo
+     */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS - 1;
+        if (exponent > 63 - SUB_BITS - 2) {
+            return Long.MAX_VALUE;
+        }
+        long sub = bucket % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << exponent;
+        return lower + (1L << exponent) - 1;
+    }
+}
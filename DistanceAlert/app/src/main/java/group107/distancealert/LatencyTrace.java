@@ -0,0 +1,102 @@
+package group107.distancealert;
+
+import java.util.Locale;
+
+/**
+ * Latenze delle misure lungo il percorso dal modulo DWM all'interfaccia grafica.
+ * Ogni aggiornamento del DistanceController è marcato con il momento in cui le misure sono state
+ * richieste ai moduli (System.nanoTime()), che viene riportato nelle Entry e passato alle callback
+ * dei listener. Per ogni fase viene registrato in un Histogram il tempo trascorso da quel momento,
+ * così che percentili e massimo siano consultabili in qualsiasi momento senza lock.
+ */
+@SuppressWarnings("WeakerAccess")
+public class LatencyTrace {
+    /**
+     * Fasi del percorso di una misura, in ordine
+     */
+    public enum Stage {
+        /**
+         * Risposte di tutti i moduli ricevute
+         */
+        BUS_DONE("latency.bus.nanos"),
+
+        /**
+         * Tag classificati e istantanea pronta
+         */
+        CLASSIFIED("latency.classified.nanos"),
+
+        /**
+         * Eventi pubblicati per tutti i listener
+         */
+        DISPATCHED("latency.dispatched.nanos"),
+
+        /**
+         * Inizio dell'esecuzione di una callback di un listener
+         */
+        CALLBACK_ENTERED("latency.callback.nanos"),
+
+        /**
+         * Esecuzione, nel thread dell'interfaccia grafica, dell'aggiornamento della View
+         */
+        UI_POSTED("latency.ui.nanos");
+
+        private final String histogramName;
+
+        Stage(String histogramName) {
+            this.histogramName = histogramName;
+        }
+    }
+
+    private final Histogram[] histograms = new Histogram[Stage.values().length];
+
+    public LatencyTrace() {
+        for (Stage stage : Stage.values()) {
+            histograms[stage.ordinal()] = new Histogram(stage.histogramName);
+        }
+    }
+
+    /**
+     * Registra il raggiungimento di una fase da parte di una misura
+     *
+     * @param stage La fase raggiunta
+     * @param timestamp Il momento in cui la misura è stata richiesta, come restituito da
+     *                  System.nanoTime()
+     */
+    public void record(Stage stage, long timestamp) {
+        histograms[stage.ordinal()].record(System.nanoTime() - timestamp);
+    }
+
+    /**
+     * @param stage Una fase
+     * @return L'istogramma dei tempi tra la richiesta delle misure e la fase (in ns)
+     */
+    public Histogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Azzera tutti gli istogrammi
+     */
+    public void reset() {
+        for (Histogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Ottiene una rappresentazione testuale sintetica delle latenze
+     *
+     * @return Una riga per fase, con percentili 50 e 99 e massimo in millisecondi
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            Histogram h = histograms[stage.ordinal()];
+            result.append(String.format(Locale.US, "%s: n=%d p50=%.2fms p99=%.2fms max=%.2fms%n",
+                    stage, h.getCount(), h.getPercentile(50) / 1e6, h.getPercentile(99) / 1e6,
+                    h.getMax() / 1e6));
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,230 @@
+package group107.distancealert;
+
+import java.util.Arrays;
+
+/**
+ * Registro dei listener del DistanceController, indicizzato per tagID.
+ * Usa la tecnica copy-on-write: ogni modifica crea una nuova istantanea immutabile, che viene
+ * pubblicata atomicamente. Il thread di polling legge l'istantanea corrente senza lock, quindi
+ * non attende mai le registrazioni, e trova i listener di un tag con una ricerca binaria
+ * senza allocare memoria: il costo delle notifiche dipende dal numero di tag con eventi, non dal
+ * numero di listener registrati.
+ */
+class ListenerRegistry {
+    /**
+     * Istantanea immutabile dei listener registrati
+     */
+    static final class Snapshot {
+        /**
+         * Listener associati a tutti i tag
+         */
+        final AllTagsListener[] allListeners;
+
+        /**
+         * Tag con almeno un listener, in ordine crescente, e relativi listener
+         */
+        private final int[] tagIDs;
+        private final TagListener[][] tagListeners;
+
+        private Snapshot(AllTagsListener[] allListeners, int[] tagIDs, TagListener[][] tagListeners) {
+            this.allListeners = allListeners;
+            this.tagIDs = tagIDs;
+            this.tagListeners = tagListeners;
+        }
+
+        /**
+         * @param tagID L'id del tag
+         * @return I listener associati al tag, oppure null se non ce ne sono
+         */
+        TagListener[] forTag(int tagID) {
+            int i = Arrays.binarySearch(tagIDs, tagID);
+            return i >= 0 ? tagListeners[i] : null;
+        }
+
+        /**
+         * @return Numero di tag con almeno un listener
+         */
+        int tagCount() {
+            return tagIDs.length;
+        }
+
+        /**
+         * @param i Indice del tag, tra 0 e tagCount() - 1
+         * @return I listener associati al tag
+         */
+        TagListener[] listenersAt(int i) {
+            return tagListeners[i];
+        }
+    }
+
+    private static final Snapshot EMPTY =
+            new Snapshot(new AllTagsListener[0], new int[0], new TagListener[0][]);
+
+    private volatile Snapshot snapshot = EMPTY;
+    private boolean closed = false;
+
+    /**
+     * @return L'istantanea corrente dei listener, da usare senza lock
+     */
+    Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Aggiunge un listener per tutti i tag
+     *
+     * @param listener Il listener da aggiungere
+     * @return false se il registro è stato chiuso
+     */
+    synchronized boolean addAllTagsListener(AllTagsListener listener) {
+        if (closed) {
+            return false;
+        }
+
+        Snapshot s = snapshot;
+        AllTagsListener[] all = Arrays.copyOf(s.allListeners, s.allListeners.length + 1);
+        all[all.length - 1] = listener;
+        snapshot = new Snapshot(all, s.tagIDs, s.tagListeners);
+        return true;
+    }
+
+    /**
+     * Rimuove un listener per tutti i tag, se presente
+     *
+     * @param listener Il listener da rimuovere
+     * @return true se il listener era presente
+     */
+    synchronized boolean removeAllTagsListener(AllTagsListener listener) {
+        Snapshot s = snapshot;
+        AllTagsListener[] all = remove(s.allListeners, listener);
+        if (all == s.allListeners) {
+            return false;
+        }
+
+        snapshot = new Snapshot(all, s.tagIDs, s.tagListeners);
+        return true;
+    }
+
+    /**
+     * Aggiunge un listener per uno specifico tag
+     *
+     * @param tagID L'ID del tag a cui viene associato il listener
+     * @param listener Il listener
+     * @return false se il registro è stato chiuso
+     */
+    synchronized boolean addTagListener(int tagID, TagListener listener) {
+        if (closed) {
+            return false;
+        }
+
+        Snapshot s = snapshot;
+        int i = Arrays.binarySearch(s.tagIDs, tagID);
+        int[] ids = s.tagIDs;
+        TagListener[][] listeners;
+
+        if (i >= 0) {
+            listeners = s.tagListeners.clone();
+            listeners[i] = Arrays.copyOf(listeners[i], listeners[i].length + 1);
+            listeners[i][listeners[i].length - 1] = listener;
+        } else {
+            // Nuovo tag: lo inserisce mantenendo l'ordinamento
+            int insertion = -i - 1;
+            ids = new int[s.tagIDs.length + 1];
+            listeners = new TagListener[ids.length][];
+
+            System.arraycopy(s.tagIDs, 0, ids, 0, insertion);
+            System.arraycopy(s.tagListeners, 0, listeners, 0, insertion);
+            ids[insertion] = tagID;
+            listeners[insertion] = new TagListener[] {listener};
+            System.arraycopy(s.tagIDs, insertion, ids, insertion + 1, s.tagIDs.length - insertion);
+            System.arraycopy(s.tagListeners, insertion, listeners, insertion + 1,
+                    s.tagIDs.length - insertion);
+        }
+
+        snapshot = new Snapshot(s.allListeners, ids, listeners);
+        return true;
+    }
+
+    /**
+     * Rimuove un listener da tutti i tag a cui è associato
+     *
+     * @param listener Il listener da rimuovere
+     * @return true se il listener era presente
+     */
+    synchronized boolean removeTagListener(TagListener listener) {
+        Snapshot s = snapshot;
+        int[] ids = new int[s.tagIDs.length];
+        TagListener[][] listeners = new TagListener[s.tagIDs.length][];
+        int count = 0;
+        boolean removed = false;
+
+        for (int i = 0; i < s.tagIDs.length; i++) {
+            TagListener[] remaining = s.tagListeners[i];
+            TagListener[] previous;
+            do {
+                previous = remaining;
+                remaining = remove(remaining, listener);
+            } while (remaining != previous);
+
+            removed |= remaining != s.tagListeners[i];
+
+            // I tag rimasti senza listener vengono eliminati
+            if (remaining.length > 0) {
+                ids[count] = s.tagIDs[i];
+                listeners[count] = remaining;
+                count++;
+            }
+        }
+
+        if (removed) {
+            snapshot = new Snapshot(s.allListeners, Arrays.copyOf(ids, count),
+                    Arrays.copyOf(listeners, count));
+        }
+        return removed;
+    }
+
+    /**
+     * @param listener Un AllTagsListener o un TagListener
+     * @return true se il listener è registrato, per tutti i tag o per almeno un tag
+     */
+    synchronized boolean contains(Object listener) {
+        Snapshot s = snapshot;
+        for (AllTagsListener l : s.allListeners) {
+            if (l.equals(listener)) {
+                return true;
+            }
+        }
+        for (TagListener[] listeners : s.tagListeners) {
+            for (TagListener l : listeners) {
+                if (l.equals(listener)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rimuove tutti i listener e impedisce l'aggiunta di nuovi listener
+     */
+    synchronized void close() {
+        closed = true;
+        snapshot = EMPTY;
+    }
+
+    /**
+     * Crea una copia dell'array senza la prima occorrenza dell'elemento
+     *
+     * @return Il nuovo array, oppure lo stesso array se l'elemento non è presente
+     */
+    private static <T> T[] remove(T[] array, T element) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].equals(element)) {
+                T[] result = Arrays.copyOf(array, array.length - 1);
+                System.arraycopy(array, i + 1, result, i, array.length - i - 1);
+                return result;
+            }
+        }
+        return array;
+    }
+}
@@ -19,6 +19,7 @@ import com.google.android.things.pio.Gpio;
 import com.google.android.things.pio.GpioCallback;
 import com.google.android.things.pio.PeripheralManager;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
@@ -73,6 +74,7 @@ public class MainActivity extends Activity {
     private Gpio pulsante;
     private DistanceController myController;
     private DistanceAlarm myAlarm;
+    private volatile LatencyTrace latencyTrace;
     private int id = -1;
     private int maxDistance = DEFAULT_DISTANCE;
     final private List<RadioButton> item = new ArrayList<>();
@@ -87,15 +89,31 @@ public class MainActivity extends Activity {
     private final Object controllerLock = new Object();
 
     /**
-     * Periodo, in millisecondi, di aggiornamento del distanceController
+     * Periodi minimo e massimo, in millisecondi, di aggiornamento del distanceController:
+     * il periodo si riduce quando il tag si avvicina alla distanza di allerta
      */
+    private static final long MIN_UPDATE_PERIOD = 100L;
     private static final long UPDATE_PERIOD = 300L;
 
+    /**
+     * Numero di misure su cui viene calcolata la mediana delle distanze, per evitare che un
+     * singolo picco faccia scattare l'allarme
+     */
+    private static final int FILTER_WINDOW = 3;
+
     /**
      * Ritardo, in millisecondi, usato nella gestione della comunicazione
      */
     private static final long BUS_DELAY = 100L;
 
+    /**
+     * Metriche di funzionamento di controller, driver e allarme, scritte periodicamente nel file
+     * METRICS_FILE della memoria interna dell'applicazione ogni METRICS_DUMP_PERIOD millisecondi
+     */
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private static final String METRICS_FILE = "metrics.log";
+    private static final long METRICS_DUMP_PERIOD = 60000L;
+
     /**
      * Callback del pulsante fisico
      */
@@ -130,6 +148,9 @@ public class MainActivity extends Activity {
     protected void onCreate(final Bundle savedInstanceState) {
         Log.d(MainActivityTAG, "onCreate");
         super.onCreate(savedInstanceState);
+
+        // Nelle build di debug il traffico con il modulo DWM viene scritto nel log
+        DriverDWM.setTrafficLogging(BuildConfig.DEBUG);
         setContentView(R.layout.activity_main);
 
         // Inizializzazione elementi grafici
@@ -157,8 +178,7 @@ public class MainActivity extends Activity {
                 Log.v(MainActivityTAG, "plusMaxDistanceButton -> onClick: " +
                         "aumento distanza di allerta");
                 if (maxDistance < MAX_DISTANCE) {
-                    maxDistance += STEP;
-                    setDistanceText(maxDistance, maxDistanceView);
+                    setMaxDistance(maxDistance + STEP);
                 }
             }
         });
@@ -170,8 +190,7 @@ public class MainActivity extends Activity {
                 Log.v(MainActivityTAG, "minusMaxDistanceButton -> onClick: " +
                         "diminuisco distanza di allerta");
                 if (maxDistance > MIN_DISTANCE) {
-                    maxDistance -= STEP;
-                    setDistanceText(maxDistance, maxDistanceView);
+                    setMaxDistance(maxDistance - STEP);
                 }
             }
         });
@@ -197,6 +216,7 @@ public class MainActivity extends Activity {
 
         try {
             myAlarm = new DistanceAlarm(GPIO_LED, PWM_BUZZER);
+            myAlarm.registerMetrics(metrics);
         } catch (IOException e) {
             Log.e(MainActivityTAG, "onCreate: " +
                     "Inizializzazione allarme non riuscita, Errore: ", e);
@@ -216,8 +236,9 @@ public class MainActivity extends Activity {
             }
         });
 
-        // Inizializzazione comunicazione
+        // Inizializzazione comunicazione e scrittura periodica delle metriche
         setupCommunication(nextSpi);
+        metrics.startDump(new File(getFilesDir(), METRICS_FILE), METRICS_DUMP_PERIOD);
     }
 
     /**
@@ -234,7 +255,12 @@ public class MainActivity extends Activity {
 
         try {
             synchronized (controllerLock) {
-                myController = new DistanceController(nextSpi ? RPI3_SPI : RPI3_UART,UPDATE_PERIOD);
+                myController = new DistanceController(nextSpi ? RPI3_SPI : RPI3_UART);
+                myController.setDistanceFilter(DistanceFilter.median(FILTER_WINDOW));
+                myController.addDistanceThreshold(maxDistance);
+                myController.startAdaptiveUpdate(MIN_UPDATE_PERIOD, UPDATE_PERIOD);
+                latencyTrace = myController.getLatencyTrace();
+                myController.registerMetrics(metrics);
             }
 
             // Inizia elaborazione dei dati ricevuti
@@ -457,17 +483,17 @@ public class MainActivity extends Activity {
         // Listener dello specifico tag
         idTagListener = new TagListener() {
             @Override
-            public void onTagHasConnected(final int tagDistance) {
+            public void onTagHasConnected(final int tagDistance, final long timestamp) {
                 Log.i(MainActivityTAG, "connectToSpecificListener -> " +
                         "addTagListener -> onTagHasConnected: Connesso a " +
                         Integer.toHexString(id));
 
                 // Mostra distanza rilevata
-                setDistanceText(tagDistance, distanceView);
+                setDistanceText(tagDistance, distanceView, timestamp);
             }
 
             @Override
-            public void onTagHasDisconnected(final int tagLastKnownDistance) {
+            public void onTagHasDisconnected(final int tagLastKnownDistance, final long timestamp) {
                 Log.i(MainActivityTAG, "connectToSpecificListener -> " +
                         "addTagListener -> onTagHasDisconnected: disconnesso id = " +
                         Integer.toHexString(id) + " --> suono allarme");
@@ -486,7 +512,7 @@ public class MainActivity extends Activity {
             }
 
             @Override
-            public void onTagDataAvailable(final int tagDistance) {
+            public void onTagDataAvailable(final int tagDistance, final long timestamp) {
                 Log.i(MainActivityTAG, "connectToSpecificListener -> " +
                         "addTagListener -> onTagDataAvailable: id = " + Integer.toHexString(id) +
                         ", tagDistance = " + tagDistance);
@@ -533,7 +559,7 @@ public class MainActivity extends Activity {
                 }
 
                 // Mostra distanza rilevata
-                setDistanceText(tagDistance, distanceView);
+                setDistanceText(tagDistance, distanceView, timestamp);
             }
 
             @Override
@@ -548,6 +574,22 @@ public class MainActivity extends Activity {
         }
     }
 
+    /**
+     * Imposta una nuova distanza di allerta, aggiornando la View e la soglia del controller
+     *
+     * @param distance nuova distanza di allerta
+     */
+    private void setMaxDistance(int distance) {
+        synchronized (controllerLock) {
+            if (myController != null) {
+                myController.removeDistanceThreshold(maxDistance);
+                myController.addDistanceThreshold(distance);
+            }
+        }
+        maxDistance = distance;
+        setDistanceText(maxDistance, maxDistanceView);
+    }
+
     /**
      * Aggiorna la View con la distanza ricevuta
      *
@@ -555,6 +597,19 @@ public class MainActivity extends Activity {
      * @param distanceView TextView dove aggiornare la distanza
      */
     private void setDistanceText(final int distance, final TextView distanceView) {
+        setDistanceText(distance, distanceView, 0);
+    }
+
+    /**
+     * Aggiorna la View con la distanza ricevuta da un tag, registrando la latenza della misura
+     * nel momento in cui la View viene aggiornata
+     *
+     * @param distance     distanza ricevuta
+     * @param distanceView TextView dove aggiornare la distanza
+     * @param timestamp    momento della richiesta della misura, 0 se non va registrato
+     */
+    private void setDistanceText(final int distance, final TextView distanceView,
+                                 final long timestamp) {
         Log.v(MainActivityTAG, "setDistanceText: id = " + Integer.toHexString(id)
                 + ", tagDistance = " + distance);
         runOnUiThread(new Runnable() {
@@ -563,6 +618,11 @@ public class MainActivity extends Activity {
                 String newText = (new DecimalFormat("#0.00")
                         .format((double)distance*1e-3)) + " m";
                 distanceView.setText(newText);
+
+                LatencyTrace trace = latencyTrace;
+                if (timestamp != 0 && trace != null) {
+                    trace.record(LatencyTrace.Stage.UI_POSTED, timestamp);
+                }
             }
         });
     }
@@ -610,8 +670,18 @@ public class MainActivity extends Activity {
             }
             Log.v(MainActivityTAG, "closeController: myController =! null: " +
                     " chiusura del controller.");
+            Log.i(MainActivityTAG, "closeController: latenze delle misure:\n"
+                    + myController.getLatencyTrace());
             myController.close();
             myController = null;
+
+            /*
+             Salva i valori finali delle metriche del controller prima di rimuoverle: l'istantanea
+             viene presa subito, mentre il file viene scritto in background
+             */
+            metrics.dumpInBackground(new File(getFilesDir(), METRICS_FILE));
+            metrics.removeAll(DistanceController.METRICS_PREFIX);
+            metrics.removeAll(DriverDWM.METRICS_PREFIX);
         }
     }
 
@@ -644,7 +714,8 @@ public class MainActivity extends Activity {
         }
 
         Log.d(MainActivityTAG, "onPause -> chiusura controller");
-        // Chiusura Controller
+        // Chiusura Controller e termine della scrittura delle metriche
         closeController();
+        metrics.stopDump();
     }
 }
\ No newline at end of file
@@ -0,0 +1,362 @@
+package group107.distancealert;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registro delle metriche di funzionamento: contatori, gauge e istogrammi, ciascuno con un nome.
+ * Le metriche appartengono agli oggetti che le aggiornano (DriverDWM, DistanceController,
+ * DistanceAlarm), che le registrano con il proprio prefisso: il registro ne mantiene solo i
+ * riferimenti. Aggiornare e leggere una metrica non usa lock, quindi le metriche possono essere
+ * aggiornate anche nei percorsi critici.
+ * Il registro può scrivere periodicamente un'istantanea di tutte le metriche su un file locale,
+ * una riga per istantanea.
+ */
+@SuppressWarnings("WeakerAccess")
+public class MetricsRegistry {
+    /**
+     * Stringa utile per log della classe MetricsRegistry
+     */
+    private static final String TAG = "MetricsRegistry";
+
+    /**
+     * Dimensione oltre la quale il file delle istantanee viene rinominato con suffisso ".old"
+     * e ne viene iniziato uno nuovo (in byte)
+     */
+    private static final long MAX_DUMP_SIZE = 1024L * 1024L;
+
+    /**
+     * Contatore monotono, ad esempio del numero di richieste o di errori
+     */
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        /**
+         * Incrementa il contatore di 1
+         */
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        /**
+         * Incrementa il contatore
+         *
+         * @param delta L'incremento, non negativo
+         */
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        /**
+         * @return Il valore attuale del contatore
+         */
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Valore istantaneo, letto solo quando viene fatta un'istantanea del registro.
+     * L'implementazione non deve usare lock né attendere.
+     */
+    public interface Gauge {
+        /**
+         * @return Il valore attuale
+         */
+        long getValue();
+    }
+
+    /**
+     * Istantanea immutabile di tutte le metriche del registro. Gli istogrammi vengono riportati
+     * con i valori nome.count, nome.p50, nome.p99 e nome.max.
+     */
+    public static final class Snapshot {
+        /**
+         * Istante in cui è stata fatta l'istantanea (System.currentTimeMillis())
+         */
+        public final long timestamp;
+
+        /**
+         * Valori delle metriche, ordinati per nome
+         */
+        public final SortedMap<String, Long> values;
+
+        private Snapshot(long timestamp, SortedMap<String, Long> values) {
+            this.timestamp = timestamp;
+            this.values = Collections.unmodifiableSortedMap(values);
+        }
+
+        /**
+         * @param name Il nome di una metrica
+         * @return Il valore della metrica, oppure null se non è presente nell'istantanea
+         */
+        public Long get(String name) {
+            return values.get(name);
+        }
+
+        /**
+         * Ottiene una rappresentazione testuale dell'istantanea su una sola riga
+         *
+         * @return Istante dell'istantanea seguito dalle coppie nome=valore, separati da spazi
+         */
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder().append(timestamp);
+            for (Map.Entry<String, Long> value : values.entrySet()) {
+                result.append(' ').append(value.getKey()).append('=').append(value.getValue());
+            }
+            return result.toString();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Oggetto ScheduledThreadPoolExecutor usato per la scrittura periodica delle istantanee
+     */
+    private ScheduledThreadPoolExecutor dumpTimer;
+
+    /**
+     * Lock che serializza le scritture sui file, eseguite sia dal timer sia da altri thread
+     */
+    private final Object dumpLock = new Object();
+
+    /**
+     * Registra un contatore, sostituendo l'eventuale metrica con lo stesso nome
+     *
+     * @param name Il nome della metrica
+     * @param counter Il contatore
+     */
+    public void register(String name, Counter counter) {
+        remove(name);
+        counters.put(name, counter);
+    }
+
+    /**
+     * Registra una gauge, sostituendo l'eventuale metrica con lo stesso nome
+     *
+     * @param name Il nome della metrica
+     * @param gauge La gauge
+     */
+    public void register(String name, Gauge gauge) {
+        remove(name);
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Registra un istogramma, sostituendo l'eventuale metrica con lo stesso nome
+     *
+     * @param name Il nome della metrica
+     * @param histogram L'istogramma
+     */
+    public void register(String name, Histogram histogram) {
+        remove(name);
+        histograms.put(name, histogram);
+    }
+
+    /**
+     * Ottiene il contatore con il nome richiesto, creandolo se non è registrato
+     *
+     * @param name Il nome della metrica
+     * @return Il contatore registrato con quel nome
+     */
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Rimuove una metrica
+     *
+     * @param name Il nome della metrica
+     */
+    public void remove(String name) {
+        counters.remove(name);
+        gauges.remove(name);
+        histograms.remove(name);
+    }
+
+    /**
+     * Rimuove tutte le metriche il cui nome inizia con un prefisso, ad esempio quelle registrate
+     * da un oggetto che è stato chiuso
+     *
+     * @param prefix Il prefisso dei nomi delle metriche da rimuovere
+     */
+    public void removeAll(String prefix) {
+        removeAll(counters, prefix);
+        removeAll(gauges, prefix);
+        removeAll(histograms, prefix);
+    }
+
+    private static void removeAll(ConcurrentHashMap<String, ?> metrics, String prefix) {
+        for (String name : metrics.keySet()) {
+            if (name.startsWith(prefix)) {
+                metrics.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Fa un'istantanea di tutte le metriche registrate, senza lock. Le metriche aggiornate
+     * durante l'istantanea possono riportare valori di momenti leggermente diversi.
+     *
+     * @return L'istantanea
+     */
+    public Snapshot snapshot() {
+        SortedMap<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Counter> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getValue());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            values.put(entry.getKey() + ".count", histogram.getCount());
+            values.put(entry.getKey() + ".p50", histogram.getPercentile(50));
+            values.put(entry.getKey() + ".p99", histogram.getPercentile(99));
+            values.put(entry.getKey() + ".max", histogram.getMax());
+        }
+        return new Snapshot(System.currentTimeMillis(), values);
+    }
+
+    /**
+     * Aggiunge un'istantanea delle metriche in fondo a un file, su una sola riga. Se il file
+     * supera MAX_DUMP_SIZE viene prima rinominato con suffisso ".old", sostituendo quello
+     * eventualmente già presente.
+     * Le scritture avvengono una alla volta, così che la scrittura periodica e quelle richieste
+     * da altri thread non si sovrappongano né nella rotazione né nell'aggiunta delle righe.
+     *
+     * @param file Il file su cui scrivere
+     * @throws IOException Se avviene un errore nella scrittura del file
+     */
+    public void dump(File file) throws IOException {
+        write(file, snapshot());
+    }
+
+    /**
+     * Aggiunge in fondo a un file un'istantanea delle metriche presa al momento della chiamata,
+     * senza attendere la scrittura, che avviene nel thread della scrittura periodica oppure, se
+     * questa non è avviata, in un thread temporaneo. Può quindi essere invocato dal thread
+     * dell'interfaccia grafica, anche subito prima di rimuovere le metriche o di fermare la
+     * scrittura periodica: le scritture già richieste vengono comunque completate.
+     *
+     * @param file Il file su cui scrivere
+     * @return Future completato al termine della scrittura; gli errori vengono anche scritti nel log
+     * @throws IllegalArgumentException Se il file è null
+     */
+    public synchronized Future<Void> dumpInBackground(final File file) {
+        if (file == null) {
+            throw new IllegalArgumentException("Bad parameters");
+        }
+
+        final Snapshot snapshot = snapshot();
+        ScheduledThreadPoolExecutor executor = dumpTimer;
+        boolean temporary = executor == null;
+        if (temporary) {
+            executor = new ScheduledThreadPoolExecutor(1);
+        }
+
+        Future<Void> result = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try {
+                    write(file, snapshot);
+                } catch (IOException e) {
+                    Log.w(TAG, "Exception writing metrics to " + file, e);
+                    throw e;
+                }
+                return null;
+            }
+        });
+
+        // Il thread temporaneo termina dopo la scrittura
+        if (temporary) {
+            executor.shutdown();
+        }
+        return result;
+    }
+
+    /**
+     * Aggiunge un'istantanea in fondo a un file, ruotandolo se necessario, una scrittura alla volta
+     */
+    private void write(File file, Snapshot snapshot) throws IOException {
+        synchronized (dumpLock) {
+            if (file.length() > MAX_DUMP_SIZE) {
+                File old = new File(file.getPath() + ".old");
+                if ((old.exists() && !old.delete()) || !file.renameTo(old)) {
+                    throw new IOException("Cannot rotate " + file);
+                }
+            }
+
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true),
+                    StandardCharsets.UTF_8)) {
+                writer.write(snapshot.toString());
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Avvia la scrittura periodica delle istantanee su un file. Se era già avviata, viene
+     * sostituita.
+     *
+     * @param file Il file su cui scrivere
+     * @param period Il periodo di scrittura (in ms)
+     * @throws IllegalArgumentException Se il file è null o il periodo non è positivo
+     */
+    public synchronized void startDump(final File file, long period) {
+        if (file == null || period <= 0) {
+            throw new IllegalArgumentException("Bad parameters");
+        }
+
+        stopDump();
+        dumpTimer = new ScheduledThreadPoolExecutor(1);
+        dumpTimer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dump(file);
+                } catch (IOException e) {
+                    Log.w(TAG, "Exception writing metrics to " + file, e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ferma la scrittura periodica delle istantanee, se era avviata. Le scritture richieste con
+     * dumpInBackground() vengono completate in background, senza attenderle.
+     */
+    public synchronized void stopDump() {
+        if (dumpTimer != null) {
+            dumpTimer.shutdown();
+            dumpTimer = null;
+        }
+    }
+}
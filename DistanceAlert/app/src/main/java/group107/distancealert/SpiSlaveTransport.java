@@ -0,0 +1,140 @@
+package group107.distancealert;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Base dei trasporti che emulano il lato SPI del modulo DWM1001-DEV (simulatore, riproduzione
+ * di una registrazione e generatore di carico). Implementa il protocollo SPI del modulo: a riposo
+ * risponde 0xff, dopo una richiesta risponde 0x00 finché la risposta non è pronta, poi invia il
+ * byte di lunghezza e infine la risposta. Le sottoclassi si limitano a preparare la risposta.
+ * Tutti i metodi sono synchronized, quindi anche prepareResponse() viene eseguito con il lock
+ * del trasporto.
+ */
+abstract class SpiSlaveTransport implements FullDuplexTransport {
+    /**
+     * Stati della comunicazione SPI: in attesa di una richiesta, in attesa che la risposta sia
+     * pronta, in attesa della lettura della risposta
+     */
+    private static final int SPI_IDLE = 0;
+    private static final int SPI_WAIT = 1;
+    private static final int SPI_READ = 2;
+
+    private final String busName;
+
+    /**
+     * Stato della comunicazione SPI e risposta alla richiesta corrente, null se il modulo non
+     * risponde
+     */
+    private int spiState = SPI_IDLE;
+    private byte[] response;
+    private int responseLength;
+    private boolean closed = false;
+
+    /**
+     * @param busName Nome del bus emulato
+     */
+    SpiSlaveTransport(String busName) {
+        this.busName = busName;
+    }
+
+    /**
+     * Prepara la risposta a una richiesta, che deve essere impostata con setResponse().
+     * Se non viene impostata alcuna risposta il modulo non risponde, come se fosse scollegato.
+     *
+     * @param request Array contenente la richiesta TLV
+     * @param length Numero di byte trasferiti con la richiesta
+     * @throws IOException Se non è possibile preparare la risposta
+     */
+    protected abstract void prepareResponse(byte[] request, int length) throws IOException;
+
+    /**
+     * Imposta la risposta alla richiesta corrente. L'array non viene copiato, quindi non deve
+     * essere modificato finché la risposta non è stata letta.
+     *
+     * @param response Array contenente la risposta
+     * @param length Numero di byte della risposta
+     */
+    protected void setResponse(byte[] response, int length) {
+        this.response = response;
+        this.responseLength = length;
+    }
+
+    /**
+     * @return true se la risposta può essere letta; le sottoclassi possono simulare il tempo di
+     * elaborazione del modulo
+     */
+    protected boolean isResponseReady() {
+        return true;
+    }
+
+    /**
+     * @return false se il modulo è scollegato: la linea MISO rimane bassa
+     */
+    protected boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public String getBusName() {
+        return busName;
+    }
+
+    @Override
+    public synchronized void transfer(byte[] transmit, byte[] receive, int length) throws IOException {
+        if (closed) {
+            throw new IOException(busName + " closed");
+        }
+
+        // Modulo scollegato: la linea MISO rimane bassa
+        if (!isConnected()) {
+            Arrays.fill(receive, 0, length, (byte) 0x00);
+            spiState = SPI_IDLE;
+            return;
+        }
+
+        switch (spiState) {
+            case SPI_IDLE:
+                Arrays.fill(receive, 0, length, (byte) 0xff);
+
+                // Se non sono stati inviati solo byte 0xff, si tratta di una richiesta
+                if (!isDummy(transmit, length)) {
+                    response = null;
+                    prepareResponse(transmit, length);
+                    spiState = SPI_WAIT;
+                }
+                break;
+
+            case SPI_WAIT:
+                // Finché la risposta non è pronta il modulo risponde 0x00
+                Arrays.fill(receive, 0, length, (byte) 0x00);
+                if (response == null) {
+                    spiState = SPI_IDLE;
+                } else if (isResponseReady()) {
+                    receive[0] = (byte) responseLength;
+                    spiState = SPI_READ;
+                }
+                break;
+
+            default:
+                Arrays.fill(receive, 0, length, (byte) 0xff);
+                System.arraycopy(response, 0, receive, 0, Math.min(length, responseLength));
+                spiState = SPI_IDLE;
+                break;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    private static boolean isDummy(byte[] transmit, int length) {
+        for (int i = 0; i < length; i++) {
+            if (transmit[i] != (byte) 0xff) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
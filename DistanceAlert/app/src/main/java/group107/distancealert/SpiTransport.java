@@ -0,0 +1,65 @@
+package group107.distancealert;
+
+import com.google.android.things.pio.SpiDevice;
+
+import java.io.IOException;
+
+/**
+ * Trasporto che usa una periferica SPI reale, ottenuta tramite PeripheralManager.
+ */
+class SpiTransport implements FullDuplexTransport {
+    /**
+     * Oggetto riferito alla periferica SPI
+     */
+    private SpiDevice mySPI;
+
+    /**
+     * Nome del bus della periferica
+     */
+    private final String myBus;
+
+    /**
+     * Costruttore: configura i parametri della comunicazione SPI necessari per il modulo DWM
+     *
+     * @param device Periferica SPI già aperta
+     * @param busName Nome del bus della periferica
+     * @throws IOException Lanciata se ci sono problemi di accesso alla periferica
+     */
+    SpiTransport(SpiDevice device, String busName) throws IOException {
+        mySPI = device;
+        myBus = busName;
+
+        /*
+         Modalità 0
+         Clock = 8MHz
+         Numero di bit = 8
+         ordine dei bit = prima quelli più significativi
+         */
+        mySPI.setMode(SpiDevice.MODE0);
+        mySPI.setFrequency(8000000);
+        mySPI.setBitsPerWord(8);
+        mySPI.setBitJustification(SpiDevice.BIT_JUSTIFICATION_MSB_FIRST);
+    }
+
+    @Override
+    public String getBusName() {
+        return myBus;
+    }
+
+    @Override
+    public void transfer(byte[] transmit, byte[] receive, int length) throws IOException {
+        if (mySPI == null) {
+            throw new IOException("SPI device closed");
+        }
+
+        mySPI.transfer(transmit, receive, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mySPI != null) {
+            mySPI.close();
+            mySPI = null;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package group107.distancealert;
+
+import java.io.IOException;
+
+/**
+ * Trasporto basato su flussi, come la UART: scritture e letture sono indipendenti.
+ */
+@SuppressWarnings("WeakerAccess")
+public interface StreamTransport extends DWMTransport {
+    /**
+     * Invia i primi length byte dell'array
+     *
+     * @param buffer Array contenente i byte da inviare
+     * @param length Numero di byte da inviare
+     * @throws IOException Lanciata se ci sono problemi di comunicazione o di accesso alla periferica
+     */
+    void write(byte[] buffer, int length) throws IOException;
+
+    /**
+     * Legge i byte già ricevuti, senza bloccarsi
+     *
+     * @param buffer Array in cui salvare i byte letti
+     * @param length Numero massimo di byte da leggere
+     * @return Numero di byte effettivamente letti, 0 se non ci sono dati disponibili
+     * @throws IOException Lanciata se ci sono problemi di comunicazione o di accesso alla periferica
+     */
+    int read(byte[] buffer, int length) throws IOException;
+
+    /**
+     * Scarta i dati presenti nei buffer di ingresso e di uscita
+     *
+     * @throws IOException Lanciata se ci sono problemi di accesso alla periferica
+     */
+    void flush() throws IOException;
+
+    /**
+     * Attende che siano disponibili dei dati da leggere, al massimo per il tempo indicato
+     *
+     * @param maxTimeWait_millis Tempo d'attesa massimo
+     * @return true se ci sono dati disponibili, false se il tempo d'attesa è scaduto
+     * @throws IOException Lanciata se il trasporto viene chiuso durante l'attesa
+     */
+    boolean awaitData(long maxTimeWait_millis) throws IOException;
+}
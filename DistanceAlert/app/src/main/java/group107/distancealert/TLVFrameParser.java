@@ -0,0 +1,199 @@
+package group107.distancealert;
+
+import java.io.IOException;
+
+/**
+ * Parser incrementale delle risposte TLV (tipo, lunghezza, valore) del modulo DWM ricevute via
+ * UART, dove la risposta non è preceduta dalla sua lunghezza complessiva.
+ * Ogni risposta inizia con il TLV 0x40 contenente il codice d'errore; se l'esito è positivo
+ * seguono altri TLV, in numero che dipende dalla API richiesta. Conoscendo tale numero, il parser
+ * riconosce la fine della risposta appena arriva il suo ultimo byte, senza dover attendere che la
+ * linea rimanga inattiva. Inoltre indica quanti byte servono ancora, così da non leggere mai
+ * byte appartenenti alla risposta successiva.
+ * Non alloca memoria: i byte vengono salvati in un buffer fornito dal chiamante.
+ */
+class TLVFrameParser {
+    /**
+     * Numero di TLV usato per le API di cui non si conosce la struttura della risposta:
+     * in questo caso la fine della risposta non può essere riconosciuta dal parser
+     */
+    static final int UNKNOWN_TLV_COUNT = 0;
+
+    /**
+     * Tipo del TLV che contiene il codice d'errore, presente all'inizio di ogni risposta
+     */
+    private static final int ERROR_TLV_TYPE = 0x40;
+
+    /**
+     * Stati del parser: in attesa del tipo, della lunghezza o del valore di un TLV
+     */
+    private static final int STATE_TYPE = 0;
+    private static final int STATE_LENGTH = 1;
+    private static final int STATE_VALUE = 2;
+    private static final int STATE_COMPLETE = 3;
+
+    /**
+     * Restituisce il numero di TLV contenuti nella risposta positiva di una API del modulo DWM
+     *
+     * @param type Il byte relativo alla API richiesta
+     * @return Il numero di TLV della risposta, oppure UNKNOWN_TLV_COUNT se la API non è nota
+     */
+    static int expectedTLVCount(byte type) {
+        switch (type) {
+            case 0x01: // dwm_pos_set
+            case 0x03: // dwm_upd_rate_set
+            case 0x05: // dwm_cfg_tag_set
+            case 0x07: // dwm_cfg_anchor_set
+            case 0x0A: // dwm_sleep
+            case 0x14: // dwm_reset
+                return 1;
+            case 0x02: // dwm_pos_get
+            case 0x04: // dwm_upd_rate_get
+            case 0x08: // dwm_cfg_get
+            case 0x0B: // dwm_anchor_list_get
+            case 0x32: // dwm_status_get
+                return 2;
+            case 0x0C: // dwm_loc_get
+                return 3;
+            case 0x15: // dwm_ver_get
+                return 4;
+            default:
+                return UNKNOWN_TLV_COUNT;
+        }
+    }
+
+    private byte[] destination;
+    private int expectedTLVs;
+    private int parsedTLVs;
+    private int state;
+    private int remainingValue;
+    private int length;
+    private int skippedBytes;
+
+    /**
+     * Prepara il parser per una nuova risposta
+     *
+     * @param expectedTLVs Numero di TLV attesi in caso di esito positivo, o UNKNOWN_TLV_COUNT
+     * @param destination Buffer in cui salvare i byte della risposta
+     */
+    void reset(int expectedTLVs, byte[] destination) {
+        this.destination = destination;
+        this.expectedTLVs = expectedTLVs;
+        parsedTLVs = 0;
+        state = STATE_TYPE;
+        remainingValue = 0;
+        length = 0;
+        skippedBytes = 0;
+    }
+
+    /**
+     * @return true se è stato ricevuto l'ultimo byte della risposta
+     */
+    boolean isComplete() {
+        return state == STATE_COMPLETE;
+    }
+
+    /**
+     * @return true se il numero di TLV della risposta è noto, quindi la fine è riconoscibile
+     */
+    boolean isBounded() {
+        return expectedTLVs != UNKNOWN_TLV_COUNT;
+    }
+
+    /**
+     * @return Numero di byte della risposta ricevuti finora
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * @return Numero di byte scartati prima dell'inizio della risposta
+     */
+    int skippedBytes() {
+        return skippedBytes;
+    }
+
+    /**
+     * Restituisce il numero di byte che possono essere letti senza rischiare di consumare byte
+     * della risposta successiva
+     *
+     * @return Numero di byte ancora necessari per completare il TLV corrente (almeno 1),
+     * 0 se la risposta è completa
+     */
+    int bytesNeeded() {
+        switch (state) {
+            case STATE_TYPE:
+                return 2;
+            case STATE_LENGTH:
+                return 1;
+            case STATE_VALUE:
+                return remainingValue;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Fornisce al parser dei byte ricevuti. Vengono consumati solo i byte che appartengono alla
+     * risposta: quelli successivi al suo completamento vengono ignorati.
+     *
+     * @param source Array contenente i byte ricevuti
+     * @param offset Posizione del primo byte
+     * @param count Numero di byte
+     * @return Numero di byte consumati
+     * @throws IOException Se la risposta supera la dimensione del buffer di destinazione
+     */
+    int feed(byte[] source, int offset, int count) throws IOException {
+        int i = 0;
+        while (i < count && state != STATE_COMPLETE) {
+            int b = source[offset + i++] & 0xff;
+
+            // Scarta eventuali byte spuri precedenti l'inizio della risposta
+            if (length == 0 && b != ERROR_TLV_TYPE) {
+                skippedBytes++;
+                continue;
+            }
+
+            if (length == destination.length) {
+                throw new IOException("Communication error via UART: response too long");
+            }
+            destination[length++] = (byte) b;
+
+            switch (state) {
+                case STATE_TYPE:
+                    state = STATE_LENGTH;
+                    break;
+
+                case STATE_LENGTH:
+                    remainingValue = b;
+                    state = STATE_VALUE;
+                    if (remainingValue == 0) {
+                        endOfTLV();
+                    }
+                    break;
+
+                default:
+                    if (--remainingValue == 0) {
+                        endOfTLV();
+                    }
+                    break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Gestisce la fine di un TLV, riconoscendo la fine della risposta
+     */
+    private void endOfTLV() {
+        parsedTLVs++;
+        state = STATE_TYPE;
+
+        // In caso di errore la risposta contiene solo il TLV con il codice d'errore
+        boolean error = parsedTLVs == 1 && length == 3 && destination[2] != 0x00;
+        if (isBounded() && (error || parsedTLVs == expectedTLVs)) {
+            state = STATE_COMPLETE;
+        }
+    }
+}
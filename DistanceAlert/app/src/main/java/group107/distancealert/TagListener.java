@@ -3,6 +3,8 @@ package group107.distancealert;
 /**
  * Interfaccia utile per gestire in maniera asincrona i dati ricevuti dal DistanceController.
  * Questo listener gestisce uno specifico tag.
+ * Ogni callback riceve anche il momento in cui è stata richiesta la misura (System.nanoTime()),
+ * utile per misurarne la latenza tramite LatencyTrace.
  */
 @SuppressWarnings("WeakerAccess")
 public interface TagListener
@@ -11,23 +13,26 @@ public interface TagListener
      * Callback usata nel caso in cui il tag si è appena connesso con il modulo DWM.
      *
      * @param tagDistance Distanza del tag.
+     * @param timestamp Momento della richiesta della misura.
      */
-    void onTagHasConnected(final int tagDistance);
+    void onTagHasConnected(final int tagDistance, final long timestamp);
 
     /**
      * Callback usata nel caso in cui il tag si è appena disconnesso dal modulo DWM.
      *
      * @param tagLastKnownDistance Ultima distanza nota del tag.
+     * @param timestamp Momento della richiesta delle misure che hanno rilevato la disconnessione.
      */
     @SuppressWarnings("unused")
-    void onTagHasDisconnected(final int tagLastKnownDistance);
+    void onTagHasDisconnected(final int tagLastKnownDistance, final long timestamp);
 
     /**
      * Callback usata in caso di nuovi dati disponibili per il tag dal modulo DWM.
      *
      * @param tagDistance Distanza del tag.
+     * @param timestamp Momento della richiesta della misura.
      */
-    void onTagDataAvailable(final int tagDistance);
+    void onTagDataAvailable(final int tagDistance, final long timestamp);
 
     /**
      * Callback usata in presenza di errori con il modulo hardware.
@@ -0,0 +1,636 @@
+package group107.distancealert;
+
+import java.util.Arrays;
+
+/**
+ * Tabella dello stato dei tag indicizzata per tagID, realizzata con indirizzamento aperto
+ * (linear probing) su array paralleli di tipi primitivi. Per ogni tag memorizza l'ultima misura
+ * ricevuta con tutti i suoi campi, lo stato di connessione, il momento dell'ultima ricezione e il
+ * momento dell'ultima misura nuova, ovvero dell'ultima ricezione con qualità non nulla da un
+ * modulo che ha segnalato un nuovo aggiornamento (moduleUpdated): i valori delle misure non
+ * vengono confrontati, così che un tag fermo misurato sempre alla stessa distanza resti connesso.
+ * Il modulo DWM continua a riportare i tag fuori portata con l'ultima distanza misurata, quindi un
+ * tag connesso viene dichiarato disconnesso se il fattore di qualità della distanza è nullo,
+ * oppure se non riceve misure nuove per più di un certo tempo, come quando il modulo smette di
+ * aggiornare le misure.
+ * Le misure di un aggiornamento vengono fornite con offer; classify poi classifica tutti i tag con
+ * un'unica scansione lineare degli array, aggiornandoli sul posto, senza ordinamenti né oggetti.
+ * Gli eventi dell'ultima classificazione sono consultabili tramite le posizioni (slot) dei tag.
+ * Un indice degli slot ordinato per tagID, aggiornato solo all'inserimento di un nuovo tag,
+ * permette di scorrere i tag in ordine senza ordinarli a ogni aggiornamento.
+ * Per ogni tag viene ricordato quali moduli lo hanno riportato: se un modulo non risponde, i suoi
+ * tag mantengono lo stato precedente per quell'aggiornamento, invece di essere disconnessi.
+ * La classificazione aggiorna anche la distanza filtrata e la velocità di ogni tag con una nuova
+ * misura, usando l'eventuale DistanceFilter; lo stato dei filtri è memorizzato in un unico array
+ * di double, con una riga per slot. La distanza grezza resta usata per la classificazione.
+ * Non è thread-safe: viene usata solo dal thread di aggiornamento del DistanceController.
+ */
+class TagTable {
+    /**
+     * Stati di un tag: non presente nell'ultima risposta, connesso, oppure disconnesso perché il
+     * modulo continua a riportarne l'ultima misura, oppure una misura di qualità nulla
+     */
+    static final byte STATE_ABSENT = 0;
+    static final byte STATE_CONNECTED = 1;
+    static final byte STATE_DISCONNECTED = 2;
+
+    /**
+     * Eventi prodotti dall'ultima classificazione
+     */
+    static final byte EVENT_NONE = 0;
+    static final byte EVENT_CONNECTED = 1;
+    static final byte EVENT_DISCONNECTED = 2;
+    static final byte EVENT_UPDATED = 3;
+
+    /**
+     * Valore delle chiavi degli slot liberi: i tagID sono sempre compresi tra 0 e 0xffff
+     */
+    private static final int EMPTY = -1;
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private int[] keys;
+    private int[] distances;
+    private int[] qualities;
+    private int[] xs;
+    private int[] ys;
+    private int[] zs;
+    private int[] positionQualities;
+    private int[] previousDistances;
+    private int[] generations;
+    private int[] modules;
+    private long[] lastSeen;
+    private long[] lastUpdated;
+    private byte[] states;
+    private byte[] events;
+    private int[] filteredDistances;
+    private int[] velocities;
+    private long[] filterTimes;
+    private double[] filterStates;
+
+    /**
+     * Slot dei tag presenti in ordine crescente di tagID; sono validi i primi size elementi
+     */
+    private int[] sortedSlots;
+
+    /**
+     * Filtro delle distanze, null se le distanze non vengono filtrate, e numero di elementi dello
+     * stato del filtro per ogni slot
+     */
+    private DistanceFilter filter = null;
+    private int filterStride = 0;
+    private int size = 0;
+    private int mask;
+
+    /**
+     * Numero dell'aggiornamento corrente: un tag è stato ricevuto nell'aggiornamento corrente se
+     * il suo numero coincide con questo
+     */
+    private int generation = 0;
+    private long now = 0;
+
+    /**
+     * Moduli che non hanno risposto e moduli che hanno segnalato un nuovo aggiornamento delle
+     * misure nell'aggiornamento corrente, come maschere di bit
+     */
+    private int failedModules = 0;
+    private int updatedModules = 0;
+
+    /**
+     * Slot dei tag appena connessi, appena disconnessi e aggiornati nell'ultima classificazione
+     */
+    private int[] connectedSlots = new int[INITIAL_CAPACITY];
+    private int[] disconnectedSlots = new int[INITIAL_CAPACITY];
+    private int[] updatedSlots = new int[INITIAL_CAPACITY];
+    private int connectedCount = 0;
+    private int disconnectedCount = 0;
+    private int updatedCount = 0;
+
+    TagTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Inizia un nuovo aggiornamento
+     *
+     * @param nowNanos Il momento dell'aggiornamento, come restituito da System.nanoTime()
+     */
+    void beginFrame(long nowNanos) {
+        generation++;
+        now = nowNanos;
+        failedModules = 0;
+        updatedModules = 0;
+    }
+
+    /**
+     * Segnala che un modulo ha aggiornato le sue misure dall'aggiornamento precedente, quindi
+     * che i tag che riporterà con qualità non nulla sono stati appena misurati, anche se con gli
+     * stessi valori. Va invocato prima di fornire le misure del modulo.
+     *
+     * @param module L'indice del modulo; con più di 32 moduli alcuni indici condividono lo stesso
+     *               bit
+     */
+    void moduleUpdated(int module) {
+        updatedModules |= 1 << module;
+    }
+
+    /**
+     * Segnala che un modulo non ha risposto nell'aggiornamento corrente: i tag che aveva
+     * riportato l'ultima volta mantengono il loro stato, senza eventi
+     *
+     * @param module L'indice del modulo; con più di 32 moduli alcuni indici condividono lo stesso
+     *               bit, e vengono mantenuti anche i tag dei moduli con lo stesso bit
+     */
+    void moduleFailed(int module) {
+        failedModules |= 1 << module;
+    }
+
+    /**
+     * Fornisce la misura di un tag ricevuta nell'aggiornamento corrente. Se lo stesso tag è già
+     * stato ricevuto nell'aggiornamento corrente (ad esempio da un altro modulo), viene mantenuta
+     * la misura con il fattore di qualità migliore.
+     *
+     * @param view La risposta del modulo
+     * @param i L'indice del tag nella risposta
+     * @param module L'indice del modulo che ha fornito la risposta
+     */
+    void offer(DWMLocationView view, int i, int module) {
+        int slot = findOrInsert(view.tagID(i));
+
+        // Una misura è nuova se il modulo ha appena aggiornato le misure ed è riuscito a misurare il tag
+        if ((updatedModules & (1 << module)) != 0 && view.quality(i) > 0) {
+            lastUpdated[slot] = now;
+        }
+
+        if (generations[slot] == generation) {
+            modules[slot] |= 1 << module;
+            if (view.quality(i) <= qualities[slot]) {
+                return;
+            }
+        } else {
+            generations[slot] = generation;
+            modules[slot] = 1 << module;
+            previousDistances[slot] = distances[slot];
+        }
+
+        distances[slot] = view.distance(i);
+        qualities[slot] = view.quality(i);
+        xs[slot] = view.x(i);
+        ys[slot] = view.y(i);
+        zs[slot] = view.z(i);
+        positionQualities[slot] = view.positionQuality(i);
+        lastSeen[slot] = now;
+    }
+
+    /**
+     * Classifica tutti i tag in base alle misure dell'aggiornamento corrente, con un'unica
+     * scansione della tabella
+     *
+     * @param staleNanos Tempo senza misure nuove dopo il quale un tag connesso viene dichiarato
+     *                   disconnesso, in nanosecondi
+     */
+    void classify(long staleNanos) {
+        connectedCount = 0;
+        disconnectedCount = 0;
+        updatedCount = 0;
+
+        for (int slot = 0; slot < keys.length; slot++) {
+            events[slot] = EVENT_NONE;
+            if (keys[slot] == EMPTY) {
+                continue;
+            }
+
+            boolean seen = generations[slot] == generation;
+            if (!seen && (modules[slot] & failedModules) != 0) {
+                // Il modulo che riportava il tag non ha risposto: il tag mantiene il suo stato
+                continue;
+            }
+            boolean valid = seen && qualities[slot] > 0;
+            boolean updated = lastUpdated[slot] == now;
+
+            switch (states[slot]) {
+                case STATE_CONNECTED:
+                    if (!seen) {
+                        // Tag presente nei dati vecchi ma non più nei nuovi => tag disconnesso
+                        states[slot] = STATE_ABSENT;
+                        event(slot, EVENT_DISCONNECTED);
+                    } else if (!valid || (!updated && now - lastUpdated[slot] > staleNanos)) {
+                        // Il tag è fuori portata: misura non valida, oppure nessuna misura nuova
+                        states[slot] = STATE_DISCONNECTED;
+                        event(slot, EVENT_DISCONNECTED);
+                    } else {
+                        event(slot, EVENT_UPDATED);
+                    }
+                    break;
+
+                case STATE_DISCONNECTED:
+                    // Il tag disconnesso si riconnette solo con una misura nuova
+                    if (valid && updated) {
+                        connect(slot);
+                    }
+                    break;
+
+                default:
+                    if (valid && updated) {
+                        connect(slot);
+                    }
+                    break;
+            }
+
+            if (events[slot] == EVENT_CONNECTED) {
+                resetFilter(slot);
+            } else if (events[slot] == EVENT_UPDATED && updated) {
+                // Le misure ripetute dal modulo non sono nuove misure
+                updateFilter(slot);
+            }
+        }
+    }
+
+    /**
+     * Imposta il filtro delle distanze. Il filtro dei tag connessi riparte dall'ultima misura.
+     *
+     * @param filter Il filtro, oppure null per non filtrare le distanze
+     */
+    void setFilter(DistanceFilter filter) {
+        this.filter = filter;
+        filterStride = filter == null ? 0 : filter.stateSize();
+        filterStates = new double[keys.length * filterStride];
+
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != EMPTY && states[slot] == STATE_CONNECTED) {
+                resetFilter(slot);
+            }
+        }
+    }
+
+    /**
+     * @return Il filtro delle distanze, oppure null
+     */
+    DistanceFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Cerca un tag nella tabella
+     *
+     * @param tagID L'id del tag
+     * @return Lo slot del tag, oppure -1 se non presente
+     */
+    int find(int tagID) {
+        for (int slot = hash(tagID); ; slot = (slot + 1) & mask) {
+            if (keys[slot] == tagID) {
+                return slot;
+            }
+            if (keys[slot] == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @return Capacità della tabella: gli slot validi vanno da 0 a capacity() - 1
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @param i Indice compreso tra 0 e size() - 1
+     * @return Lo slot dell'i-esimo tag in ordine crescente di tagID
+     */
+    int sortedSlot(int i) {
+        return sortedSlots[i];
+    }
+
+    /**
+     * @return Numero di tag presenti nella tabella, in qualsiasi stato
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Svuota la tabella
+     */
+    void clear() {
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(events, EVENT_NONE);
+        size = 0;
+        connectedCount = 0;
+        disconnectedCount = 0;
+        updatedCount = 0;
+    }
+
+    boolean isUsed(int slot) {
+        return keys[slot] != EMPTY;
+    }
+
+    int tagID(int slot) {
+        return keys[slot];
+    }
+
+    int distance(int slot) {
+        return distances[slot];
+    }
+
+    int quality(int slot) {
+        return qualities[slot];
+    }
+
+    int x(int slot) {
+        return xs[slot];
+    }
+
+    int y(int slot) {
+        return ys[slot];
+    }
+
+    int z(int slot) {
+        return zs[slot];
+    }
+
+    int positionQuality(int slot) {
+        return positionQualities[slot];
+    }
+
+    /**
+     * @return Il momento dell'ultima misura nuova del tag, in nanosecondi
+     */
+    long lastUpdated(int slot) {
+        return lastUpdated[slot];
+    }
+
+    byte state(int slot) {
+        return states[slot];
+    }
+
+    byte event(int slot) {
+        return events[slot];
+    }
+
+    /**
+     * @return La distanza ricevuta nell'aggiornamento precedente a quello dell'ultima misura
+     */
+    int previousDistance(int slot) {
+        return previousDistances[slot];
+    }
+
+    /**
+     * @return La distanza filtrata, uguale all'ultima misura se non è impostato un filtro
+     */
+    int filteredDistance(int slot) {
+        return filteredDistances[slot];
+    }
+
+    /**
+     * @return La velocità stimata del tag, in mm/s
+     */
+    int velocity(int slot) {
+        return velocities[slot];
+    }
+
+    /**
+     * @return Il momento in cui è stata ricevuta l'ultima misura del tag, in nanosecondi
+     */
+    long lastSeen(int slot) {
+        return lastSeen[slot];
+    }
+
+    int connectedCount() {
+        return connectedCount;
+    }
+
+    int connectedSlot(int i) {
+        return connectedSlots[i];
+    }
+
+    int disconnectedCount() {
+        return disconnectedCount;
+    }
+
+    int disconnectedSlot(int i) {
+        return disconnectedSlots[i];
+    }
+
+    int updatedCount() {
+        return updatedCount;
+    }
+
+    int updatedSlot(int i) {
+        return updatedSlots[i];
+    }
+
+    /**
+     * Inizializza il filtro di un tag con l'ultima misura
+     */
+    private void resetFilter(int slot) {
+        if (filter == null) {
+            filteredDistances[slot] = distances[slot];
+        } else {
+            filter.reset(filterStates, slot * filterStride, distances[slot]);
+            filteredDistances[slot] = filter.distance(filterStates, slot * filterStride);
+        }
+        velocities[slot] = 0;
+        filterTimes[slot] = lastSeen[slot];
+    }
+
+    /**
+     * Aggiorna il filtro di un tag con l'ultima misura
+     */
+    private void updateFilter(int slot) {
+        // Misura già usata per inizializzare il filtro
+        if (lastSeen[slot] == filterTimes[slot]) {
+            return;
+        }
+
+        double elapsed = (lastSeen[slot] - filterTimes[slot]) / 1e9;
+        if (filter == null) {
+            if (elapsed > 0) {
+                velocities[slot] = (int) Math.round((distances[slot] - filteredDistances[slot]) / elapsed);
+            }
+            filteredDistances[slot] = distances[slot];
+        } else {
+            int offset = slot * filterStride;
+            filter.update(filterStates, offset, distances[slot], elapsed);
+            filteredDistances[slot] = filter.distance(filterStates, offset);
+            velocities[slot] = (int) Math.round(filter.velocity(filterStates, offset));
+        }
+        filterTimes[slot] = lastSeen[slot];
+    }
+
+    private void connect(int slot) {
+        states[slot] = STATE_CONNECTED;
+        event(slot, EVENT_CONNECTED);
+    }
+
+    /**
+     * Registra l'evento di un tag nella lista corrispondente
+     */
+    private void event(int slot, byte event) {
+        events[slot] = event;
+        switch (event) {
+            case EVENT_CONNECTED:
+                if (connectedCount == connectedSlots.length) {
+                    connectedSlots = Arrays.copyOf(connectedSlots, connectedCount * 2);
+                }
+                connectedSlots[connectedCount++] = slot;
+                break;
+            case EVENT_DISCONNECTED:
+                if (disconnectedCount == disconnectedSlots.length) {
+                    disconnectedSlots = Arrays.copyOf(disconnectedSlots, disconnectedCount * 2);
+                }
+                disconnectedSlots[disconnectedCount++] = slot;
+                break;
+            default:
+                if (updatedCount == updatedSlots.length) {
+                    updatedSlots = Arrays.copyOf(updatedSlots, updatedCount * 2);
+                }
+                updatedSlots[updatedCount++] = slot;
+                break;
+        }
+    }
+
+    /**
+     * Cerca un tag nella tabella, inserendolo nello stato STATE_ABSENT se non presente
+     */
+    private int findOrInsert(int tagID) {
+        int slot = hash(tagID);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == tagID) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        // Mantiene la tabella piena al massimo per metà, così le sequenze di probing restano brevi
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+            return findOrInsert(tagID);
+        }
+
+        keys[slot] = tagID;
+        distances[slot] = 0;
+        qualities[slot] = 0;
+        xs[slot] = 0;
+        ys[slot] = 0;
+        zs[slot] = 0;
+        positionQualities[slot] = 0;
+        previousDistances[slot] = 0;
+        generations[slot] = generation - 1;
+        modules[slot] = 0;
+        lastSeen[slot] = 0;
+        // Il nuovo tag non ha ancora misure nuove: lo diventa la misura fornita con offer
+        lastUpdated[slot] = now - 1;
+        states[slot] = STATE_ABSENT;
+        events[slot] = EVENT_NONE;
+        filteredDistances[slot] = 0;
+        velocities[slot] = 0;
+        filterTimes[slot] = 0;
+
+        // Inserisce il nuovo slot nell'indice ordinato, con una ricerca binaria
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[sortedSlots[mid]] < tagID) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        System.arraycopy(sortedSlots, low, sortedSlots, low + 1, size - low);
+        sortedSlots[low] = slot;
+        size++;
+        return slot;
+    }
+
+    /**
+     * Calcola lo slot iniziale di un tag (hashing di Fibonacci)
+     */
+    private int hash(int tagID) {
+        return (tagID * 0x9E3779B9) >>> 16 & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        distances = new int[capacity];
+        qualities = new int[capacity];
+        xs = new int[capacity];
+        ys = new int[capacity];
+        zs = new int[capacity];
+        positionQualities = new int[capacity];
+        previousDistances = new int[capacity];
+        generations = new int[capacity];
+        modules = new int[capacity];
+        lastSeen = new long[capacity];
+        lastUpdated = new long[capacity];
+        states = new byte[capacity];
+        events = new byte[capacity];
+        filteredDistances = new int[capacity];
+        velocities = new int[capacity];
+        filterTimes = new long[capacity];
+        filterStates = new double[capacity * filterStride];
+        sortedSlots = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Ingrandisce la tabella, reinserendo tutti i tag. Gli eventi dell'ultima classificazione
+     * non sono più validi.
+     */
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldDistances = distances;
+        int[] oldQualities = qualities;
+        int[] oldXs = xs;
+        int[] oldYs = ys;
+        int[] oldZs = zs;
+        int[] oldPositionQualities = positionQualities;
+        int[] oldPreviousDistances = previousDistances;
+        int[] oldGenerations = generations;
+        int[] oldModules = modules;
+        long[] oldLastSeen = lastSeen;
+        long[] oldLastUpdated = lastUpdated;
+        byte[] oldStates = states;
+        int[] oldFilteredDistances = filteredDistances;
+        int[] oldVelocities = velocities;
+        long[] oldFilterTimes = filterTimes;
+        double[] oldFilterStates = filterStates;
+        int[] oldSortedSlots = sortedSlots;
+
+        allocate(capacity);
+        connectedCount = 0;
+        disconnectedCount = 0;
+        updatedCount = 0;
+
+        // Reinserisce i tag in ordine di tagID, così che l'indice ordinato resti valido
+        for (int i = 0; i < size; i++) {
+            int old = oldSortedSlots[i];
+            int slot = hash(oldKeys[old]);
+            while (keys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+
+            keys[slot] = oldKeys[old];
+            distances[slot] = oldDistances[old];
+            qualities[slot] = oldQualities[old];
+            xs[slot] = oldXs[old];
+            ys[slot] = oldYs[old];
+            zs[slot] = oldZs[old];
+            positionQualities[slot] = oldPositionQualities[old];
+            previousDistances[slot] = oldPreviousDistances[old];
+            generations[slot] = oldGenerations[old];
+            modules[slot] = oldModules[old];
+            lastSeen[slot] = oldLastSeen[old];
+            lastUpdated[slot] = oldLastUpdated[old];
+            states[slot] = oldStates[old];
+            filteredDistances[slot] = oldFilteredDistances[old];
+            velocities[slot] = oldVelocities[old];
+            filterTimes[slot] = oldFilterTimes[old];
+            System.arraycopy(oldFilterStates, old * filterStride, filterStates, slot * filterStride,
+                    filterStride);
+            sortedSlots[i] = slot;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package group107.distancealert;
+
+/**
+ * Interfaccia utile per gestire in maniera asincrona gli attraversamenti delle soglie di distanza
+ * registrate nel DistanceController.
+ * Le callback vengono invocate solo quando un tag attraversa la soglia di una regola, non a ogni
+ * aggiornamento della distanza. Ogni callback riceve anche il momento in cui è stata richiesta la
+ * misura che ha completato l'attraversamento (System.nanoTime()).
+ */
+@SuppressWarnings("WeakerAccess")
+public interface ThresholdListener
+{
+    /**
+     * Callback usata quando la distanza del tag ha superato la soglia della regola, per almeno
+     * il tempo minimo della regola.
+     *
+     * @param ruleID Id della regola, restituito alla sua registrazione.
+     * @param tagID Id del tag.
+     * @param tagDistance Distanza del tag.
+     * @param timestamp Momento della richiesta della misura.
+     */
+    void onThresholdExceeded(final int ruleID, final int tagID, final int tagDistance,
+                             final long timestamp);
+
+    /**
+     * Callback usata quando la distanza del tag è rientrata sotto la soglia della regola, meno
+     * l'isteresi, per almeno il tempo minimo della regola.
+     *
+     * @param ruleID Id della regola, restituito alla sua registrazione.
+     * @param tagID Id del tag.
+     * @param tagDistance Distanza del tag.
+     * @param timestamp Momento della richiesta della misura.
+     */
+    void onThresholdRestored(final int ruleID, final int tagID, final int tagDistance,
+                             final long timestamp);
+}
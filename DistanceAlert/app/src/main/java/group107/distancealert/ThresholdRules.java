@@ -0,0 +1,296 @@
+package group107.distancealert;
+
+import java.util.Arrays;
+
+/**
+ * Regole sulle soglie di distanza dei tag, valutate dal thread di aggiornamento del
+ * DistanceController a ogni ciclo.
+ * Una regola scatta quando la distanza di un tag supera il limite, e rientra quando la distanza
+ * torna a essere minore o uguale al limite meno l'isteresi; in entrambi i casi la condizione deve
+ * durare almeno il tempo minimo della regola. Ai listener vengono notificati solo gli
+ * attraversamenti, quindi a regime non ci sono notifiche.
+ * Le definizioni delle regole sono memorizzate in array paralleli ordinati per tagID, pubblicati
+ * con la tecnica copy-on-write come nel ListenerRegistry: per ogni tag misurato si trovano le
+ * relative regole con una ricerca binaria, quindi il costo di un ciclo dipende dalle regole dei
+ * tag misurati. Lo stato delle regole è modificato solo dal thread di aggiornamento, in array
+ * paralleli a quelli delle definizioni, e viene riallineato solo quando le regole cambiano.
+ */
+class ThresholdRules {
+    /**
+     * Istantanea immutabile delle regole, ordinate per tagID e, a parità di tag, per id della regola
+     */
+    static final class Snapshot {
+        final int[] tagIDs;
+        final int[] ruleIDs;
+        final int[] limits;
+        final int[] restoreLimits;
+        final long[] dwells;
+        final ThresholdListener[] listeners;
+
+        private Snapshot(int[] tagIDs, int[] ruleIDs, int[] limits, int[] restoreLimits,
+                         long[] dwells, ThresholdListener[] listeners) {
+            this.tagIDs = tagIDs;
+            this.ruleIDs = ruleIDs;
+            this.limits = limits;
+            this.restoreLimits = restoreLimits;
+            this.dwells = dwells;
+            this.listeners = listeners;
+        }
+
+        /**
+         * @return Numero di regole
+         */
+        int size() {
+            return tagIDs.length;
+        }
+
+        /**
+         * @param tagID L'id del tag
+         * @return La posizione della prima regola del tag, o della prima regola di un tag con
+         * id maggiore se il tag non ha regole
+         */
+        int first(int tagID) {
+            int low = 0;
+            int high = tagIDs.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (tagIDs[mid] < tagID) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(new int[0], new int[0], new int[0],
+            new int[0], new long[0], new ThresholdListener[0]);
+
+    /**
+     * Valore di pendingSince per le regole senza attraversamenti in corso
+     */
+    private static final long NOT_PENDING = Long.MIN_VALUE;
+
+    private volatile Snapshot snapshot = EMPTY;
+    private int nextRuleID = 1;
+    private boolean closed = false;
+
+    /**
+     * Stato delle regole, usato solo dal thread di aggiornamento: istantanea a cui si riferisce,
+     * regole scattate e inizio dell'eventuale attraversamento in corso (in ns)
+     */
+    private Snapshot evaluated = EMPTY;
+    private boolean[] exceeded = new boolean[0];
+    private long[] pendingSince = new long[0];
+
+    /**
+     * @return L'istantanea corrente delle regole, da usare senza lock
+     */
+    Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Aggiunge una regola
+     *
+     * @param tagID L'id del tag
+     * @param limit La soglia (in mm)
+     * @param hysteresis L'isteresi (in mm)
+     * @param dwell Il tempo minimo per cui deve durare la condizione (in ms)
+     * @param listener Il listener a cui notificare gli attraversamenti
+     * @return L'id della regola, oppure -1 se il registro è stato chiuso
+     * @throws IllegalArgumentException Se i parametri non sono validi
+     */
+    synchronized int add(int tagID, int limit, int hysteresis, long dwell, ThresholdListener listener)
+            throws IllegalArgumentException {
+        if (hysteresis < 0 || dwell < 0 || listener == null) {
+            throw new IllegalArgumentException("Bad parameters");
+        }
+        if (closed) {
+            return -1;
+        }
+
+        // Le regole di uno stesso tag sono ordinate per id, quindi la nuova va dopo le altre
+        Snapshot s = snapshot;
+        int position = s.first(tagID + 1);
+        if (tagID == Integer.MAX_VALUE) {
+            position = s.size();
+        }
+
+        int ruleID = nextRuleID++;
+        snapshot = new Snapshot(
+                insert(s.tagIDs, position, tagID),
+                insert(s.ruleIDs, position, ruleID),
+                insert(s.limits, position, limit),
+                insert(s.restoreLimits, position, limit - hysteresis),
+                insert(s.dwells, position, dwell * 1000000L),
+                insert(s.listeners, position, listener));
+        return ruleID;
+    }
+
+    /**
+     * Rimuove una regola
+     *
+     * @param ruleID L'id della regola
+     * @return Il listener della regola, oppure null se la regola non esiste
+     */
+    synchronized ThresholdListener remove(int ruleID) {
+        Snapshot s = snapshot;
+        for (int i = 0; i < s.size(); i++) {
+            if (s.ruleIDs[i] == ruleID) {
+                ThresholdListener listener = s.listeners[i];
+                snapshot = new Snapshot(remove(s.tagIDs, i), remove(s.ruleIDs, i),
+                        remove(s.limits, i), remove(s.restoreLimits, i), remove(s.dwells, i),
+                        remove(s.listeners, i));
+                return listener;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param listener Un listener qualsiasi
+     * @return true se il listener è associato ad almeno una regola
+     */
+    synchronized boolean contains(Object listener) {
+        for (ThresholdListener l : snapshot.listeners) {
+            if (l.equals(listener)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rimuove tutte le regole e impedisce l'aggiunta di nuove regole
+     */
+    synchronized void close() {
+        closed = true;
+        snapshot = EMPTY;
+    }
+
+    /**
+     * Inizia la valutazione di un ciclo. Se le regole sono cambiate, riallinea lo stato alla
+     * nuova istantanea mantenendo quello delle regole rimaste.
+     * Da usare solo dal thread di aggiornamento.
+     *
+     * @return L'istantanea da valutare nel ciclo
+     */
+    Snapshot beginCycle() {
+        Snapshot s = snapshot;
+        if (s == evaluated) {
+            return s;
+        }
+
+        boolean[] newExceeded = new boolean[s.size()];
+        long[] newPendingSince = new long[s.size()];
+        Arrays.fill(newPendingSince, NOT_PENDING);
+
+        // Entrambe le istantanee sono ordinate per (tagID, ruleID): le unisce in tempo lineare
+        Snapshot old = evaluated;
+        int j = 0;
+        for (int i = 0; i < s.size(); i++) {
+            while (j < old.size() && (old.tagIDs[j] < s.tagIDs[i]
+                    || (old.tagIDs[j] == s.tagIDs[i] && old.ruleIDs[j] < s.ruleIDs[i]))) {
+                j++;
+            }
+            if (j < old.size() && old.ruleIDs[j] == s.ruleIDs[i]) {
+                newExceeded[i] = exceeded[j];
+                newPendingSince[i] = pendingSince[j];
+            }
+        }
+
+        evaluated = s;
+        exceeded = newExceeded;
+        pendingSince = newPendingSince;
+        return s;
+    }
+
+    /**
+     * Valuta le regole di un tag con una nuova misura, pubblicando gli attraversamenti.
+     * Da usare solo dal thread di aggiornamento, dopo beginCycle().
+     *
+     * @param tagID L'id del tag
+     * @param distance La distanza del tag (in mm)
+     * @param now L'istante della richiesta della misura (in ns)
+     * @param dispatcher Il distributore a cui pubblicare gli attraversamenti
+     */
+    void evaluate(int tagID, int distance, long now, EventDispatcher dispatcher) {
+        Snapshot s = evaluated;
+        for (int i = s.first(tagID); i < s.size() && s.tagIDs[i] == tagID; i++) {
+            boolean crossing = exceeded[i] ? distance <= s.restoreLimits[i] : distance > s.limits[i];
+            if (!crossing) {
+                pendingSince[i] = NOT_PENDING;
+                continue;
+            }
+
+            if (pendingSince[i] == NOT_PENDING) {
+                pendingSince[i] = now;
+            }
+            if (now - pendingSince[i] >= s.dwells[i]) {
+                exceeded[i] = !exceeded[i];
+                pendingSince[i] = NOT_PENDING;
+                if (exceeded[i]) {
+                    dispatcher.thresholdExceeded(s.listeners[i], s.ruleIDs[i], tagID, distance, now);
+                } else {
+                    dispatcher.thresholdRestored(s.listeners[i], s.ruleIDs[i], tagID, distance, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Interrompe gli attraversamenti in corso per le regole di un tag non più misurato.
+     * Da usare solo dal thread di aggiornamento, dopo beginCycle().
+     *
+     * @param tagID L'id del tag
+     */
+    void tagLost(int tagID) {
+        Snapshot s = evaluated;
+        for (int i = s.first(tagID); i < s.size() && s.tagIDs[i] == tagID; i++) {
+            pendingSince[i] = NOT_PENDING;
+        }
+    }
+
+    private static int[] insert(int[] array, int position, int value) {
+        int[] result = new int[array.length + 1];
+        System.arraycopy(array, 0, result, 0, position);
+        result[position] = value;
+        System.arraycopy(array, position, result, position + 1, array.length - position);
+        return result;
+    }
+
+    private static long[] insert(long[] array, int position, long value) {
+        long[] result = new long[array.length + 1];
+        System.arraycopy(array, 0, result, 0, position);
+        result[position] = value;
+        System.arraycopy(array, position, result, position + 1, array.length - position);
+        return result;
+    }
+
+    private static <T> T[] insert(T[] array, int position, T value) {
+        T[] result = Arrays.copyOf(array, array.length + 1);
+        System.arraycopy(array, position, result, position + 1, array.length - position);
+        result[position] = value;
+        return result;
+    }
+
+    private static int[] remove(int[] array, int position) {
+        int[] result = Arrays.copyOf(array, array.length - 1);
+        System.arraycopy(array, position + 1, result, position, array.length - position - 1);
+        return result;
+    }
+
+    private static long[] remove(long[] array, int position) {
+        long[] result = Arrays.copyOf(array, array.length - 1);
+        System.arraycopy(array, position + 1, result, position, array.length - position - 1);
+        return result;
+    }
+
+    private static <T> T[] remove(T[] array, int position) {
+        T[] result = Arrays.copyOf(array, array.length - 1);
+        System.arraycopy(array, position + 1, result, position, array.length - position - 1);
+        return result;
+    }
+}
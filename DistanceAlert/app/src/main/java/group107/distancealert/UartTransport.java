@@ -0,0 +1,232 @@
+package group107.distancealert;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.google.android.things.pio.UartDevice;
+import com.google.android.things.pio.UartDeviceCallback;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trasporto che usa una periferica UART reale, ottenuta tramite PeripheralManager.
+ * Un unico thread di ricezione, creato insieme al trasporto e attivo finché non viene chiuso,
+ * trasferisce i byte ricevuti in un buffer circolare lock-free, da cui leggono le richieste.
+ */
+class UartTransport implements StreamTransport {
+    /**
+     * Stringa utile per log dell'UartTransport
+     */
+    private static final String TAG = "UartTransport";
+
+    /**
+     * Capacità del buffer di ricezione: contiene ampiamente diverse risposte del modulo
+     */
+    private static final int RECEIVE_BUFFER_SIZE = 1024;
+
+    /**
+     * Tempo massimo d'attesa dello svuotamento del buffer di ricezione da parte del thread di
+     * ricezione, in ms
+     */
+    private static final long MAX_FLUSH_WAIT = 100;
+
+    /**
+     * Oggetto riferito alla periferica UART
+     */
+    private volatile UartDevice myUART;
+
+    /**
+     * Nome del bus della periferica
+     */
+    private final String myBus;
+
+    /**
+     * Buffer circolare in cui il thread di ricezione salva i byte in arrivo
+     */
+    private final ByteRingBuffer receiveBuffer = new ByteRingBuffer(RECEIVE_BUFFER_SIZE);
+
+    /**
+     * Thread di ricezione, su cui viene eseguita la callback della UART
+     */
+    private final HandlerThread myThread;
+    private final Handler myHandler;
+
+    /**
+     * Svuotamento del buffer di ricezione, eseguito dal thread di ricezione dopo la callback
+     * eventualmente in corso: i byte che questa ha già letto dalla periferica prima dello
+     * svuotamento della periferica vengono così scartati anch'essi. Il semaforo segnala il
+     * completamento al thread che ha richiesto lo svuotamento, che nel frattempo non accede
+     * al buffer.
+     */
+    private final Semaphore receiveBufferCleared = new Semaphore(0);
+    private final Runnable clearReceiveBuffer = new Runnable() {
+        @Override
+        public void run() {
+            receiveBuffer.clear();
+            receiveBufferCleared.release();
+        }
+    };
+
+    /**
+     * Callback della UART: svuota la periferica nel buffer di ricezione.
+     * Rimane registrata per tutta la vita del trasporto.
+     */
+    private final UartDeviceCallback receiveCallback = new UartDeviceCallback() {
+        /**
+         * Array usato per leggere dalla periferica, usato solo dal thread di ricezione
+         */
+        private final byte[] chunk = new byte[64];
+
+        @Override
+        public boolean onUartDeviceDataAvailable(UartDevice uartDevice) {
+            try {
+                int count;
+                while ((count = uartDevice.read(chunk, chunk.length)) > 0) {
+                    if (receiveBuffer.write(chunk, 0, count) < count) {
+                        Log.w(TAG, "UART receive buffer full: bytes dropped");
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Exception reading from UART", e);
+            }
+
+            // La callback rimane registrata
+            return true;
+        }
+
+        @Override
+        public void onUartDeviceError(UartDevice uartDevice, int error) {
+            Log.w(TAG, "UART error: " + error);
+        }
+    };
+
+    /**
+     * Costruttore: configura i parametri della comunicazione UART necessari per il modulo DWM
+     * e avvia il thread di ricezione
+     *
+     * @param device Periferica UART già aperta
+     * @param busName Nome del bus della periferica
+     * @throws IOException Lanciata se ci sono problemi di accesso alla periferica
+     */
+    UartTransport(UartDevice device, String busName) throws IOException {
+        myUART = device;
+        myBus = busName;
+
+        /*
+         Baud-rate = 115200
+         Numero di bit = 8
+         Nessun bit di parità
+         Un bit di stop
+         */
+        myUART.setBaudrate(115200);
+        myUART.setDataSize(8);
+        myUART.setParity(UartDevice.PARITY_NONE);
+        myUART.setStopBits(1);
+
+        // Avvia il thread di ricezione e vi registra la callback
+        myThread = new HandlerThread("UartReceiveThread");
+        myThread.start();
+        myHandler = new Handler(myThread.getLooper());
+        try {
+            myUART.registerUartDeviceCallback(myHandler, receiveCallback);
+        } catch (IOException e) {
+            myThread.quitSafely();
+            throw e;
+        }
+    }
+
+    @Override
+    public String getBusName() {
+        return myBus;
+    }
+
+    @Override
+    public void write(byte[] buffer, int length) throws IOException {
+        device().write(buffer, length);
+    }
+
+    @Override
+    public int read(byte[] buffer, int length) throws IOException {
+        device();
+        return receiveBuffer.read(buffer, 0, length);
+    }
+
+    /**
+     * Scarta i byte presenti nei buffer della periferica e quelli già ricevuti dal thread
+     * di ricezione ma non ancora letti. Il buffer di ricezione viene svuotato dal thread di
+     * ricezione stesso, dopo la callback eventualmente in corso, e questo metodo ne attende il
+     * completamento.
+     *
+     * @throws IOException Lanciata se ci sono problemi di accesso alla periferica o se il
+     * thread di ricezione non svuota il buffer entro MAX_FLUSH_WAIT
+     */
+    @Override
+    public void flush() throws IOException {
+        device().flush(UartDevice.FLUSH_IN_OUT);
+
+        // Scarta l'eventuale segnalazione di uno svuotamento precedente, la cui attesa è scaduta
+        receiveBufferCleared.drainPermits();
+        boolean cleared;
+        try {
+            cleared = myHandler.post(clearReceiveBuffer)
+                    && receiveBufferCleared.tryAcquire(MAX_FLUSH_WAIT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while flushing UART", e);
+        }
+        if (!cleared) {
+            throw new IOException("UART receive thread not responding");
+        }
+    }
+
+    /**
+     * Aspetta che il thread di ricezione abbia salvato dei dati nel buffer.
+     * Se l'attesa si protrae oltre il limite impostato viene comunque terminata
+     *
+     * @param maxTimeWait_millis Tempo d'attesa massimo
+     * @return true se ci sono dati disponibili, false se il tempo d'attesa è scaduto
+     * @throws IOException Lanciata se durante l'attesa è stata chiusa la periferica
+     */
+    @Override
+    public boolean awaitData(long maxTimeWait_millis) throws IOException {
+        boolean available = receiveBuffer.await(maxTimeWait_millis * 1000000L);
+
+        // Nel caso durante l'attesa fosse stata chiusa la periferica, lancia la seguente eccezione
+        if (myUART == null) {
+            throw new IOException("Communication error via UART: communication interrupted");
+        }
+
+        return available;
+    }
+
+    @Override
+    public void close() throws IOException {
+        UartDevice device = myUART;
+        if (device != null) {
+            myUART = null;
+
+            // Termina il thread di ricezione e risveglia l'eventuale thread in attesa
+            device.unregisterUartDeviceCallback(receiveCallback);
+            myThread.quitSafely();
+            receiveBuffer.close();
+
+            // Chiude UART
+            device.close();
+        }
+    }
+
+    /**
+     * @return La periferica UART, se è ancora aperta
+     * @throws IOException Lanciata se la periferica è già stata chiusa
+     */
+    private UartDevice device() throws IOException {
+        UartDevice device = myUART;
+        if (device == null) {
+            throw new IOException("UART device closed");
+        }
+        return device;
+    }
+}
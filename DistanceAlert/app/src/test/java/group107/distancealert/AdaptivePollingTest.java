@@ -0,0 +1,99 @@
+package group107.distancealert;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test locali dell'AdaptivePolling.
+ */
+public class AdaptivePollingTest {
+    private static final long MIN_PERIOD = 100L;
+    private static final long MAX_PERIOD = 1000L;
+
+    /**
+     * Intervallo tra due aggiornamenti simulati, in ns
+     */
+    private static final long FRAME_NANOS = 100000000L;
+
+    private final TagTable table = new TagTable();
+    private final DWMLocationView view = new DWMLocationView();
+    private final AdaptivePolling polling = new AdaptivePolling();
+    private long now = 0;
+
+    /**
+     * Simula un aggiornamento in cui il modulo riporta un solo tag alla distanza specificata
+     *
+     * @return Il periodo calcolato
+     */
+    private long frame(int distance) {
+        byte[] response = new byte[3 + 3 + DWMLocationView.BYTES_PER_ENTRY];
+        response[0] = 0x40;
+        response[1] = 1;
+        response[3] = 0x49;
+        response[4] = 1 + DWMLocationView.BYTES_PER_ENTRY;
+        response[5] = 1;
+        response[6] = 0x34;
+        response[7] = 0x12;
+        for (int i = 0; i < 4; i++) {
+            response[8 + i] = (byte) (distance >> (8 * i));
+        }
+        response[12] = 100;
+
+        now += FRAME_NANOS;
+        table.beginFrame(now);
+        table.moduleUpdated(0);
+        view.wrap(response, response.length);
+        table.offer(view, 0, 0);
+        table.classify(Integer.MAX_VALUE);
+        return polling.update(table, now);
+    }
+
+    @Test
+    public void staticTag_slowsDownGradually() {
+        polling.reset(MIN_PERIOD, MAX_PERIOD);
+        long previous = MIN_PERIOD;
+        for (int i = 0; i < 5; i++) {
+            long period = frame(5000 + (i % 2) * 20);
+            assertTrue(period >= previous);
+            assertTrue(period <= previous * 2);
+            previous = period;
+        }
+        for (int i = 0; i < 20; i++) {
+            frame(5000);
+        }
+        assertEquals(MAX_PERIOD, polling.period());
+    }
+
+    @Test
+    public void tagNearThreshold_usesMinimumPeriod() {
+        polling.reset(MIN_PERIOD, MAX_PERIOD);
+        polling.addThreshold(2000);
+        for (int i = 0; i < 20; i++) {
+            frame(5000);
+        }
+        assertEquals(MAX_PERIOD, polling.period());
+
+        // Il periodo si riduce subito, senza passaggi intermedi
+        assertEquals(MIN_PERIOD, frame(2200));
+
+        assertTrue(polling.removeThreshold(2000));
+        assertFalse(polling.removeThreshold(2000));
+        assertTrue(frame(2200) > MIN_PERIOD);
+    }
+
+    @Test
+    public void movingTag_speedsUpPolling() {
+        polling.reset(MIN_PERIOD, MAX_PERIOD);
+        for (int i = 0; i < 20; i++) {
+            frame(8000);
+        }
+
+        // 200 mm ogni 100 ms: raggiunge la distanza di riferimento in 1 s
+        long period = frame(7800);
+        assertEquals(1000 / AdaptivePolling.SAMPLES_BEFORE_CROSSING, period);
+
+        // Più veloce: 500 mm ogni 100 ms, fino al periodo minimo
+        assertEquals(MIN_PERIOD, frame(7300));
+    }
+}
@@ -0,0 +1,70 @@
+package group107.distancealert;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark della fase di aggiornamento della tabella dei tag: decodifica delle risposte,
+ * unione delle misure e classificazione dei tag in connessi, disconnessi e aggiornati, come fa
+ * il DistanceController prima di pubblicare e notificare i dati.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassifyBenchmark {
+    /**
+     * Tempo senza misure nuove dopo il quale un tag è disconnesso, quello del DistanceController
+     * con l'intervallo di aggiornamento predefinito dei moduli
+     */
+    private static final long STALE_NANOS = 125000000L;
+
+    @Param({"1", "15", "100", "1000"})
+    public int tagCount;
+
+    @Param({"0", "0.01", "0.1"})
+    public double churn;
+
+    private final DWMLocationView view = new DWMLocationView();
+    private TagTable table;
+    private SyntheticFrames frames;
+    private long now;
+
+    @Setup
+    public void setUp() {
+        table = new TagTable();
+        frames = new SyntheticFrames(tagCount, churn);
+        now = 0;
+    }
+
+    @Benchmark
+    public int classify() {
+        int frame = frames.next();
+        now += SyntheticFrames.FRAME_NANOS;
+
+        table.beginFrame(now);
+        table.moduleUpdated(0);
+        for (int r = 0; r < frames.responseCount(frame); r++) {
+            view.wrap(frames.response(frame, r), frames.length(frame, r));
+            for (int i = 0; i < view.size(); i++) {
+                table.offer(view, i, 0);
+            }
+        }
+        table.classify(STALE_NANOS);
+
+        return table.connectedCount() + table.disconnectedCount() + table.updatedCount();
+    }
+}
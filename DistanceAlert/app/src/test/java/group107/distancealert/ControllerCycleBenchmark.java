@@ -0,0 +1,124 @@
+package group107.distancealert;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark di un ciclo completo del DistanceController escluso il bus: decodifica delle
+ * risposte, classificazione dei tag, pubblicazione dell'istantanea e pubblicazione degli eventi
+ * per i listener. I listener vengono eseguiti dai thread del distributore degli eventi, quindi il
+ * tempo riportato è quello del thread di aggiornamento.
+ * Per ogni listener vengono registrati un AllTagsListener e un TagListener, su tag diversi.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControllerCycleBenchmark {
+    /**
+     * Listener che si limita a contare gli eventi ricevuti
+     */
+    private static class CountingListener implements AllTagsListener, TagListener {
+        private long events = 0;
+
+        @Override
+        public void onTagHasConnected(List<DistanceController.Entry> tags) {
+            events += tags.size();
+        }
+
+        @Override
+        public void onTagHasDisconnected(List<DistanceController.Entry> tags) {
+            events += tags.size();
+        }
+
+        @Override
+        public void onTagDataAvailable(List<DistanceController.Entry> tags) {
+            events += tags.size();
+        }
+
+        @Override
+        public void onTagHasConnected(int tagDistance, long timestamp) {
+            events++;
+        }
+
+        @Override
+        public void onTagHasDisconnected(int tagLastKnownDistance, long timestamp) {
+            events++;
+        }
+
+        @Override
+        public void onTagDataAvailable(int tagDistance, long timestamp) {
+            events++;
+        }
+
+        @Override
+        public void onError(String shortDescription, Exception error) {
+        }
+    }
+
+    @Param({"1", "15", "100", "1000"})
+    public int tagCount;
+
+    @Param({"0", "0.01", "0.1"})
+    public double churn;
+
+    @Param({"0", "1", "10"})
+    public int listenerCount;
+
+    private DistanceController controller;
+    private SyntheticFrames frames;
+    private DWMLocationView[] views;
+    private long now;
+
+    @Setup
+    public void setUp() throws IOException {
+        // Il simulatore serve solo al controllo del modulo fatto dal costruttore
+        controller = new DistanceController(new DriverDWM(new DWMSimulator("BENCH", false).getTransport()));
+        for (int l = 0; l < listenerCount; l++) {
+            controller.addAllTagsListener(new CountingListener());
+            controller.addTagListener(l % tagCount + 1, new CountingListener());
+        }
+
+        frames = new SyntheticFrames(tagCount, churn);
+        views = new DWMLocationView[frames.maxResponseCount()];
+        for (int r = 0; r < views.length; r++) {
+            views[r] = new DWMLocationView();
+        }
+        now = System.nanoTime();
+    }
+
+    @TearDown
+    public void tearDown() {
+        controller.close();
+    }
+
+    @Benchmark
+    public long cycle() {
+        int frame = frames.next();
+        now += SyntheticFrames.FRAME_NANOS;
+
+        int count = frames.responseCount(frame);
+        for (int r = 0; r < count; r++) {
+            views[r].wrap(frames.response(frame, r), frames.length(frame, r));
+        }
+        controller.processFrame(views, count, now);
+
+        return controller.getLatestFrame().sequence;
+    }
+}
@@ -0,0 +1,129 @@
+package group107.distancealert;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test locali del DWMLoadGenerator.
+ */
+public class DWMLoadGeneratorTest {
+    private final byte[] response = new byte[DriverDWM.MAX_RESPONSE_LENGTH];
+    private final DWMLocationView view = new DWMLocationView();
+
+    /**
+     * Legge le risposte di tutti i moduli dell'ultimo aggiornamento
+     *
+     * @return Per ogni tag (indice id - 1) la distanza riportata, -1 se il tag manca e -2 se è
+     * riportato con qualità nulla
+     */
+    private int[] readAll(DWMLoadGenerator generator, int tagCount) {
+        int[] distances = new int[tagCount];
+        Arrays.fill(distances, -1);
+        for (int m = 0; m < generator.getModuleCount(); m++) {
+            view.wrap(response, generator.writeLocation(m, response));
+            assertTrue(view.size() <= DWMLoadGenerator.MAX_TAGS_PER_MODULE);
+            for (int i = 0; i < view.size(); i++) {
+                distances[view.tagID(i) - 1] = view.quality(i) == 0 ? -2 : view.distance(i);
+            }
+        }
+        return distances;
+    }
+
+    @Test
+    public void tags_areSplitAcrossModules() {
+        DWMLoadGenerator generator = new DWMLoadGenerator(300, 1);
+        assertEquals(28, generator.getModuleCount());
+
+        generator.advance();
+        int[] distances = readAll(generator, 300);
+        for (int distance : distances) {
+            assertTrue(distance > 0);
+        }
+    }
+
+    @Test
+    public void scenario_isReproducible() {
+        DWMLoadGenerator first = new DWMLoadGenerator(50, 7);
+        DWMLoadGenerator second = new DWMLoadGenerator(50, 7);
+        first.setDropoutProbability(0.1);
+        second.setDropoutProbability(0.1);
+        for (int u = 0; u < 20; u++) {
+            first.advance();
+            second.advance();
+            assertArrayEquals(readAll(first, 50), readAll(second, 50));
+        }
+        assertEquals(first.getDropoutCount(), second.getDropoutCount());
+        assertTrue(first.getDropoutCount() > 0);
+    }
+
+    @Test
+    public void linearMotion_movesTags() {
+        DWMLoadGenerator generator = new DWMLoadGenerator(10, 3);
+        generator.setMotion(DWMLoadGenerator.Motion.LINEAR, 1000);
+        generator.setRangeNoise(0);
+        generator.advance();
+        int[] before = readAll(generator, 10);
+        for (int u = 0; u < 10; u++) {
+            generator.advance();
+        }
+        int[] after = readAll(generator, 10);
+
+        // In 1 s ogni tag si sposta tra 500 e 1500 mm
+        for (int i = 0; i < 10; i++) {
+            int moved = Math.abs(after[i] - before[i]);
+            assertTrue("moved " + moved, moved >= 450 && moved <= 1550);
+        }
+    }
+
+    @Test
+    public void stuckReadings_repeatTheSameMeasurement() {
+        DWMLoadGenerator generator = new DWMLoadGenerator(20, 5);
+        generator.setStuckReadings(1.0, 5);
+        generator.advance();
+        int[] stuck = readAll(generator, 20);
+        for (int u = 0; u < 4; u++) {
+            generator.advance();
+            assertArrayEquals(stuck, readAll(generator, 20));
+        }
+        assertEquals(20, generator.getStuckReadingCount());
+    }
+
+    @Test
+    public void reconnectStorm_disconnectsAndReconnectsTogether() {
+        DWMLoadGenerator generator = new DWMLoadGenerator(100, 11);
+        generator.setReconnectStorms(5, 2, 0.5);
+        Set<Integer> stormed = new HashSet<>();
+        for (int u = 1; u <= 7; u++) {
+            generator.advance();
+            int[] distances = readAll(generator, 100);
+            for (int i = 0; i < distances.length; i++) {
+                if (distances[i] == -2) {
+                    assertTrue(u == 5 || u == 6);
+                    stormed.add(i);
+                } else {
+                    assertTrue(distances[i] > 0);
+                }
+            }
+        }
+        assertEquals(1, generator.getStormCount());
+        assertTrue(stormed.size() > 20 && stormed.size() < 80);
+    }
+
+    @Test
+    public void controller_seesAllTagsOfAllModules() throws Exception {
+        DWMLoadGenerator generator = new DWMLoadGenerator(40, 13);
+        generator.setMotion(DWMLoadGenerator.Motion.OSCILLATING, 500);
+        DistanceController controller = new DistanceController(generator.openDrivers());
+        controller.startUpdate(100L);
+
+        DistanceController.Frame frame = controller.awaitNextFrame(0, 2000);
+        assertNotNull(frame);
+        assertEquals(40, frame.tags.size());
+        controller.close();
+    }
+}
@@ -0,0 +1,152 @@
+package group107.distancealert;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test locali della registrazione delle risposte dei moduli (DWMRecorder e DWMRecording) e
+ * della loro riproduzione (DWMReplayTransport).
+ */
+public class DWMRecordReplayTest {
+    private final File file = newFile();
+
+    private static File newFile() {
+        try {
+            File file = File.createTempFile("session", ".dwm");
+            file.deleteOnExit();
+            return file;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Registra alcune risposte a dwm_loc_get di un modulo simulato, con la distanza del tag che
+     * cambia a ogni richiesta
+     *
+     * @return Le risposte registrate, convertite in unsigned int
+     */
+    private List<int[]> recordSession(int count, long interval_millis) throws Exception {
+        DWMSimulator simulator = new DWMSimulator("SIM-SPI", true);
+        simulator.setTag(0x1234, 1000, 100);
+        DriverDWM driver = new DriverDWM(simulator.getTransport());
+        DWMRecorder recorder = new DWMRecorder(file);
+        driver.setRecorder(recorder);
+
+        List<int[]> responses = new ArrayList<>();
+        driver.requestAPI((byte) 0x04, null);
+        for (int i = 0; i < count; i++) {
+            simulator.setTag(0x1234, 1000 + 10 * i, 100);
+            responses.add(driver.requestAPI((byte) 0x0C, null));
+            Thread.sleep(interval_millis);
+        }
+
+        assertEquals(count + 1, recorder.getRecordCount());
+        recorder.close();
+        driver.close();
+        return responses;
+    }
+
+    private static int distanceOf(int[] response) {
+        return response[23] | (response[24] << 8);
+    }
+
+    @Test
+    public void recording_containsEveryResponseInOrder() throws Exception {
+        List<int[]> responses = recordSession(5, 2);
+
+        DWMRecording recording = new DWMRecording(file);
+        assertTrue(recording.next());
+        assertEquals("SIM-SPI", recording.getBusName());
+        assertEquals(0x04, recording.getType());
+        long previous = recording.getTimestamp();
+
+        for (int[] expected : responses) {
+            assertTrue(recording.next());
+            assertEquals(0x0C, recording.getType());
+            assertTrue(recording.getTimestamp() > previous);
+            previous = recording.getTimestamp();
+
+            int[] actual = new int[recording.getLength()];
+            for (int i = 0; i < actual.length; i++) {
+                actual[i] = recording.getResponse()[i] & 0xff;
+            }
+            assertArrayEquals(expected, actual);
+        }
+        assertFalse(recording.next());
+        assertEquals(Arrays.asList("SIM-SPI"), recording.getBusNames());
+
+        // Il file viene ridotto alla parte scritta: intestazione, bus e 6 risposte
+        assertTrue(file.length() < 1024);
+    }
+
+    @Test
+    public void replay_atMaxSpeed_returnsEveryResponseThenDisconnects() throws Exception {
+        List<int[]> responses = recordSession(5, 20);
+
+        DWMReplayTransport transport = new DWMReplayTransport(file, "SIM-SPI",
+                DWMReplayTransport.MAX_SPEED);
+        DriverDWM driver = new DriverDWM(transport);
+        driver.checkDWM();
+        for (int[] expected : responses) {
+            assertArrayEquals(expected, driver.requestAPI((byte) 0x0C, null));
+        }
+        assertEquals(responses.size(), transport.getReplayedCount());
+
+        try {
+            driver.requestAPI((byte) 0x0C, null);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(transport.isFinished());
+        }
+        driver.close();
+    }
+
+    @Test
+    public void replay_followsRecordedTime() throws Exception {
+        List<int[]> responses = recordSession(4, 100);
+
+        // A velocità doppia, le risposte registrate ogni 100 ms cambiano ogni 50 ms
+        DriverDWM driver = new DriverDWM(new DWMReplayTransport(file, "SIM-SPI", 2.0));
+        int first = distanceOf(driver.requestAPI((byte) 0x0C, null));
+        assertEquals(distanceOf(responses.get(0)), first);
+        assertEquals(first, distanceOf(driver.requestAPI((byte) 0x0C, null)));
+
+        Thread.sleep(125);
+        int later = distanceOf(driver.requestAPI((byte) 0x0C, null));
+        assertTrue(later > first);
+        assertTrue(later <= distanceOf(responses.get(3)));
+        driver.close();
+    }
+
+    @Test
+    public void replay_feedsDistanceController() throws Exception {
+        recordSession(20, 50);
+
+        DistanceController controller = new DistanceController(
+                DWMReplayTransport.openDrivers(file, 4.0));
+        controller.startUpdate(100L);
+        DistanceController.Frame frame = controller.awaitNextFrame(0, 2000);
+        assertNotNull(frame);
+        assertNotNull(frame.getTag(0x1234));
+        controller.close();
+    }
+
+    @Test
+    public void replay_rejectsUnknownBus() throws Exception {
+        recordSession(1, 0);
+        try {
+            new DWMReplayTransport(file, "SPI0.1", 1.0);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("SPI0.1"));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package group107.distancealert;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark della decodifica delle risposte di dwm_loc_get: validazione della risposta e lettura
+ * di tutti i campi di ogni tag, come fa il DistanceController a ogni aggiornamento.
+ * Il tempo riportato è quello di un aggiornamento completo, con tutte le sue risposte.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+    @Param({"1", "15", "100", "1000"})
+    public int tagCount;
+
+    private final DWMLocationView view = new DWMLocationView();
+    private SyntheticFrames frames;
+
+    @Setup
+    public void setUp() {
+        frames = new SyntheticFrames(tagCount, 0);
+    }
+
+    @Benchmark
+    public long decode() {
+        int frame = frames.next();
+        long sum = 0;
+        for (int r = 0; r < frames.responseCount(frame); r++) {
+            view.wrap(frames.response(frame, r), frames.length(frame, r));
+            for (int i = 0; i < view.size(); i++) {
+                sum += view.tagID(i) + view.distance(i) + view.quality(i) + view.x(i) + view.y(i)
+                        + view.z(i) + view.positionQuality(i);
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,67 @@
+package group107.distancealert;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test locali dei DistanceFilter.
+ */
+public class DistanceFilterTest {
+    /**
+     * Intervallo tra due misure simulate, in s
+     */
+    private static final double PERIOD = 0.1;
+
+    @Test
+    public void median_removesIsolatedSpikes() {
+        DistanceFilter filter = DistanceFilter.median(3);
+        double[] state = new double[filter.stateSize() * 2];
+        int offset = filter.stateSize();
+
+        filter.reset(state, offset, 1000);
+        int[] measures = {1010, 5000, 1020, 1030, 0, 1040, 1050};
+        for (int measure : measures) {
+            filter.update(state, offset, measure, PERIOD);
+            int distance = filter.distance(state, offset);
+            assertTrue("distance " + distance, distance >= 1000 && distance <= 1050);
+        }
+        assertEquals(1040, filter.distance(state, offset));
+
+        // Lo stato del primo tag non viene toccato
+        for (int i = 0; i < offset; i++) {
+            assertEquals(0.0, state[i], 0.0);
+        }
+    }
+
+    @Test
+    public void kalman_tracksConstantVelocity() {
+        DistanceFilter filter = DistanceFilter.kalman(500, 50);
+        double[] state = new double[filter.stateSize()];
+
+        // Il tag si allontana a 1 m/s, con un errore di misura alternato di +-50 mm
+        filter.reset(state, 0, 1000);
+        int distance = 1000;
+        for (int i = 1; i <= 50; i++) {
+            distance = 1000 + i * 100;
+            filter.update(state, 0, distance + (i % 2 == 0 ? 50 : -50), PERIOD);
+        }
+
+        assertEquals(distance, filter.distance(state, 0), 50);
+        assertEquals(1000, filter.velocity(state, 0), 100);
+    }
+
+    @Test
+    public void badParameters_areRejected() {
+        try {
+            DistanceFilter.median(4);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            DistanceFilter.kalman(0, 50);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+}
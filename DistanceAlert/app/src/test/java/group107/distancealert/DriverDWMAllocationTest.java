@@ -0,0 +1,78 @@
+package group107.distancealert;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifica che il ciclo di polling del DriverDWM, a regime, non allochi memoria.
+ * Il ciclo viene eseguito senza pause: la frequenza di polling (ad esempio 10 Hz) non cambia
+ * la quantità di memoria allocata per ciclo.
+ */
+public class DriverDWMAllocationTest {
+    private static final int WARM_UP_CYCLES = 20000;
+    private static final int MEASURED_CYCLES = 10000;
+
+    /**
+     * @return Byte allocati finora dal thread corrente
+     */
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Esegue un ciclo di polling come quello del DistanceController: richiede dwm_loc_get e
+     * legge id e distanza di ogni tag direttamente dal buffer della risposta.
+     */
+    private static long pollCycle(DriverDWM driver, byte[] response) throws IOException {
+        driver.requestAPI((byte) 0x0C, null, 0, 0, response);
+
+        long sum = 0;
+        int count = response[20] & 0xff;
+        for (int i = 0, index = 21; i < count; i++, index += 20) {
+            sum += (response[index] & 0xff) | ((response[index + 1] & 0xff) << 8);
+            sum += (response[index + 2] & 0xff) | ((response[index + 3] & 0xff) << 8)
+                    | ((response[index + 4] & 0xff) << 16) | ((response[index + 5] & 0xff) << 24);
+        }
+        return sum;
+    }
+
+    private static void checkAllocationFree(boolean spi) throws IOException {
+        DWMSimulator simulator = new DWMSimulator("SIM", spi);
+        for (int i = 0; i < DWMSimulator.MAX_TAGS; i++) {
+            simulator.setTag(i, 1000 + i, 100);
+        }
+        DriverDWM driver = new DriverDWM(simulator.getTransport());
+        driver.checkDWM();
+
+        byte[] response = new byte[DriverDWM.MAX_RESPONSE_LENGTH];
+        long sum = 0;
+        for (int i = 0; i < WARM_UP_CYCLES; i++) {
+            sum += pollCycle(driver, response);
+        }
+
+        long before = allocatedBytes();
+        for (int i = 0; i < MEASURED_CYCLES; i++) {
+            sum += pollCycle(driver, response);
+        }
+        long allocated = allocatedBytes() - before;
+
+        driver.close();
+        assertTrue(sum > 0);
+        assertEquals("Bytes allocated per cycle", 0, allocated / MEASURED_CYCLES);
+    }
+
+    @Test
+    public void spiPollLoop_isAllocationFree() throws IOException {
+        checkAllocationFree(true);
+    }
+
+    @Test
+    public void uartPollLoop_isAllocationFree() throws IOException {
+        checkAllocationFree(false);
+    }
+}
@@ -0,0 +1,548 @@
+package group107.distancealert;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test locali del DriverDWM e del DistanceController collegati al DWMSimulator.
+ */
+public class DriverDWMSimulatorTest {
+    private static DWMSimulator newSimulator(boolean spi) {
+        DWMSimulator simulator = new DWMSimulator(spi ? "SIM-SPI" : "SIM-UART", spi);
+        simulator.setLatency(500, 500);
+        simulator.setTag(0x1234, 1500, 100);
+        simulator.setTag(0xabcd, 70000, 80);
+        return simulator;
+    }
+
+    private static void checkLocationResponse(int[] response) {
+        // TLV errore, TLV posizione, TLV distanze con 2 tag
+        assertEquals(3 + 15 + 3 + 2 * 20, response.length);
+        assertEquals(0x40, response[0]);
+        assertEquals(0x00, response[2]);
+        assertEquals(0x49, response[18]);
+        assertEquals(2, response[20]);
+        assertEquals(0x1234, (response[22] << 8) + response[21]);
+        assertEquals(1500, (response[24] << 8) + response[23]);
+        assertEquals(0xabcd, (response[42] << 8) + response[41]);
+        assertEquals(70000, (response[45] << 16) + (response[44] << 8) + response[43]);
+    }
+
+    @Test
+    public void spiRequest_isCorrect() throws IOException {
+        DriverDWM driver = new DriverDWM(newSimulator(true).getTransport());
+        driver.checkDWM();
+        checkLocationResponse(driver.requestAPI((byte) 0x0C, null));
+        driver.close();
+    }
+
+    @Test
+    public void uartRequest_isCorrect() throws IOException {
+        DriverDWM driver = new DriverDWM(newSimulator(false).getTransport());
+        driver.checkDWM();
+        checkLocationResponse(driver.requestAPI((byte) 0x0C, null));
+        driver.close();
+    }
+
+    @Test
+    public void uartResponses_areSplitByFrame() throws IOException {
+        DriverDWM driver = new DriverDWM(newSimulator(false).getTransport());
+
+        // Risposta d'errore (parametri non validi): contiene solo il TLV 0x40
+        int[] error = driver.requestAPI((byte) 0x03, new byte[] {1});
+        assertArrayEquals(new int[] {0x40, 0x01, 0x03}, error);
+
+        // API non nota al parser: la risposta termina quando la linea rimane inattiva
+        int[] unknown = driver.requestAPI((byte) 0x30, null);
+        assertArrayEquals(new int[] {0x40, 0x01, 0x01}, unknown);
+
+        int[] rate = driver.requestAPI((byte) 0x04, null);
+        assertEquals(9, rate.length);
+
+        // Il flag loc_ready segnala l'aggiornamento delle misure e viene azzerato dalla lettura
+        int[] status = driver.requestAPI((byte) 0x32, null);
+        assertArrayEquals(new int[] {0x40, 0x01, 0x00, 0x5A, 0x02, 0x01, 0x00}, status);
+        status = driver.requestAPI((byte) 0x32, null);
+        assertEquals(0, status[5] & 0x01);
+        driver.close();
+    }
+
+    @Test
+    public void locationView_decodesResponse() throws IOException {
+        DWMSimulator simulator = newSimulator(true);
+        simulator.setTagPosition(0xabcd, 1200, -3400, 250, 60);
+        DriverDWM driver = new DriverDWM(simulator.getTransport());
+        byte[] response = new byte[DriverDWM.MAX_RESPONSE_LENGTH];
+        int length = driver.requestAPI((byte) 0x0C, null, 0, 0, response);
+
+        DWMLocationView view = new DWMLocationView().wrap(response, length);
+        assertTrue(view.hasPosition());
+        assertEquals(2, view.size());
+        assertEquals(0x1234, view.tagID(0));
+        assertEquals(0x1234, view.address(0));
+        assertEquals(1500, view.distance(0));
+        assertEquals(100, view.quality(0));
+        assertEquals(0xabcd, view.tagID(1));
+        assertEquals(70000, view.distance(1));
+        assertEquals(80, view.quality(1));
+        assertEquals(0, view.x(0));
+        assertEquals(1200, view.x(1));
+        assertEquals(-3400, view.y(1));
+        assertEquals(250, view.z(1));
+        assertEquals(60, view.positionQuality(1));
+
+        // Risposta d'errore: non contiene le distanze
+        length = driver.requestAPI((byte) 0x03, new byte[] {1}, 0, 1, response);
+        try {
+            view.wrap(response, length);
+            fail("Invalid response accepted");
+        } catch (IllegalArgumentException e) {
+            // Comportamento atteso
+        }
+        driver.close();
+    }
+
+    @Test
+    public void locationView_decodesAddressList() {
+        // Risposta di un modulo configurato come anchor: posizione e lista 0x48 di due nodi, con
+        // indirizzo UWB di 8 byte, distanza e qualità
+        byte[] response = {
+                0x40, 0x01, 0x00,
+                0x41, 0x0d, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x64,
+                0x48, 0x1b, 0x02,
+                0x34, 0x12, 0x00, 0x00, 0x00, 0x00, (byte) 0xca, (byte) 0xde,
+                (byte) 0xdc, 0x05, 0x00, 0x00, 0x64,
+                (byte) 0xcd, (byte) 0xab, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06,
+                0x70, 0x11, 0x01, 0x00, 0x50};
+
+        DWMLocationView view = new DWMLocationView().wrap(response, response.length);
+        assertFalse(view.hasPosition());
+        assertEquals(2, view.size());
+        assertEquals(0x1234, view.tagID(0));
+        assertEquals(0xdeca000000001234L, view.address(0));
+        assertEquals(1500, view.distance(0));
+        assertEquals(100, view.quality(0));
+        assertEquals(0xabcd, view.tagID(1));
+        assertEquals(0x060504030201abcdL, view.address(1));
+        assertEquals(70000, view.distance(1));
+        assertEquals(80, view.quality(1));
+        assertEquals(0, view.x(1));
+        assertEquals(0, view.positionQuality(1));
+
+        // Una lista 0x48 troncata non viene accettata
+        response[19] = 0x0f;
+        try {
+            view.wrap(response, 3 + 15 + 2 + 15);
+            fail("Truncated address list accepted");
+        } catch (IllegalArgumentException e) {
+            // Comportamento atteso
+        }
+    }
+
+    private static void checkBatch(boolean spi) throws IOException {
+        DriverDWM driver = new DriverDWM(newSimulator(spi).getTransport());
+        List<int[]> responses = driver.requestBatch(Arrays.asList(
+                new DriverDWM.TLV((byte) 0x0C),
+                new DriverDWM.TLV((byte) 0x04),
+                new DriverDWM.TLV((byte) 0x30),
+                new DriverDWM.TLV((byte) 0x0C)));
+
+        assertEquals(4, responses.size());
+        checkLocationResponse(responses.get(0));
+        assertEquals(0x46, responses.get(1)[3]);
+        assertArrayEquals(new int[] {0x40, 0x01, 0x01}, responses.get(2));
+        checkLocationResponse(responses.get(3));
+        driver.close();
+    }
+
+    @Test
+    public void batchRequest_isCorrect() throws IOException {
+        checkBatch(true);
+        checkBatch(false);
+    }
+
+    @Test
+    public void asyncDriver_servesHigherPriorityFirst() throws Exception {
+        AsyncDriverDWM async = new AsyncDriverDWM(new DriverDWM(newSimulator(true).getTransport()));
+        final CountDownLatch busy = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        // Tiene occupato il thread di I/O finché le altre richieste non sono in coda
+        async.submitTask(new AsyncDriverDWM.DriverTask<Void>() {
+            @Override
+            public Void run(DriverDWM driver) throws IOException {
+                try {
+                    busy.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return null;
+            }
+        }, AsyncDriverDWM.Priority.HIGH);
+
+        CompletableFuture<Void> check = async.submitHealthCheck().thenRun(new Runnable() {
+            @Override
+            public void run() {
+                order.add("check");
+            }
+        });
+        CompletableFuture<Void> poll = async.submit((byte) 0x0C, null, AsyncDriverDWM.Priority.HIGH)
+                .thenAccept(new Consumer<int[]>() {
+                    @Override
+                    public void accept(int[] response) {
+                        checkLocationResponse(response);
+                        order.add("poll");
+                    }
+                });
+        busy.countDown();
+
+        check.get(2, TimeUnit.SECONDS);
+        poll.get(2, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("poll", "check"), order);
+        async.close();
+    }
+
+    @Test
+    public void asyncDriver_reusesPoll() throws Exception {
+        AsyncDriverDWM async = new AsyncDriverDWM(new DriverDWM(newSimulator(false).getTransport()));
+        byte[] response = new byte[DriverDWM.MAX_RESPONSE_LENGTH];
+        AsyncDriverDWM.Poll poll = new AsyncDriverDWM.Poll((byte) 0x0C, response);
+
+        for (int i = 0; i < 3; i++) {
+            async.submit(poll, AsyncDriverDWM.Priority.HIGH);
+
+            // Un nuovo invio della stessa richiesta attende il completamento della precedente
+            async.submit(poll, AsyncDriverDWM.Priority.HIGH);
+            int length = poll.await();
+            assertEquals(2, new DWMLocationView().wrap(response, length).size());
+        }
+
+        async.close();
+        async.submit(poll, AsyncDriverDWM.Priority.HIGH);
+        try {
+            poll.await();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Comportamento atteso
+        }
+    }
+
+    @Test
+    public void asyncDriver_closeCompletesRunningRequest() throws Exception {
+        // La risposta richiede 20 ms: la chiusura avviene mentre la richiesta è sul bus
+        DWMSimulator simulator = newSimulator(false);
+        simulator.setLatency(20000, 0);
+        AsyncDriverDWM async = new AsyncDriverDWM(new DriverDWM(simulator.getTransport()));
+        CompletableFuture<int[]> running = async.submit((byte) 0x0C, null, AsyncDriverDWM.Priority.HIGH);
+        CompletableFuture<int[]> queued = async.submit((byte) 0x0C, null, AsyncDriverDWM.Priority.HIGH);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (simulator.getRequestCount() == 0 && System.nanoTime() < end) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, simulator.getRequestCount());
+
+        // La richiesta in esecuzione termina normalmente, quella in coda fallisce
+        async.close();
+        checkLocationResponse(running.get(2, TimeUnit.SECONDS));
+        try {
+            queued.get(2, TimeUnit.SECONDS);
+            fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void disconnectedModule_isDetected() throws IOException {
+        DWMSimulator simulator = newSimulator(true);
+        simulator.setConnected(false);
+        DriverDWM driver = new DriverDWM(simulator.getTransport());
+        try {
+            driver.checkDWM();
+            fail("Disconnected module not detected");
+        } catch (IOException e) {
+            // Comportamento atteso
+        }
+    }
+
+    @Test
+    public void controller_notifiesConnectedTags() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final int[] connected = new int[2];
+
+        DistanceController controller = new DistanceController(
+                new DriverDWM(newSimulator(true).getTransport()));
+        controller.addAllTagsListener(new AllTagsListener() {
+            @Override
+            public void onTagHasConnected(List<DistanceController.Entry> tags) {
+                connected[0] = tags.size();
+                connected[1] = tags.get(0).quality;
+                latch.countDown();
+            }
+
+            @Override
+            public void onTagHasDisconnected(List<DistanceController.Entry> tags) {
+            }
+
+            @Override
+            public void onTagDataAvailable(List<DistanceController.Entry> tags) {
+            }
+
+            @Override
+            public void onError(String shortDescription, Exception error) {
+            }
+        });
+        controller.startUpdate(100L);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(2, connected[0]);
+        assertEquals(100, connected[1]);
+        assertEquals(2, controller.getTagIDs().size());
+        controller.close();
+    }
+
+    @Test
+    public void multiModuleController_mergesTags() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<DistanceController.Entry> connected = new ArrayList<>();
+
+        // Il tag 0x1234 è visto da entrambi i moduli: va usata la misura con qualità migliore
+        DWMSimulator second = new DWMSimulator("SIM-SPI-2", true);
+        second.setTag(0x1234, 1700, 90);
+        second.setTag(0x5678, 2500, 70);
+        DWMSimulator third = new DWMSimulator("SIM-UART-2", false);
+        third.setTag(0x1234, 1450, 100);
+
+        DistanceController controller = new DistanceController(
+                new DriverDWM(newSimulator(true).getTransport()),
+                new DriverDWM(second.getTransport()), new DriverDWM(third.getTransport()));
+        controller.addAllTagsListener(new AllTagsListener() {
+            @Override
+            public void onTagHasConnected(List<DistanceController.Entry> tags) {
+                connected.addAll(tags);
+                latch.countDown();
+            }
+
+            @Override
+            public void onTagHasDisconnected(List<DistanceController.Entry> tags) {
+            }
+
+            @Override
+            public void onTagDataAvailable(List<DistanceController.Entry> tags) {
+            }
+
+            @Override
+            public void onError(String shortDescription, Exception error) {
+            }
+        });
+        controller.startUpdate(100L);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(3, connected.size());
+        Collections.sort(connected, new Comparator<DistanceController.Entry>() {
+            @Override
+            public int compare(DistanceController.Entry e1, DistanceController.Entry e2) {
+                return e1.tagID - e2.tagID;
+            }
+        });
+        assertEquals(0x1234, connected.get(0).tagID);
+        assertEquals(1500, connected.get(0).tagDistance);
+        assertEquals(0x5678, connected.get(1).tagID);
+        assertEquals(0xabcd, connected.get(2).tagID);
+        controller.close();
+    }
+
+    @Test
+    public void controller_queriesDoNotWaitForBus() throws Exception {
+        // Ogni risposta del modulo richiede circa 20 ms. Con il rumore di misura, i tag fermi
+        // restano connessi
+        DWMSimulator simulator = newSimulator(false);
+        simulator.setLatency(20000, 0);
+        simulator.setMeasurementNoise(20);
+        DistanceController controller = new DistanceController(new DriverDWM(simulator.getTransport()));
+        controller.startUpdate(100L);
+
+        long worst = 0;
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            controller.getTagIDs();
+            worst = Math.max(worst, System.nanoTime() - start);
+        }
+
+        assertEquals(2, controller.getTagIDs().size());
+        assertTrue("getTagIDs took " + worst + " ns", worst < TimeUnit.MILLISECONDS.toNanos(10));
+        controller.close();
+    }
+
+    @Test
+    public void controller_detectsDisconnectedTags() throws Exception {
+        DWMSimulator simulator = newSimulator(false);
+        simulator.setMeasurementNoise(20);
+        DistanceController controller = new DistanceController(new DriverDWM(simulator.getTransport()));
+        controller.startUpdate(100L);
+        DistanceController.Frame frame = controller.awaitNextFrame(0, 2000);
+        assertNotNull(frame);
+        assertEquals(2, frame.tags.size());
+
+        // Il modulo continua a riportare il tag fuori portata con la sua ultima distanza, ma con
+        // qualità nulla dal suo aggiornamento successivo: il tag viene dichiarato disconnesso
+        // entro un intervallo di aggiornamento del modulo (100 ms), più il periodo di polling
+        simulator.setTagInRange(0x1234, false);
+        long start = System.nanoTime();
+        while (frame.getTag(0x1234) != null && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2)) {
+            frame = controller.awaitNextFrame(frame.sequence, 2000);
+        }
+        long latency = System.nanoTime() - start;
+        assertNull(frame.getTag(0x1234));
+        assertTrue("disconnected after " + latency + " ns", latency < TimeUnit.MILLISECONDS.toNanos(450));
+
+        // Una misura di qualità nulla disconnette subito il tag
+        simulator.setTag(0xabcd, 70000, 0);
+        for (int i = 0; i < 3 && frame.getTag(0xabcd) != null; i++) {
+            frame = controller.awaitNextFrame(frame.sequence, 2000);
+        }
+        assertNull(frame.getTag(0xabcd));
+
+        // Il tag torna in portata e si riconnette con la prima misura nuova
+        simulator.setTagInRange(0x1234, true);
+        for (int i = 0; i < 5 && frame.getTag(0x1234) == null; i++) {
+            frame = controller.awaitNextFrame(frame.sequence, 2000);
+        }
+        assertNotNull(frame.getTag(0x1234));
+        controller.close();
+    }
+
+    @Test
+    public void controller_keepsStillTagConnected() throws Exception {
+        // Senza rumore il modulo misura sempre la stessa distanza, come per un tag fermo
+        DistanceController controller = new DistanceController(
+                new DriverDWM(newSimulator(false).getTransport()));
+        controller.startUpdate(100L);
+        DistanceController.Frame frame = controller.awaitNextFrame(0, 2000);
+        assertNotNull(frame);
+        assertNotNull(frame.getTag(0x1234));
+
+        // Il modulo segnala i suoi aggiornamenti: le letture identiche, per molti intervalli di
+        // aggiornamento, non disconnettono il tag
+        for (int i = 0; i < 5; i++) {
+            frame = controller.awaitNextFrame(frame.sequence, 2000);
+            assertNotNull(frame);
+            assertEquals(1500, frame.getTag(0x1234).tagDistance);
+        }
+        controller.close();
+    }
+
+    @Test
+    public void controller_publishesVersionedFrames() throws Exception {
+        DistanceController controller = new DistanceController(
+                new DriverDWM(newSimulator(true).getTransport()));
+        assertEquals(0, controller.getLatestFrame().sequence);
+        assertNull(controller.awaitNextFrame(0, 50));
+
+        controller.startUpdate(100L);
+        DistanceController.Frame first = controller.awaitNextFrame(0, 2000);
+        assertNotNull(first);
+        assertEquals(2, first.tags.size());
+        assertTrue(first.tags.get(0).tagID < first.tags.get(1).tagID);
+        assertEquals(0x1234, first.getTag(0x1234).tagID);
+        assertNull(first.getTag(0x5678));
+
+        DistanceController.Frame second = controller.awaitNextFrame(first.sequence, 2000);
+        assertNotNull(second);
+        assertTrue(second.sequence > first.sequence);
+        assertTrue(second.timestamp > first.timestamp);
+
+        // La chiusura risveglia i thread in attesa
+        controller.stopUpdate();
+        final DistanceController closing = controller;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                closing.close();
+            }
+        }).start();
+        long start = System.nanoTime();
+        assertNull(controller.awaitNextFrame(controller.getLatestFrame().sequence, 5000));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+    }
+
+    @Test
+    public void controller_stopUpdateWaitsForRunningCycle() throws Exception {
+        DistanceController controller = new DistanceController(
+                new DriverDWM(newSimulator(true).getTransport()));
+        for (int i = 0; i < 3; i++) {
+            controller.startUpdate(100L);
+            assertNotNull(controller.awaitNextFrame(controller.getLatestFrame().sequence, 2000));
+
+            // Al ritorno di stopUpdate() nessun ciclo è in corso: non vengono pubblicati altri dati
+            controller.stopUpdate();
+            long sequence = controller.getLatestFrame().sequence;
+            assertNull(controller.awaitNextFrame(sequence, 250));
+        }
+        controller.close();
+    }
+
+    @Test
+    public void controller_recoversWithBackoff() throws Exception {
+        // Su UART il controllo del modulo non chiude la periferica, che il simulatore non può riaprire
+        DWMSimulator simulator = newSimulator(false);
+        DistanceController controller = new DistanceController(new DriverDWM(simulator.getTransport()));
+        controller.startUpdate(100L);
+        assertNotNull(controller.awaitNextFrame(0, 2000));
+        assertEquals(DistanceController.ConnectionState.CONNECTED, controller.getConnectionState());
+
+        // Il modulo smette di rispondere: dopo due errori il controller sospende l'aggiornamento
+        simulator.setConnected(false);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+        while (controller.getConnectionState() != DistanceController.ConnectionState.PAUSED
+                && System.nanoTime() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(DistanceController.ConnectionState.PAUSED, controller.getConnectionState());
+
+        // Il primo tentativo successivo avviene dopo poco, non dopo il periodo massimo
+        simulator.setConnected(true);
+        long sequence = controller.getLatestFrame().sequence;
+        assertNotNull(controller.awaitNextFrame(sequence, 3000));
+        assertEquals(DistanceController.ConnectionState.CONNECTED, controller.getConnectionState());
+        assertTrue(controller.getRecoveryAttempts() >= 1);
+        assertEquals(1, controller.getOutageDurations().getCount());
+
+        // Le metriche riportano errori, sospensioni e ripristini, oltre al traffico del driver
+        MetricsRegistry registry = new MetricsRegistry();
+        controller.registerMetrics(registry);
+        MetricsRegistry.Snapshot snapshot = registry.snapshot();
+        assertTrue(snapshot.get("controller.polls") > snapshot.get("controller.pollErrors"));
+        assertTrue(snapshot.get("controller.pollErrors") >= 2);
+        assertTrue(snapshot.get("controller.pauses") >= 1);
+        assertTrue(snapshot.get("controller.recoveries") >= 1);
+
+        // Gli errori sono solo timeout: le periferiche non vengono mai riaperte
+        assertEquals(0, (long) snapshot.get("controller.reopenRequests"));
+        assertTrue(snapshot.get("controller.tagsConnected") >= 2);
+        assertEquals(1, (long) snapshot.get("controller.outage.duration.nanos.count"));
+        assertTrue(snapshot.get("dwm.SIM-UART.requests") > 0);
+        assertTrue(snapshot.get("dwm.SIM-UART.communicationErrors") > 0);
+        assertTrue(snapshot.get("dwm.SIM-UART.uart.bytesRead") > 0);
+        controller.close();
+    }
+}
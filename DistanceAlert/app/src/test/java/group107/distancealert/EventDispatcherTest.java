@@ -0,0 +1,181 @@
+package group107.distancealert;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test locali dell'EventDispatcher.
+ */
+public class EventDispatcherTest {
+    /**
+     * TagListener che memorizza le distanze e i timestamp ricevuti
+     */
+    private static class RecordingListener implements TagListener {
+        final List<Integer> distances = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Long> timestamps = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch done;
+        final CountDownLatch release;
+
+        RecordingListener(int expected, CountDownLatch release) {
+            done = new CountDownLatch(expected);
+            this.release = release;
+        }
+
+        @Override
+        public void onTagHasConnected(int tagDistance, long timestamp) {
+            onTagDataAvailable(tagDistance, timestamp);
+        }
+
+        @Override
+        public void onTagHasDisconnected(int tagLastKnownDistance, long timestamp) {
+            onTagDataAvailable(tagLastKnownDistance, timestamp);
+        }
+
+        @Override
+        public void onTagDataAvailable(int tagDistance, long timestamp) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            distances.add(tagDistance);
+            timestamps.add(timestamp);
+            done.countDown();
+        }
+
+        @Override
+        public void onError(String shortDescription, Exception error) {
+        }
+    }
+
+    @Test
+    public void events_areDeliveredInOrder() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(2, 256);
+        RecordingListener[] listeners = new RecordingListener[3];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = new RecordingListener(100, new CountDownLatch(0));
+            dispatcher.subscribe(listeners[i]);
+        }
+
+        for (int d = 0; d < 100; d++) {
+            for (RecordingListener listener : listeners) {
+                if (d == 0) {
+                    dispatcher.tagConnected(listener, d, d);
+                } else {
+                    dispatcher.tagDataAvailable(listener, d, d);
+                }
+            }
+        }
+
+        for (RecordingListener listener : listeners) {
+            assertTrue(listener.done.await(2, TimeUnit.SECONDS));
+            for (int d = 0; d < 100; d++) {
+                assertEquals(d, (int) listener.distances.get(d));
+                assertEquals(d, (long) listener.timestamps.get(d));
+            }
+
+            // Il contatore delle consegne viene aggiornato dopo l'esecuzione del listener
+            EventDispatcher.Subscriber subscriber = dispatcher.getSubscriber(listener);
+            for (int i = 0; i < 100 && subscriber.getLag() != 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, subscriber.getLag());
+        }
+        dispatcher.close();
+    }
+
+    @Test
+    public void callbackLatency_isMeasuredFromTimestamp() throws InterruptedException {
+        Histogram callbackLatency = new Histogram("callback");
+        EventDispatcher dispatcher = new EventDispatcher(1, 16, callbackLatency);
+        RecordingListener listener = new RecordingListener(2, new CountDownLatch(0));
+        dispatcher.subscribe(listener);
+
+        // Misure richieste 50 ms prima della pubblicazione
+        long timestamp = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(50);
+        dispatcher.tagConnected(listener, 1000, timestamp);
+        dispatcher.tagDataAvailable(listener, 1010, timestamp);
+        dispatcher.error(listener, "errore", new Exception());
+
+        assertTrue(listener.done.await(2, TimeUnit.SECONDS));
+        assertEquals(Collections.nCopies(2, timestamp), listener.timestamps);
+        for (int i = 0; i < 100 && dispatcher.getSubscriber(listener).getLag() != 0; i++) {
+            Thread.sleep(10);
+        }
+
+        // Gli errori non hanno una misura associata e non vengono registrati
+        assertEquals(2, callbackLatency.getCount());
+        assertTrue(callbackLatency.getPercentile(50) >= TimeUnit.MILLISECONDS.toNanos(50));
+        dispatcher.close();
+    }
+
+    @Test
+    public void slowListener_doesNotBlockProducer() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(1, 4);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener slow = new RecordingListener(1, release);
+        dispatcher.subscribe(slow);
+
+        // Il listener è bloccato: gli eventi oltre la capacità vengono scartati, senza attese
+        for (int d = 0; d < 20; d++) {
+            dispatcher.tagDataAvailable(slow, d, d);
+        }
+
+        EventDispatcher.Subscriber subscriber = dispatcher.getSubscriber(slow);
+        assertTrue(subscriber.dropped.get() >= 20 - 5);
+        assertTrue(subscriber.getLag() > 0);
+
+        release.countDown();
+        assertTrue(slow.done.await(2, TimeUnit.SECONDS));
+        dispatcher.close();
+    }
+
+    @Test
+    public void stateChanges_areNeverDropped() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(1, 4);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener slow = new RecordingListener(8, release);
+        dispatcher.subscribe(slow);
+
+        // Con il buffer pieno vengono scartati solo i dati disponibili
+        for (int d = 0; d < 40; d++) {
+            if (d % 10 == 0) {
+                dispatcher.tagConnected(slow, d, d);
+            } else if (d % 10 == 5) {
+                dispatcher.tagDisconnected(slow, d, d);
+            } else {
+                dispatcher.tagDataAvailable(slow, d, d);
+            }
+        }
+
+        release.countDown();
+        assertTrue(slow.done.await(2, TimeUnit.SECONDS));
+        EventDispatcher.Subscriber subscriber = dispatcher.getSubscriber(slow);
+        for (int i = 0; i < 100 && subscriber.getLag() != 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, subscriber.getLag());
+        assertTrue(subscriber.dropped.get() > 0);
+
+        // Tutte le connessioni e disconnessioni vengono consegnate, nell'ordine di pubblicazione
+        List<Integer> changes = new ArrayList<>();
+        int previous = -1;
+        for (int d : slow.distances) {
+            assertTrue(d > previous);
+            previous = d;
+            if (d % 5 == 0) {
+                changes.add(d);
+            }
+        }
+        assertEquals(Arrays.asList(0, 5, 10, 15, 20, 25, 30, 35), changes);
+        dispatcher.close();
+    }
+}
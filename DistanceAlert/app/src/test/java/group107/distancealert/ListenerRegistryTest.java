@@ -0,0 +1,73 @@
+package group107.distancealert;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test locali del ListenerRegistry.
+ */
+public class ListenerRegistryTest {
+    private static TagListener newListener() {
+        return new TagListener() {
+            @Override
+            public void onTagHasConnected(int tagDistance, long timestamp) {
+            }
+
+            @Override
+            public void onTagHasDisconnected(int tagLastKnownDistance, long timestamp) {
+            }
+
+            @Override
+            public void onTagDataAvailable(int tagDistance, long timestamp) {
+            }
+
+            @Override
+            public void onError(String shortDescription, Exception error) {
+            }
+        };
+    }
+
+    @Test
+    public void tagListeners_areIndexedByTag() {
+        ListenerRegistry registry = new ListenerRegistry();
+        TagListener first = newListener();
+        TagListener second = newListener();
+
+        registry.addTagListener(0xabcd, first);
+        registry.addTagListener(0x1234, first);
+        registry.addTagListener(0x1234, second);
+
+        ListenerRegistry.Snapshot snapshot = registry.snapshot();
+        assertEquals(2, snapshot.tagCount());
+        assertArrayEquals(new TagListener[] {first, second}, snapshot.forTag(0x1234));
+        assertArrayEquals(new TagListener[] {first}, snapshot.forTag(0xabcd));
+        assertNull(snapshot.forTag(0x5678));
+    }
+
+    @Test
+    public void removeTagListener_removesEveryRegistration() {
+        ListenerRegistry registry = new ListenerRegistry();
+        TagListener first = newListener();
+        TagListener second = newListener();
+
+        // Registrazioni consecutive dello stesso listener, anche per lo stesso tag
+        registry.addTagListener(0x1234, first);
+        registry.addTagListener(0x1234, first);
+        registry.addTagListener(0x1234, second);
+        registry.addTagListener(0xabcd, first);
+        ListenerRegistry.Snapshot before = registry.snapshot();
+
+        assertTrue(registry.removeTagListener(first));
+        assertFalse(registry.contains(first));
+
+        ListenerRegistry.Snapshot after = registry.snapshot();
+        assertEquals(1, after.tagCount());
+        assertArrayEquals(new TagListener[] {second}, after.forTag(0x1234));
+        assertNull(after.forTag(0xabcd));
+
+        // L'istantanea precedente non viene modificata
+        assertEquals(3, before.forTag(0x1234).length);
+        assertFalse(registry.removeTagListener(first));
+    }
+}
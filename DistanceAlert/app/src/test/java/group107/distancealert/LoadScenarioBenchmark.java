@@ -0,0 +1,146 @@
+package group107.distancealert;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark di un ciclo del DistanceController con gli scenari del DWMLoadGenerator: molti tag
+ * in movimento divisi tra più moduli, con rumore, perdite di misure, letture bloccate e
+ * tempeste di riconnessioni. Oltre al tempo per ciclo riporta il numero di notifiche ricevute
+ * dai listener; la memoria allocata per ciclo si ottiene eseguendo il benchmark con -prof gc.
+ * Il tempo simulato avanza di un intervallo di aggiornamento dei moduli a ogni ciclo, così che
+ * le letture bloccate portino il controller a dichiarare i tag disconnessi.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadScenarioBenchmark {
+    /**
+     * Contatori riportati da JMH accanto al tempo per ciclo
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Notifications {
+        public long notifications;
+        private long base;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            notifications = 0;
+            base = -1;
+        }
+    }
+
+    /**
+     * Listener che conta i tag notificati, dai thread del distributore degli eventi
+     */
+    private static class CountingListener implements AllTagsListener {
+        private final AtomicLong events = new AtomicLong();
+
+        @Override
+        public void onTagHasConnected(List<DistanceController.Entry> tags) {
+            events.addAndGet(tags.size());
+        }
+
+        @Override
+        public void onTagHasDisconnected(List<DistanceController.Entry> tags) {
+            events.addAndGet(tags.size());
+        }
+
+        @Override
+        public void onTagDataAvailable(List<DistanceController.Entry> tags) {
+            events.addAndGet(tags.size());
+        }
+
+        @Override
+        public void onError(String shortDescription, Exception error) {
+        }
+    }
+
+    @Param({"15", "100", "300", "600"})
+    public int tagCount;
+
+    @Param({"RANDOM_WALK", "OSCILLATING"})
+    public String motion;
+
+    /**
+     * Scenario: solo moto e rumore, oppure con perdite, letture bloccate e tempeste
+     */
+    @Param({"clean", "faulty"})
+    public String scenario;
+
+    private DistanceController controller;
+    private DWMLoadGenerator generator;
+    private CountingListener listener;
+    private byte[][] responses;
+    private DWMLocationView[] views;
+    private long now;
+
+    @Setup
+    public void setUp() throws IOException {
+        generator = new DWMLoadGenerator(tagCount, 42);
+        generator.setMotion(DWMLoadGenerator.Motion.valueOf(motion), 500);
+        if (scenario.equals("faulty")) {
+            generator.setDropoutProbability(0.02);
+            generator.setStuckReadings(0.005, 20);
+            generator.setReconnectStorms(100, 10, 0.3);
+        }
+
+        // Il controller riceve direttamente le risposte: il modulo serve solo al costruttore
+        controller = new DistanceController(new DriverDWM(generator.getTransport(0)));
+        listener = new CountingListener();
+        controller.addAllTagsListener(listener);
+
+        responses = new byte[generator.getModuleCount()][DriverDWM.MAX_RESPONSE_LENGTH];
+        views = new DWMLocationView[generator.getModuleCount()];
+        for (int m = 0; m < views.length; m++) {
+            views[m] = new DWMLocationView();
+        }
+        now = System.nanoTime();
+    }
+
+    @TearDown
+    public void tearDown() {
+        controller.close();
+    }
+
+    @Benchmark
+    public long cycle(Notifications counters) {
+        generator.advance();
+        now += SyntheticFrames.FRAME_NANOS;
+
+        for (int m = 0; m < views.length; m++) {
+            views[m].wrap(responses[m], generator.writeLocation(m, responses[m]));
+        }
+        controller.processFrame(views, views.length, now);
+
+        // Le notifiche arrivano in modo asincrono: conta quelle consegnate durante l'iterazione
+        long events = listener.events.get();
+        if (counters.base < 0) {
+            counters.base = events;
+        }
+        counters.notifications = events - counters.base;
+
+        return controller.getLatestFrame().sequence;
+    }
+}
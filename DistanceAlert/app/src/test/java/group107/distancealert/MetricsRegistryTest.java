@@ -0,0 +1,129 @@
+package group107.distancealert;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test locali del MetricsRegistry.
+ */
+public class MetricsRegistryTest {
+    @Test
+    public void snapshot_containsAllMetrics() {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry.Counter counter = new MetricsRegistry.Counter();
+        Histogram histogram = new Histogram("latency");
+        registry.register("a.counter", counter);
+        registry.register("a.gauge", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return 42;
+            }
+        });
+        registry.register("a.latency", histogram);
+
+        counter.increment();
+        counter.add(2);
+        registry.counter("b.created").increment();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        MetricsRegistry.Snapshot snapshot = registry.snapshot();
+        assertEquals(3, (long) snapshot.get("a.counter"));
+        assertEquals(42, (long) snapshot.get("a.gauge"));
+        assertEquals(100, (long) snapshot.get("a.latency.count"));
+        assertEquals(100, (long) snapshot.get("a.latency.max"));
+        assertTrue(snapshot.get("a.latency.p50") >= 50);
+        assertEquals(1, (long) snapshot.get("b.created"));
+
+        // L'istantanea non cambia con le metriche
+        counter.increment();
+        assertEquals(3, (long) snapshot.get("a.counter"));
+        assertEquals(4, (long) registry.snapshot().get("a.counter"));
+    }
+
+    @Test
+    public void register_replacesMetricWithSameName() {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry.Counter first = registry.counter("x");
+        first.add(5);
+
+        // Una gauge con lo stesso nome sostituisce il contatore
+        registry.register("x", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return 7;
+            }
+        });
+        first.increment();
+        assertEquals(7, (long) registry.snapshot().get("x"));
+        assertEquals(1, registry.snapshot().values.size());
+    }
+
+    @Test
+    public void removeAll_removesOnlyMatchingPrefix() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("controller.polls");
+        registry.register("controller.intervals", new Histogram("intervals"));
+        registry.counter("alarm.starts");
+
+        registry.removeAll("controller.");
+        MetricsRegistry.Snapshot snapshot = registry.snapshot();
+        assertEquals(1, snapshot.values.size());
+        assertNotNull(snapshot.get("alarm.starts"));
+    }
+
+    @Test
+    public void dump_appendsOneLinePerSnapshot() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry.Counter counter = registry.counter("requests");
+        File file = File.createTempFile("metrics", ".log");
+        try {
+            registry.dump(file);
+            counter.increment();
+            registry.dump(file);
+
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            assertEquals(2, lines.size());
+            assertTrue(lines.get(0).endsWith(" requests=0"));
+            assertTrue(lines.get(1).endsWith(" requests=1"));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void dumpInBackground_writesSnapshotTakenAtCall() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("controller.polls").increment();
+        File file = File.createTempFile("metrics", ".log");
+        try {
+            // Senza scrittura periodica viene usato un thread temporaneo
+            Future<Void> first = registry.dumpInBackground(file);
+            registry.removeAll("controller.");
+            first.get(2, TimeUnit.SECONDS);
+
+            // Con la scrittura periodica avviata viene usato il suo thread, anche se poi fermata
+            registry.startDump(file, 60000L);
+            Future<Void> second = registry.dumpInBackground(file);
+            registry.stopDump();
+            second.get(2, TimeUnit.SECONDS);
+
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            assertEquals(2, lines.size());
+            assertTrue(lines.get(0).endsWith(" controller.polls=1"));
+            assertFalse(lines.get(1).contains("controller.polls"));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+}
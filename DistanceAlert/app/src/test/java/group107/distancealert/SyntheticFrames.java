@@ -0,0 +1,169 @@
+package group107.distancealert;
+
+import java.util.Random;
+
+/**
+ * Sequenza ciclica di risposte sintetiche di dwm_loc_get (0x0C), usata dai benchmark.
+ * I tag si muovono con una passeggiata casuale e a ogni aggiornamento una frazione dei tag (churn)
+ * esce o rientra nelle risposte, producendo connessioni e disconnessioni.
+ * Una risposta contiene al più MAX_TAGS_PER_RESPONSE tag, quindi con molti tag ogni
+ * aggiornamento è diviso in più risposte, come se i tag fossero visti da più moduli.
+ * Le risposte vengono generate una sola volta con un seme fisso: le misure sono riproducibili e
+ * non comprendono il costo della generazione.
+ */
+final class SyntheticFrames {
+    /**
+     * Numero massimo di tag in una risposta, la cui lunghezza totale non può superare i 255 byte
+     */
+    static final int MAX_TAGS_PER_RESPONSE = DWMSimulator.MAX_TAGS;
+
+    /**
+     * Intervallo tra due aggiornamenti simulati, in ns
+     */
+    static final long FRAME_NANOS = 100000000L;
+
+    /**
+     * Byte di una risposta prima dei dati dei tag: TLV di errore, TLV della posizione del
+     * modulo, tipo e lunghezza del TLV delle distanze e numero di tag
+     */
+    private static final int HEADER_LENGTH = 3 + 2 + 13 + 2 + 1;
+
+    private static final int DEFAULT_FRAME_COUNT = 256;
+    private static final long SEED = 107L;
+
+    private final byte[][][] responses;
+    private final int[][] lengths;
+    private int next = 0;
+
+    /**
+     * Genera la sequenza di aggiornamenti
+     *
+     * @param tagCount Numero di tag
+     * @param churn Probabilità che un tag esca o rientri a ogni aggiornamento
+     */
+    SyntheticFrames(int tagCount, double churn) {
+        this(tagCount, churn, DEFAULT_FRAME_COUNT);
+    }
+
+    /**
+     * Genera la sequenza di aggiornamenti
+     *
+     * @param tagCount Numero di tag
+     * @param churn Probabilità che un tag esca o rientri a ogni aggiornamento
+     * @param frameCount Numero di aggiornamenti della sequenza
+     */
+    SyntheticFrames(int tagCount, double churn, int frameCount) {
+        Random random = new Random(SEED);
+        int[] distances = new int[tagCount];
+        boolean[] present = new boolean[tagCount];
+        for (int i = 0; i < tagCount; i++) {
+            distances[i] = 1000 + random.nextInt(20000);
+            present[i] = true;
+        }
+
+        responses = new byte[frameCount][][];
+        lengths = new int[frameCount][];
+        int[] frameTags = new int[tagCount];
+        for (int f = 0; f < frameCount; f++) {
+            int count = 0;
+            for (int i = 0; i < tagCount; i++) {
+                if (random.nextDouble() < churn) {
+                    present[i] = !present[i];
+                }
+
+                // Ogni misura differisce dalla precedente, così che il tag non risulti fermo
+                int step = 1 + random.nextInt(100);
+                distances[i] = Math.max(100, distances[i] + (random.nextBoolean() ? step : -step));
+                if (present[i]) {
+                    frameTags[count++] = i;
+                }
+            }
+
+            int responseCount = Math.max(1, (count + MAX_TAGS_PER_RESPONSE - 1) / MAX_TAGS_PER_RESPONSE);
+            responses[f] = new byte[responseCount][];
+            lengths[f] = new int[responseCount];
+            for (int r = 0; r < responseCount; r++) {
+                int first = r * MAX_TAGS_PER_RESPONSE;
+                int n = Math.min(MAX_TAGS_PER_RESPONSE, count - first);
+                byte[] response = new byte[HEADER_LENGTH + n * DWMLocationView.BYTES_PER_ENTRY];
+                fill(response, n, frameTags, first, distances, random);
+                responses[f][r] = response;
+                lengths[f][r] = response.length;
+            }
+        }
+    }
+
+    /**
+     * Scrive una risposta con i tag specificati
+     */
+    private static void fill(byte[] response, int n, int[] frameTags, int first, int[] distances,
+                             Random random) {
+        response[0] = 0x40;
+        response[1] = 1;
+        response[2] = 0;
+        response[3] = 0x41;
+        response[4] = 13;
+        response[18] = 0x49;
+        response[19] = (byte) (1 + n * DWMLocationView.BYTES_PER_ENTRY);
+        response[20] = (byte) n;
+
+        int index = HEADER_LENGTH;
+        for (int k = 0; k < n; k++) {
+            int tag = frameTags[first + k];
+            int distance = distances[tag];
+            index = put(response, index, tag + 1, 2);
+            index = put(response, index, distance, 4);
+            index = put(response, index, 50 + random.nextInt(51), 1);
+            index = put(response, index, distance, 4);
+            index = put(response, index, -distance / 2, 4);
+            index = put(response, index, 1000, 4);
+            index = put(response, index, 100, 1);
+        }
+    }
+
+    /**
+     * Scrive un valore in notazione Little Endian
+     *
+     * @return La posizione successiva al valore
+     */
+    private static int put(byte[] buffer, int index, int value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            buffer[index + i] = (byte) (value >> (8 * i));
+        }
+        return index + bytes;
+    }
+
+    /**
+     * Passa all'aggiornamento successivo della sequenza, ricominciando dal primo dopo l'ultimo
+     *
+     * @return L'indice dell'aggiornamento
+     */
+    int next() {
+        int frame = next;
+        next = (next + 1) % responses.length;
+        return frame;
+    }
+
+    /**
+     * @return Il numero massimo di risposte di un aggiornamento
+     */
+    int maxResponseCount() {
+        int max = 0;
+        for (byte[][] frame : responses) {
+            max = Math.max(max, frame.length);
+        }
+        return max;
+    }
+
+    int responseCount(int frame) {
+        return responses[frame].length;
+    }
+
+    byte[] response(int frame, int r) {
+        return responses[frame][r];
+    }
+
+    int length(int frame, int r) {
+        return lengths[frame][r];
+    }
+}
@@ -0,0 +1,160 @@
+package group107.distancealert;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test locali della TagTable.
+ */
+public class TagTableTest {
+    /**
+     * Intervallo tra due aggiornamenti simulati, in ns
+     */
+    private static final long FRAME_NANOS = 100000000L;
+
+    private final TagTable table = new TagTable();
+    private final DWMLocationView view = new DWMLocationView();
+    private long now = 0;
+
+    /**
+     * Tempo senza misure nuove dopo il quale un tag è disconnesso, come quello del
+     * DistanceController con un intervallo di aggiornamento dei moduli pari a FRAME_NANOS
+     */
+    private static final long STALE_NANOS = FRAME_NANOS * 5 / 4;
+
+    /**
+     * Fornisce alla tabella la risposta di un modulo che riporta un solo tag, dopo aver segnalato
+     * che il modulo ha aggiornato le misure
+     */
+    private void offer(int module, int tagID, int distance, int quality) {
+        table.moduleUpdated(module);
+        repeat(module, tagID, distance, quality);
+    }
+
+    /**
+     * Fornisce alla tabella la risposta di un modulo che riporta un solo tag, senza che il modulo
+     * abbia aggiornato le misure
+     */
+    private void repeat(int module, int tagID, int distance, int quality) {
+        byte[] response = new byte[3 + 3 + DWMLocationView.BYTES_PER_ENTRY];
+        response[0] = 0x40;
+        response[1] = 1;
+        response[3] = 0x49;
+        response[4] = 1 + DWMLocationView.BYTES_PER_ENTRY;
+        response[5] = 1;
+        response[6] = (byte) tagID;
+        response[7] = (byte) (tagID >> 8);
+        for (int i = 0; i < 4; i++) {
+            response[8 + i] = (byte) (distance >> (8 * i));
+        }
+        response[12] = (byte) quality;
+
+        view.wrap(response, response.length);
+        table.offer(view, 0, module);
+    }
+
+    private void beginFrame() {
+        now += FRAME_NANOS;
+        table.beginFrame(now);
+    }
+
+    @Test
+    public void failedModule_keepsStateOfItsTags() {
+        // Il tag 0x1234 è visto dal modulo 0, il tag 0x5678 dal modulo 1
+        beginFrame();
+        offer(0, 0x1234, 1500, 100);
+        offer(1, 0x5678, 2500, 100);
+        table.classify(Long.MAX_VALUE);
+        assertEquals(2, table.connectedCount());
+
+        // Il modulo 1 non risponde: il suo tag resta connesso, senza eventi
+        beginFrame();
+        offer(0, 0x1234, 1510, 100);
+        table.moduleFailed(1);
+        table.classify(Long.MAX_VALUE);
+        int slot = table.find(0x5678);
+        assertEquals(0, table.disconnectedCount());
+        assertEquals(TagTable.STATE_CONNECTED, table.state(slot));
+        assertEquals(TagTable.EVENT_NONE, table.event(slot));
+        assertEquals(TagTable.EVENT_UPDATED, table.event(table.find(0x1234)));
+
+        // Alla risposta successiva il tag viene aggiornato, non riconnesso
+        beginFrame();
+        offer(0, 0x1234, 1520, 100);
+        offer(1, 0x5678, 2510, 100);
+        table.classify(Long.MAX_VALUE);
+        assertEquals(0, table.connectedCount());
+        assertEquals(TagTable.EVENT_UPDATED, table.event(slot));
+
+        // Se il modulo che ha risposto non riporta più il tag, il tag viene disconnesso
+        beginFrame();
+        offer(0, 0x1234, 1530, 100);
+        table.classify(Long.MAX_VALUE);
+        assertEquals(TagTable.EVENT_DISCONNECTED, table.event(slot));
+    }
+
+    @Test
+    public void stillTag_staysConnectedWhileModuleUpdates() {
+        // Il modulo aggiorna le misure e riporta sempre la stessa distanza, per molti intervalli
+        int slot = -1;
+        for (int frame = 0; frame < 10; frame++) {
+            beginFrame();
+            offer(0, 0x1234, 1500, 100);
+            table.classify(STALE_NANOS);
+            slot = table.find(0x1234);
+            assertEquals(TagTable.STATE_CONNECTED, table.state(slot));
+        }
+
+        // Una misura di qualità nulla disconnette subito il tag
+        beginFrame();
+        offer(0, 0x1234, 1500, 0);
+        table.classify(STALE_NANOS);
+        assertEquals(TagTable.EVENT_DISCONNECTED, table.event(slot));
+    }
+
+    @Test
+    public void moduleWithoutUpdates_tagBecomesStaleAfterOneInterval() {
+        beginFrame();
+        offer(0, 0x1234, 1500, 100);
+        table.classify(STALE_NANOS);
+        int slot = table.find(0x1234);
+        assertEquals(TagTable.EVENT_CONNECTED, table.event(slot));
+
+        // Il modulo non segnala aggiornamenti: il tag resta connesso per un intervallo
+        beginFrame();
+        repeat(0, 0x1234, 1500, 100);
+        table.classify(STALE_NANOS);
+        assertEquals(TagTable.EVENT_UPDATED, table.event(slot));
+
+        beginFrame();
+        repeat(0, 0x1234, 1500, 100);
+        table.classify(STALE_NANOS);
+        assertEquals(TagTable.EVENT_DISCONNECTED, table.event(slot));
+
+        // Il tag si riconnette al successivo aggiornamento del modulo
+        beginFrame();
+        repeat(0, 0x1234, 1500, 100);
+        table.classify(STALE_NANOS);
+        assertEquals(TagTable.STATE_DISCONNECTED, table.state(slot));
+
+        beginFrame();
+        offer(0, 0x1234, 1500, 100);
+        table.classify(STALE_NANOS);
+        assertEquals(TagTable.EVENT_CONNECTED, table.event(slot));
+    }
+
+    @Test
+    public void sortedSlots_followTagIDsAcrossResizes() {
+        // Abbastanza tag da ingrandire più volte la tabella, inseriti in ordine sparso
+        beginFrame();
+        for (int i = 0; i < 100; i++) {
+            offer(0, (i * 7919) & 0xffff, 1000 + i, 100);
+        }
+        assertEquals(100, table.size());
+        for (int i = 1; i < table.size(); i++) {
+            assertTrue(table.tagID(table.sortedSlot(i - 1)) < table.tagID(table.sortedSlot(i)));
+        }
+        assertEquals(table.find(0), table.sortedSlot(0));
+    }
+}
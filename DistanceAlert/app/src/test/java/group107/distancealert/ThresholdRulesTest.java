@@ -0,0 +1,105 @@
+package group107.distancealert;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test locali delle ThresholdRules.
+ */
+public class ThresholdRulesTest {
+    /**
+     * Intervallo tra due aggiornamenti simulati, in ns
+     */
+    private static final long FRAME_NANOS = 100000000L;
+
+    /**
+     * ThresholdListener che memorizza gli attraversamenti ricevuti
+     */
+    private static class RecordingListener implements ThresholdListener {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onThresholdExceeded(int ruleID, int tagID, int tagDistance, long timestamp) {
+            events.add("exceeded " + ruleID + " " + tagDistance);
+        }
+
+        @Override
+        public void onThresholdRestored(int ruleID, int tagID, int tagDistance, long timestamp) {
+            events.add("restored " + ruleID + " " + tagDistance);
+        }
+    }
+
+    private final EventDispatcher dispatcher = new EventDispatcher(1, 64);
+    private final ThresholdRules rules = new ThresholdRules();
+    private long now = 0;
+
+    /**
+     * Simula un aggiornamento con le distanze specificate per il tag 0x1234
+     */
+    private void frames(int... distances) {
+        for (int distance : distances) {
+            now += FRAME_NANOS;
+            rules.beginCycle();
+            rules.evaluate(0x1234, distance, now, dispatcher);
+        }
+    }
+
+    /**
+     * Attende la consegna di tutti gli eventi pubblicati per il listener
+     */
+    private List<String> delivered(RecordingListener listener) throws InterruptedException {
+        EventDispatcher.Subscriber subscriber = dispatcher.getSubscriber(listener);
+        for (int i = 0; i < 100 && subscriber.getLag() != 0; i++) {
+            Thread.sleep(10);
+        }
+        return new ArrayList<>(listener.events);
+    }
+
+    @Test
+    public void crossings_useHysteresisAndDwell() throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        dispatcher.subscribe(listener);
+        int rule = rules.add(0x1234, 2000, 200, 300, listener);
+        rules.add(0x5678, 0, 0, 0, listener);
+
+        // Un picco più breve del tempo minimo non fa scattare la regola
+        frames(1900, 2100, 2100, 1900);
+        assertTrue(delivered(listener).isEmpty());
+
+        // La regola scatta dopo 300 ms oltre la soglia, e non rientra all'interno dell'isteresi
+        frames(2100, 2100, 2100, 2150, 1900, 1850, 2100);
+        assertEquals(Collections.singletonList("exceeded " + rule + " 2150"), delivered(listener));
+
+        frames(1800, 1700, 1750, 1800);
+        assertEquals(Arrays.asList("exceeded " + rule + " 2150", "restored " + rule + " 1800"),
+                delivered(listener));
+        dispatcher.close();
+    }
+
+    @Test
+    public void stateIsKeptWhenRulesChange() throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        dispatcher.subscribe(listener);
+        int first = rules.add(0x1234, 2000, 0, 0, listener);
+        frames(2100);
+
+        // Una nuova regola e la rimozione di un'altra non ripetono gli attraversamenti già notificati
+        int second = rules.add(0x1234, 3000, 0, 0, listener);
+        int other = rules.add(0x1000, 3000, 0, 0, listener);
+        frames(2200);
+        assertSame(listener, rules.remove(other));
+        assertNull(rules.remove(other));
+        frames(3100, 2500);
+
+        assertEquals(Arrays.asList("exceeded " + first + " 2100", "exceeded " + second + " 3100",
+                "restored " + second + " 2500"), delivered(listener));
+        assertTrue(rules.contains(listener));
+        dispatcher.close();
+    }
+}